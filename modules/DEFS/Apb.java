@@ -41,7 +41,6 @@ public final class Apb
         pkg.services("apb.Command", "apb.idegen.Idea", "apb.idegen.Eclipse");
         pkg.services("apb.Command", "apb.module.Clone");
         pkg.services("apb.testrunner.TestSetCreator", "apb.testrunner.JunitTestSetCreator");
-        pkg.services("javax.annotation.processing.Processor", "apb.processors.NotNullProcessor");
 
         javadoc.generateDeprecatedList = false;
         javadoc.includes("apb", "apb.testrunner.output");
@@ -142,7 +142,7 @@ public class Apb
     public static void exit(int status)
     {
         if (avoidSystemExit) {
-            throw new ExitException();
+            throw new ExitException(status);
         }
 
         System.exit(status);
@@ -215,6 +215,21 @@ public class Apb
     public static class ExitException
         extends RuntimeException
     {
+        private final int status;
+
+        public ExitException(int status)
+        {
+            this.status = status;
+        }
+
+        /**
+         * The exit status requested
+         */
+        public int getStatus()
+        {
+            return status;
+        }
+
         private static final long serialVersionUID = 2893150484674194063L;
     }
 }
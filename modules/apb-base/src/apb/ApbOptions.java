@@ -43,7 +43,11 @@ class ApbOptions
     private final Option<String> debug;
 
     private final Option<String> defineProperty;
+    private final Option<String> traceFile;
 
+    private final Option<Integer> jobs;
+
+    private final Option<Boolean> daemon;
     private final Option<Boolean> forceBuild;
     private final Option<Boolean> noFailOnError;
     private final Option<Boolean> nonRecursive;
@@ -51,6 +55,7 @@ class ApbOptions
     private final Option<Boolean> showStackTrace;
     private final Option<Boolean> track;
     private final Option<Boolean> verbose;
+    private final Option<Boolean> watch;
 
     //~ Constructors .........................................................................................
 
@@ -66,6 +71,10 @@ class ApbOptions
         defineProperty = addOption('D', "define", DEFINE_PROPERTY, "<name>=<value>");
         defineProperty.setCanRepeat(true);
         track = addBooleanOption('t', "track-execution", TRACK_EXECUTION);
+        jobs = addIntegerOption('j', "jobs", PARALLEL_JOBS, "<n>");
+        daemon = addBooleanOption('\0', "daemon", RUN_AS_DAEMON);
+        watch = addBooleanOption('w', "watch", WATCH);
+        traceFile = addOption("trace-file", TRACE_FILE, "<file>");
         debug = addOption('d', "debug", DEBUG, "<info type>");
         debug.addValidValue(DebugOption.ALL);
 
@@ -123,9 +132,27 @@ class ApbOptions
             }
         }
 
+        if (jobs.getValue() > 0) {
+            result.put(Constants.PARALLEL_JOBS_PROPERTY, String.valueOf(jobs.getValue()));
+        }
+
+        if (traceFile.getValue() != null) {
+            result.put(Constants.TRACE_FILE_PROPERTY, traceFile.getValue());
+        }
+
         return result;
     }
 
+    public boolean daemon()
+    {
+        return daemon.getValue();
+    }
+
+    public boolean watch()
+    {
+        return watch.getValue();
+    }
+
     public boolean showStackTrace()
     {
         return showStackTrace.getValue();
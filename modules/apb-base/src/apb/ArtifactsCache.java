@@ -51,7 +51,7 @@ class ArtifactsCache
 
     //~ Methods ..............................................................................................
 
-    @NotNull public File getArtifact(@NotNull String group, @NotNull String relativeUrl, @NotNull File target)
+    @NotNull public synchronized File getArtifact(@NotNull String group, @NotNull String relativeUrl, @NotNull File target)
     {
         final String path = target.getPath();
         File         result = map.get(path);
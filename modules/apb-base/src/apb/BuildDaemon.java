@@ -0,0 +1,320 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.math.BigInteger;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import apb.compiler.InMemJavaC;
+
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.DaemonClient.BUILD;
+import static apb.DaemonClient.ERR;
+import static apb.DaemonClient.EXIT;
+import static apb.DaemonClient.OUT;
+import static apb.DaemonClient.STOP;
+
+/**
+ * A long lived build server.
+ * It keeps the JVM (and the compiler) warm and the compiled project definitions in memory between builds,
+ * and executes the builds sent by a {@link DaemonClient} over a local socket.
+ * Definitions are only recompiled when one of their sources changes.
+ * Builds are executed one at a time, and only from the directory where the daemon was started.
+ */
+class BuildDaemon
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The definitions compiled by the last build
+     */
+    @Nullable private InMemJavaC definitions;
+
+    /**
+     * The index of definitions used when no module is specified
+     */
+    @Nullable private DefinitionsIndex index;
+
+    /**
+     * The project path used to build the index
+     */
+    @Nullable private Set<File> indexPath;
+
+    /**
+     * The directory where the daemon was started
+     */
+    @NotNull private final String directory;
+
+    /**
+     * The environment the daemon was started with
+     */
+    @NotNull private final Environment env;
+
+    //~ Constructors .........................................................................................
+
+    BuildDaemon(@NotNull Environment env)
+    {
+        this.env = env;
+        directory = FileUtils.getCurrentWorkingDirectory();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Serve requests until a stop request is received
+     */
+    void run()
+        throws IOException
+    {
+        final ServerSocket server = new ServerSocket(port(), 0, InetAddress.getByName(null));
+        final String       token = new BigInteger(130, new SecureRandom()).toString(32);
+        final File         portFile = DaemonClient.portFile(directory);
+
+        try {
+            publish(portFile, server.getLocalPort(), token);
+            env.logInfo("Build daemon listening on port %d\n", server.getLocalPort());
+            Apb.setAvoidSystemExit(true);
+
+            boolean stop = false;
+
+            while (!stop) {
+                final Socket socket = server.accept();
+
+                try {
+                    stop = serve(socket, token);
+                }
+                catch (IOException e) {
+                    env.logWarning("Build request failed: %s\n", e.getMessage());
+                }
+                finally {
+                    socket.close();
+                }
+            }
+        }
+        finally {
+            server.close();
+            portFile.delete();
+        }
+
+        env.logInfo("Build daemon stopped\n");
+    }
+
+    /**
+     * Create the ProjectBuilder for a build.
+     * If none of the definitions changed since the last build, the compiled classes are reused
+     * (But defined in a new ClassLoader, so static state is not shared between builds)
+     */
+    @NotNull ProjectBuilder createProjectBuilder(@NotNull Environment e, @NotNull Set<File> projectPath)
+    {
+        if (definitions == null || !definitions.isUpToDate(e)) {
+            definitions = new InMemJavaC(e);
+            index = null;
+        }
+        else {
+            definitions = new InMemJavaC(e, definitions);
+        }
+
+        return new ProjectBuilder(e, projectPath, definitions);
+    }
+
+    /**
+     * Get the index of definitions, it is kept in memory until a definition changes
+     */
+    @NotNull DefinitionsIndex definitionsIndex(@NotNull Environment e, @NotNull Set<File> projectPath)
+    {
+        if (index == null || !projectPath.equals(indexPath) ||
+                definitions != null && !definitions.isUpToDate(e)) {
+            index = new DefinitionsIndex(e, projectPath);
+            indexPath = projectPath;
+        }
+
+        return index;
+    }
+
+    /**
+     * Serve a request, returns true if the daemon must stop
+     */
+    private boolean serve(Socket socket, String token)
+        throws IOException
+    {
+        final DataInputStream  in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+
+        if (!token.equals(in.readUTF())) {
+            throw new IOException("Invalid token from: " + socket.getInetAddress());
+        }
+
+        final byte         request = in.readByte();
+        final String       dir = in.readUTF();
+        final List<String> args = new ArrayList<String>();
+
+        for (int n = in.readInt(); n > 0; n--) {
+            args.add(in.readUTF());
+        }
+
+        final int status;
+
+        if (!directory.equals(dir)) {
+            final PrintStream err = new PrintStream(new FrameOutputStream(out, ERR));
+            err.println("The apb daemon was started in: " + directory);
+            err.flush();
+            status = 1;
+        }
+        else if (request == BUILD) {
+            status = build(args, out);
+        }
+        else {
+            status = request == STOP ? 0 : 1;
+        }
+
+        out.writeByte(EXIT);
+        out.writeInt(status);
+        out.flush();
+        return request == STOP && status == 0;
+    }
+
+    /**
+     * Execute a build redirecting the output to the client
+     */
+    private int build(List<String> args, DataOutputStream out)
+    {
+        final PrintStream prevOut = System.out;
+        final PrintStream prevErr = System.err;
+        final PrintStream buildOut = new PrintStream(new FrameOutputStream(out, OUT), true);
+        final PrintStream buildErr = new PrintStream(new FrameOutputStream(out, ERR), true);
+
+        System.setOut(buildOut);
+        System.setErr(buildErr);
+
+        int status;
+
+        try {
+            ApbOptions   options = new ApbOptions(args);
+            List<String> arguments = options.parse();
+            Environment  e = Apb.createBaseEnvironment(options);
+
+            status = Main.build(e, options, arguments, this) ? 0 : 1;
+        }
+        catch (Apb.ExitException e) {
+            status = e.getStatus();
+        }
+        catch (Throwable t) {
+            t.printStackTrace();
+            status = 1;
+        }
+        finally {
+            buildOut.flush();
+            buildErr.flush();
+            System.setOut(prevOut);
+            System.setErr(prevErr);
+            Apb.setCurrentEnv(env);
+        }
+
+        return status;
+    }
+
+    private int port()
+    {
+        final String port = env.getProperty(Constants.DAEMON_PORT_PROPERTY, "0");
+
+        try {
+            return Integer.parseInt(port.trim());
+        }
+        catch (NumberFormatException e) {
+            env.logWarning("Invalid value for '%s': %s\n", Constants.DAEMON_PORT_PROPERTY, port);
+            return 0;
+        }
+    }
+
+    /**
+     * Publish the port and the token to be used by clients in a file only readable by the current user
+     */
+    private static void publish(File portFile, int port, String token)
+        throws IOException
+    {
+        FileUtils.validateDirectory(portFile.getParentFile());
+        portFile.delete();
+
+        if (!portFile.createNewFile() || !portFile.setReadable(false, false) || !portFile.setReadable(true, true)) {
+            throw new IOException("Cannot create: " + portFile);
+        }
+
+        final PrintStream p = new PrintStream(portFile);
+        p.println(port);
+        p.println(token);
+        p.close();
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * An OutputStream that sends what is written to it as frames of the given kind
+     */
+    private static class FrameOutputStream
+        extends OutputStream
+    {
+        private final byte             kind;
+        private final DataOutputStream out;
+
+        FrameOutputStream(DataOutputStream out, byte kind)
+        {
+            this.out = out;
+            this.kind = kind;
+        }
+
+        @Override public void write(int b)
+            throws IOException
+        {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override public void write(byte[] b, int off, int len)
+            throws IOException
+        {
+            // Both frame kinds share the underlying stream
+            synchronized (out) {
+                out.writeByte(kind);
+                out.writeInt(len);
+                out.write(b, off, len);
+            }
+        }
+
+        @Override public void flush()
+            throws IOException
+        {
+            out.flush();
+        }
+    }
+}
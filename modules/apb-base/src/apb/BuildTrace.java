@@ -0,0 +1,324 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.StringUtils.isEmpty;
+
+/**
+ * A timeline of the execution of a build, in the Chrome trace event format
+ * (It can be loaded in chrome://tracing or https://ui.perfetto.dev).
+ * Spans are nested by time in each thread: module, command and task.
+ * Each span records the garbage collections done while it was open, and the heap usage is
+ * added as a counter when it ends, so pauses can be correlated with the build steps.
+ * When no trace file is specified spans do nothing, so they can be used freely.
+ */
+public class BuildTrace
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The start of the build, in nanoseconds
+     */
+    private final long startTime;
+
+    /**
+     * The file where the trace is written
+     */
+    @NotNull private final File file;
+
+    /**
+     * The events, in JSON format
+     */
+    @NotNull private final List<String> events;
+
+    /**
+     * The threads already named in the trace
+     */
+    @NotNull private final Set<Long> threads;
+
+    //~ Constructors .........................................................................................
+
+    private BuildTrace(@NotNull File file)
+    {
+        this.file = file;
+        startTime = System.nanoTime();
+        events = new ArrayList<String>();
+        threads = new HashSet<Long>();
+        events.add("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":1,\"args\":{\"name\":" +
+                   quote("apb (" + System.getProperty("java.vm.name") + " " +
+                         System.getProperty("java.version") + ")") + "}}");
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Start tracing the build if a trace file was specified for the environment
+     */
+    static void start(@NotNull Environment env)
+    {
+        final String fileName = env.getProperty(Constants.TRACE_FILE_PROPERTY, "");
+        current = isEmpty(fileName) ? null : new BuildTrace(env.fileFromBase(fileName));
+    }
+
+    /**
+     * Stop tracing and write the trace file
+     */
+    static void finish(@NotNull Environment env)
+    {
+        final BuildTrace trace = current;
+
+        if (trace != null) {
+            current = null;
+
+            try {
+                trace.write();
+                env.logInfo("Trace written to: %s\n", FileUtils.normalizePath(trace.file));
+            }
+            catch (IOException e) {
+                env.logWarning("Cannot write trace file: %s. Cause: %s\n", trace.file, e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the build is being traced
+     */
+    public static boolean isEnabled()
+    {
+        return current != null;
+    }
+
+    /**
+     * Begin a span in the current thread
+     * @param category The category of the span (Like 'module', 'command' or 'task')
+     * @param name The name of the span
+     * @return The span, that must be ended when the work finishes
+     */
+    @NotNull public static Span begin(@NotNull String category, @NotNull String name)
+    {
+        final BuildTrace trace = current;
+        return trace == null ? NO_SPAN : new Span(trace, category, name);
+    }
+
+    private synchronized void add(@NotNull Span span, long endTime)
+    {
+        final Thread thread = Thread.currentThread();
+
+        if (threads.add(thread.getId())) {
+            events.add("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":1,\"tid\":" + thread.getId() +
+                       ",\"args\":{\"name\":" + quote(thread.getName()) + "}}");
+        }
+
+        final StringBuilder event = new StringBuilder();
+        event.append("{\"name\":").append(quote(span.name));
+        event.append(",\"cat\":").append(quote(span.category));
+        event.append(",\"ph\":\"X\",\"pid\":1,\"tid\":").append(thread.getId());
+        event.append(",\"ts\":").append(micros(span.startTime));
+        event.append(",\"dur\":").append(micros(endTime) - micros(span.startTime));
+
+        if (span.args != null) {
+            event.append(",\"args\":{").append(span.args).append('}');
+        }
+
+        events.add(event.append('}').toString());
+
+        final MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        events.add("{\"name\":\"heap\",\"ph\":\"C\",\"pid\":1,\"ts\":" + micros(endTime) +
+                   ",\"args\":{\"used\":" + heap.getUsed() / MB + ",\"committed\":" + heap.getCommitted() / MB +
+                   "}}");
+    }
+
+    /**
+     * The number of garbage collections, and the time spent on them (in milliseconds)
+     * since the start of the virtual machine
+     */
+    private static long[] gcStatistics()
+    {
+        final long[] result = new long[2];
+
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result[0] += Math.max(gc.getCollectionCount(), 0);
+            result[1] += Math.max(gc.getCollectionTime(), 0);
+        }
+
+        return result;
+    }
+
+    private long micros(long nanos)
+    {
+        return (nanos - startTime) / 1000;
+    }
+
+    private synchronized void write()
+        throws IOException
+    {
+        final PrintWriter out = new PrintWriter(FileUtils.createWriter(file));
+
+        try {
+            out.println("{\"traceEvents\":[");
+
+            for (int i = 0; i < events.size(); i++) {
+                out.print(events.get(i));
+                out.println(i < events.size() - 1 ? "," : "");
+            }
+
+            out.println("],\"displayTimeUnit\":\"ms\"}");
+        }
+        finally {
+            out.close();
+        }
+
+        if (out.checkError()) {
+            throw new IOException("Error writing: " + file);
+        }
+    }
+
+    private static String quote(String str)
+    {
+        final StringBuilder result = new StringBuilder(str.length() + 2);
+        result.append('"');
+
+        for (int i = 0; i < str.length(); i++) {
+            final char chr = str.charAt(i);
+
+            if (chr == '"' || chr == '\\') {
+                result.append('\\').append(chr);
+            }
+            else if (chr < ' ') {
+                result.append(String.format("\\u%04x", (int) chr));
+            }
+            else {
+                result.append(chr);
+            }
+        }
+
+        return result.append('"').toString();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The trace of the current build (null if it is not being traced)
+     */
+    @Nullable private static volatile BuildTrace current;
+
+    /**
+     * Span categories
+     */
+    public static final String BUILD = "build";
+    public static final String MODULE = "module";
+    public static final String COMMAND = "command";
+    public static final String TASK = "task";
+
+    private static final Span NO_SPAN = new Span(null, "", "");
+
+    private static final long MB = 1024 * 1024;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A span of time in the trace.
+     * Arguments (Like the number of files processed) can be added until it is ended.
+     */
+    public static class Span
+    {
+        private final long                 startTime;
+        @Nullable private final long[]     startGc;
+        @Nullable private final BuildTrace trace;
+        @Nullable private StringBuilder    args;
+        @NotNull private final String      category;
+        @NotNull private final String      name;
+
+        private Span(@Nullable BuildTrace trace, @NotNull String category, @NotNull String name)
+        {
+            this.trace = trace;
+            this.category = category;
+            this.name = name;
+            startTime = trace == null ? 0 : System.nanoTime();
+            startGc = trace == null ? null : gcStatistics();
+        }
+
+        /**
+         * Add a numeric argument to the span
+         */
+        public Span arg(@NotNull String key, long value)
+        {
+            if (trace != null) {
+                appendKey(key).append(value);
+            }
+
+            return this;
+        }
+
+        /**
+         * Add an argument to the span
+         */
+        public Span arg(@NotNull String key, @NotNull String value)
+        {
+            if (trace != null) {
+                appendKey(key).append(quote(value));
+            }
+
+            return this;
+        }
+
+        /**
+         * End the span, adding it to the trace
+         */
+        public void end()
+        {
+            if (trace != null && startGc != null) {
+                final long   endTime = System.nanoTime();
+                final long[] gc = gcStatistics();
+
+                if (gc[0] > startGc[0]) {
+                    arg("gc.count", gc[0] - startGc[0]).arg("gc.ms", gc[1] - startGc[1]);
+                }
+
+                trace.add(this, endTime);
+            }
+        }
+
+        private StringBuilder appendKey(String key)
+        {
+            if (args == null) {
+                args = new StringBuilder();
+            }
+            else {
+                args.append(',');
+            }
+
+            return args.append(quote(key)).append(':');
+        }
+    }
+}
@@ -0,0 +1,217 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import apb.utils.ChangeDetector;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Builds the specified modules again each time their files change (The '--watch' option).
+ * As a {@link BuildDaemon}, it keeps the JVM and the compiled definitions between builds.
+ * The definitions, source and resource directories of the modules involved in each argument
+ * are polled for changes (Skipping the output directories), and only the arguments affected by them are built again.
+ * (The directories are polled, as there is no file system notification API in the supported java versions)
+ * Most polls only check the modification time of the directories, that changes when files are added, removed
+ * or replaced (As most editors do when saving), the files themselves are only checked every few polls.
+ */
+class BuildWatcher
+    extends BuildDaemon
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The builders created by the current build (One for each argument built, in the same order)
+     */
+    @NotNull private final List<ProjectBuilder> builders;
+
+    /**
+     * The arguments (Modules and commands) to execute
+     */
+    @NotNull private List<String> arguments;
+
+    /**
+     * The options apb was invoked with
+     */
+    @NotNull private final ApbOptions options;
+
+    /**
+     * The environment the watcher was started with
+     */
+    @NotNull private final Environment baseEnv;
+
+    /**
+     * The changes in the files watched for each argument
+     */
+    @NotNull private final ChangeDetector changes;
+
+    //~ Constructors .........................................................................................
+
+    BuildWatcher(@NotNull Environment env, @NotNull ApbOptions options, @NotNull List<String> arguments)
+    {
+        super(env);
+        baseEnv = env;
+        this.options = options;
+        this.arguments = arguments;
+        builders = new ArrayList<ProjectBuilder>();
+        changes = new ChangeDetector();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Build, and build again when something changes (Until the process is killed)
+     */
+    void watch()
+        throws InterruptedException
+    {
+        Apb.setAvoidSystemExit(true);
+
+        if (arguments.isEmpty()) {
+            arguments = Main.searchDefault(baseEnv, options, Apb.loadProjectPath(), this);
+        }
+
+        build(arguments);
+        changes.poll(true);
+
+        for (int polls = 1; ; polls++) {
+            Thread.sleep(POLL_INTERVAL);
+
+            // Files modified in place are only detected when the files are checked
+            if (changes.poll(polls % (FILES_POLL_INTERVAL / POLL_INTERVAL) == 0)) {
+                // Wait for the end of a burst of changes (Like saving many files or a checkout)
+                do {
+                    Thread.sleep(QUIET_PERIOD);
+                }
+                while (changes.poll(true));
+
+                // Relative to the state before the build, so the changes made while building are detected
+                // in the next poll (The files generated by the build are in the output directories, that are not
+                // watched)
+                final List<String> affected = changes.changedKeys();
+
+                if (!affected.isEmpty()) {
+                    build(affected);
+                }
+            }
+        }
+    }
+
+    @NotNull @Override ProjectBuilder createProjectBuilder(@NotNull Environment e, @NotNull Set<File> projectPath)
+    {
+        final ProjectBuilder result = super.createProjectBuilder(e, projectPath);
+        builders.add(result);
+        return result;
+    }
+
+    /**
+     * Build the arguments, and update the files watched for them
+     * (The modules loaded for the first time are watched from now on)
+     */
+    private void build(@NotNull List<String> args)
+    {
+        builders.clear();
+
+        try {
+            Main.build(Apb.createBaseEnvironment(options), options, args, this);
+        }
+        catch (Apb.ExitException e) {
+            // Nothing to do, keep watching
+        }
+        catch (Throwable t) {
+            baseEnv.logSevere("%s\n", t.toString());
+        }
+        finally {
+            Apb.setCurrentEnv(baseEnv);
+        }
+
+        for (int i = 0; i < args.size(); i++) {
+            final Set<File> files = new LinkedHashSet<File>();
+
+            if (i < builders.size() && builders.size() == args.size()) {
+                for (ProjectElementHelper helper : builders.get(i).getHelpers()) {
+                    addWatchedFiles(files, helper);
+                }
+            }
+
+            // If the definitions cannot be loaded watch the project path for them
+            if (files.isEmpty()) {
+                files.addAll(Apb.loadProjectPath());
+            }
+
+            // The previous files are kept (The build may have failed before loading all the modules)
+            changes.watch(args.get(i), files);
+        }
+
+        builders.clear();
+        baseEnv.logInfo("Watching for changes...\n");
+    }
+
+    private void addWatchedFiles(@NotNull Set<File> files, @NotNull ProjectElementHelper helper)
+    {
+        files.add(helper.getSourceFile());
+
+        if (helper instanceof ModuleHelper) {
+            final ModuleHelper module = (ModuleHelper) helper;
+
+            try {
+                changes.exclude(module.fileFromBase(module.getModule().outputBase));
+                changes.exclude(module.getOutput());
+                changes.exclude(module.getGeneratedSource());
+
+                if (module.hasPackage()) {
+                    changes.exclude(module.getPackageFile());
+                    changes.exclude(module.getSourcePackageFile());
+                }
+
+                for (File dir : module.getSourceDirs()) {
+                    if (!changes.isExcluded(dir)) {
+                        files.add(dir);
+                    }
+                }
+
+                files.add(module.fileFromBase(module.getResourcesInfo().dir));
+            }
+            catch (RuntimeException e) {
+                // The module was not activated, just watch its definition
+            }
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The time between polls for changes (In milliseconds)
+     */
+    private static final long POLL_INTERVAL = 500;
+
+    /**
+     * The time between polls that check the files, and not only the directories (In milliseconds)
+     */
+    private static final long FILES_POLL_INTERVAL = 2000;
+
+    /**
+     * The time without changes to wait before building (In milliseconds)
+     */
+    private static final long QUIET_PERIOD = 200;
+}
@@ -37,6 +37,15 @@ public class Constants
     public static final String PROJECT_PATH_EXCLUDE_PROPERTY = "project.path.exclude";
     public static final String REPOSITORY_PROPERTY = "repository";
     public static final String DEFINITIONS_CACHE_PROPERTY = "definitions.cache";
+    public static final String DEFINITIONS_CLASS_CACHE_PROPERTY = "definitions.class-cache";
+    public static final String PARALLEL_JOBS_PROPERTY = "parallel-jobs";
+    public static final String DAEMON_PORT_PROPERTY = "daemon.port";
+    public static final String TRACE_FILE_PROPERTY = "trace-file";
+    public static final String BUILD_CACHE_PROPERTY = "build.cache";
+    public static final String BUILD_CACHE_SIZE_PROPERTY = "build.cache.size";
+    public static final String BUILD_CACHE_DIR_PROPERTY = "build.cache.dir";
+    public static final String JAVAC_ARCHIVE_CACHE_PROPERTY = "javac.archive-cache";
+    public static final String JAVAC_PACKAGE_INDEX_PROPERTY = "javac.package-index";
 
     /**
      * Environment variables names
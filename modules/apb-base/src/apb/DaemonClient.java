@@ -0,0 +1,155 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A thin client that sends a build to the {@link BuildDaemon} started in the current directory,
+ * and prints the output of the build.
+ * It is intentionally small, so it starts fast and does not load the rest of apb.
+ * Usage: apbc [apb options] Mod.command ... (or 'apbc --stop' to stop the daemon)
+ */
+public class DaemonClient
+{
+    //~ Methods ..............................................................................................
+
+    public static void main(String[] args)
+        throws IOException
+    {
+        final String dir = System.getProperty("user.dir");
+        final File   portFile = portFile(dir);
+
+        int    port = 0;
+        String token = "";
+
+        if (portFile.exists()) {
+            BufferedReader reader = new BufferedReader(new FileReader(portFile));
+
+            try {
+                port = Integer.parseInt(reader.readLine());
+                token = reader.readLine();
+            }
+            catch (NumberFormatException ignore) {
+                // Treated as no daemon
+            }
+            finally {
+                reader.close();
+            }
+        }
+
+        Socket socket = null;
+
+        try {
+            socket = port == 0 ? null : new Socket(InetAddress.getByName(null), port);
+        }
+        catch (IOException ignore) {
+            // Stale port file
+        }
+
+        if (socket == null) {
+            System.err.println("No apb daemon running in: " + dir + " (Start it with 'apb --daemon')");
+            System.exit(NO_DAEMON);
+        }
+
+        try {
+            final boolean stop = args.length == 1 && args[0].equals("--stop");
+
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeUTF(token);
+            out.writeByte(stop ? STOP : BUILD);
+            out.writeUTF(dir);
+            out.writeInt(args.length);
+
+            for (String arg : args) {
+                out.writeUTF(arg);
+            }
+
+            out.flush();
+
+            System.exit(readResponse(new DataInputStream(new BufferedInputStream(socket.getInputStream()))));
+        }
+        finally {
+            socket.close();
+        }
+    }
+
+    /**
+     * The file where a daemon started in the specified directory publishes its port
+     * @param dir The directory where the daemon is started
+     */
+    @NotNull static File portFile(@NotNull String dir)
+    {
+        final File apbDir = new File(System.getProperty("user.home"), Constants.APB_DIR);
+        return new File(apbDir, "daemon-" + Integer.toHexString(dir.hashCode()) + ".port");
+    }
+
+    private static int readResponse(DataInputStream in)
+        throws IOException
+    {
+        byte[] buffer = new byte[BUFFER_SIZE];
+
+        while (true) {
+            final byte kind = in.readByte();
+
+            if (kind == EXIT) {
+                return in.readInt();
+            }
+
+            final PrintStream target = kind == ERR ? System.err : System.out;
+
+            for (int n = in.readInt(); n > 0;) {
+                final int chunk = Math.min(n, buffer.length);
+                in.readFully(buffer, 0, chunk);
+                target.write(buffer, 0, chunk);
+                n -= chunk;
+            }
+
+            target.flush();
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * Request types
+     */
+    static final byte BUILD = 1;
+    static final byte STOP = 2;
+
+    /**
+     * Response frame types
+     */
+    static final byte EXIT = 0;
+    static final byte OUT = 1;
+    static final byte ERR = 2;
+
+    private static final int NO_DAEMON = 2;
+    private static final int BUFFER_SIZE = 8192;
+}
@@ -28,10 +28,18 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Set;
 
+import apb.compiler.CompilerService;
+
+import apb.tasks.ActionCache;
+import apb.tasks.MemoryOutput;
+
 import apb.utils.FileUtils;
 
+import org.jetbrains.annotations.Nullable;
+
 import static java.util.Arrays.asList;
 
+import static apb.Messages.BUILD_CACHE_STATS;
 import static apb.Messages.BUILD_COMPLETED;
 import static apb.Messages.BUILD_FAILED;
 
@@ -55,17 +63,36 @@ public class Main
 
         Environment env = Apb.createBaseEnvironment(options);
 
+        if (options.daemon()) {
+            new BuildDaemon(env).run();
+        }
+        else if (options.watch()) {
+            new BuildWatcher(env, options, arguments).watch();
+        }
+        else if (!build(env, options, arguments, null)) {
+            Apb.exit(1);
+        }
+    }
+
+    /**
+     * Execute the build specified by the arguments
+     * @param env The base environment
+     * @param options The parsed options
+     * @param arguments The arguments (Modules and commands) to execute
+     * @param daemon The daemon that keeps the definitions between builds (null if not running as a daemon)
+     * @return true if the build was successful
+     */
+    static boolean build(Environment env, ApbOptions options, List<String> arguments,
+                         @Nullable BuildDaemon daemon)
+        throws Throwable
+    {
         final Set<File> path = Apb.loadProjectPath();
 
         if (arguments.isEmpty()) {
-            arguments = searchDefault(env, options, path);
+            arguments = searchDefault(env, options, path, daemon);
         }
 
-        boolean success = Main.execute(env, arguments, path, options.showStackTrace());
-
-        if (!success) {
-            Apb.exit(1);
-        }
+        return Main.execute(env, arguments, path, options.showStackTrace(), daemon);
     }
 
     private static void checkEnvironment()
@@ -110,13 +137,16 @@ public class Main
      * @param env
      * @param options
      * @param projectPath
+     * @param daemon
      * @result The definiton
      */
-    private static List<String> searchDefault(Environment env, ApbOptions options,
-                                              final Set<File> projectPath)
+    static List<String> searchDefault(Environment env, ApbOptions options, final Set<File> projectPath,
+                                      @Nullable BuildDaemon daemon)
     {
-        final List<String> result;
-        final ModuleInfo   info = new DefinitionsIndex(env, projectPath).searchCurrentDirectory();
+        final List<String>     result;
+        final DefinitionsIndex index =
+            daemon == null ? new DefinitionsIndex(env, projectPath) : daemon.definitionsIndex(env, projectPath);
+        final ModuleInfo       info = index.searchCurrentDirectory();
 
         if (info != null) {
             env.logInfo("Executing: %s.%s\n", info.getName(), info.getDefaultCommand());
@@ -132,17 +162,25 @@ public class Main
     }
 
     private static boolean execute(Environment env, List<String> arguments, final Set<File> projectPath,
-                                   boolean showStackTrace)
+                                   boolean showStackTrace, @Nullable BuildDaemon daemon)
         throws Throwable
     {
         Throwable e = null;
         long      clock = System.currentTimeMillis();
 
+        ActionCache.resetStatistics();
+        MemoryOutput.clear();
+        BuildTrace.start(env);
+        CompilerService.start(env);
+
         for (String argument : arguments) {
-            final String[] argParts = splitParts(argument);
+            final String[]        argParts = splitParts(argument);
+            final BuildTrace.Span span = BuildTrace.begin(BuildTrace.BUILD, argument);
 
             try {
-                ProjectBuilder b = new ProjectBuilder(env, projectPath);
+                ProjectBuilder b =
+                    daemon == null ? new ProjectBuilder(env, projectPath)
+                                   : daemon.createProjectBuilder(env, projectPath);
                 b.build(env, argParts[0], argParts[1]);
             }
             catch (DefinitionException d) {
@@ -162,6 +200,17 @@ public class Main
                 e = b.getCause() == null ? b : b.getCause();
                 env.logSevere("%s\n", b.getMessage());
             }
+            finally {
+                span.end();
+            }
+        }
+
+        CompilerService.finish(env);
+        BuildTrace.finish(env);
+        MemoryOutput.clear();
+
+        if (ActionCache.getHits() + ActionCache.getMisses() > 0) {
+            env.logInfo(BUILD_CACHE_STATS(ActionCache.getHits(), ActionCache.getMisses()));
         }
 
         if (e == null) {
@@ -82,11 +82,22 @@ public class Messages
         return "\nBUILD COMPLETED in " + ts + " milliseconds.\n";
     }
 
+    public static String BUILD_CACHE_STATS(int hits, int misses)
+    {
+        return "Build cache: " + hits + " hit" + (hits == 1 ? "" : "s") + ", " + misses + " miss" +
+               (misses == 1 ? "" : "es") + ".\n";
+    }
+
     public static String MANIFEST_OVERRIDE(final File file)
     {
         return "Module's manifest is overriden by " + file.getAbsolutePath() + "\n";
     }
 
+    public static String DUPLICATE_ENTRY(String name, String origin, String previousOrigin)
+    {
+        return "Duplicate entry '" + name + "' in " + origin + " (Using the one in " + previousOrigin + ")\n";
+    }
+
     //~ Static fields/initializers ...........................................................................
 
     public static final String COMMANDS =
@@ -103,6 +114,10 @@ public class Messages
     @NonNls public static final String NON_RECURSIVE = "Do not recurse over module dependencies.";
     @NonNls public static final String DEFINE_PROPERTY = "Define a property.";
     @NonNls public static final String TRACK_EXECUTION = "Track execution statistics.";
+    @NonNls public static final String PARALLEL_JOBS = "Number of modules to build in parallel.";
+    @NonNls public static final String RUN_AS_DAEMON = "Run as a build daemon serving 'apbc' requests.";
+    @NonNls public static final String WATCH = "Keep running, and build again when the sources change.";
+    @NonNls public static final String TRACE_FILE = "Write a timeline of the build in Chrome trace format.";
     @NonNls public static final String DEBUG = "What to show when doing verbose output.";
     @NonNls public static final String COLON_SEPARATED_PATTERNS = "<pattern:pattern..>";
     @NonNls public static final String SET_TO_INCLUDE = "Set of test files to include.";
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -55,6 +56,7 @@ import org.jetbrains.annotations.Nullable;
 import static apb.tasks.CoreTasks.*;
 
 import static apb.utils.CollectionUtils.addIfNotNull;
+import static apb.utils.CollectionUtils.mergeSets;
 //
 // User: emilio
 // Date: Sep 15, 2008
@@ -400,7 +402,11 @@ public class ModuleHelper
                                      .version(getModule().version)  //
                                      .manifestAttributes(packageInfo.attributes())  //
                                      .withClassPath(manifestClassPath())  //
-                                     .withServices(services).excluding(packageInfo.excludes());
+                                     .withServices(services).excluding(packageInfo.excludes())  //
+                                     .incremental(true)  //
+                                     .reproducible(packageInfo.reproducible)  //
+                                     .onDuplicates(packageInfo.duplicateEntries)  //
+                                     .useCache(true);
 
             // prepare dependencies included in package
 
@@ -411,6 +417,13 @@ public class ModuleHelper
                 }
             }
 
+            if (packageInfo.includeLibraries) {
+                for (File library : librariesToPackage(additionalDeps)) {
+                    logVerbose("Adding library '%s'.\n", library.getPath());
+                    jarTask.addJar(library);
+                }
+            }
+
             // run task
             jarTask.execute();
 
@@ -449,6 +462,9 @@ public class ModuleHelper
                            .usingDefaultFormatter(info.defaultErrorFormatter)  //
                            .excludeFromWarning(info.warnExcludes())  //
                            .instrumentNotNull(info.instrumentNotNull)  //
+                           .incremental(info.incremental)  //
+                           .recordAbi(true)  //
+                           .useCache(true)  //
                            .useName(getName());
 
         if (!info.warnGenerated) {
@@ -589,23 +605,6 @@ public class ModuleHelper
         return s.substring(s.charAt(0) == '-' ? 1 : 0, s.charAt(l - 1) == '-' ? l - 1 : l);
     }
 
-    private static void mergeServices(Map<String, Set<String>> mergedServices,
-                                      Map<String, Set<String>> services)
-    {
-        for (Map.Entry<String, Set<String>> e : services.entrySet()) {
-            String            service = e.getKey();
-            Set<String>       providers = e.getValue();
-            final Set<String> mergedProviders = mergedServices.get(service);
-
-            if (mergedProviders == null) {
-                mergedServices.put(service, new HashSet<String>(providers));
-            }
-            else {
-                mergedProviders.addAll(providers);
-            }
-        }
-    }
-
     private List<Library> getExtraLibraries()
     {
         final List<Library> result = new ArrayList<Library>(getCompileInfo().extraLibraries());
@@ -646,14 +645,39 @@ public class ModuleHelper
         Map<String, Set<String>> mergedServices = new HashMap<String, Set<String>>();
 
         for (Module m : additionalDeps) {
-            mergeServices(mergedServices, m.pkg.services());
+            mergeSets(mergedServices, m.pkg.services());
         }
 
-        mergeServices(mergedServices, services);
+        mergeSets(mergedServices, services);
 
         return mergedServices;
     }
 
+    /**
+     * The jars of the libraries needed at runtime by this module and the modules included in the package
+     */
+    private Collection<File> librariesToPackage(List<Module> modules)
+    {
+        final Set<File> result = new LinkedHashSet<File>();
+        addLibraries(result, getDirectDependencies());
+
+        for (Module m : modules) {
+            addLibraries(result, m.dependencies());
+        }
+
+        addLibraries(result, getPackageInfo().additionalDependencies());
+        return result;
+    }
+
+    private void addLibraries(Set<File> result, Iterable<Dependency> dependencyList)
+    {
+        for (Dependency dependency : dependencyList) {
+            if (dependency.isLibrary() && dependency.mustInclude(false)) {
+                addIfNotNull(result, dependency.asLibrary().getArtifact(this, PackageType.JAR));
+            }
+        }
+    }
+
     private List<Module> modulesToPackage()
     {
         final PackageInfo packageInfo = getPackageInfo();
@@ -69,6 +69,8 @@ class ModulesInfo
 
     void loadModulesInfo(Environment e, ProjectBuilder pb, List<File> files)
     {
+        pb.compileDefinitions(path, files);
+
         for (File file : files) {
             ProjectElementHelper element = pb.constructProjectElement(e, path, file);
 
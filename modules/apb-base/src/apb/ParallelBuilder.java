@@ -0,0 +1,234 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Executes a command over a set of elements using a pool of worker threads.
+ * The elements are scheduled over their dependency graph, so an element starts
+ * as soon as all the elements it depends on have finished.
+ * The output of each element is grouped and printed when the element finishes.
+ */
+class ParallelBuilder
+{
+    //~ Instance fields ......................................................................................
+
+    private final int jobs;
+
+    @NotNull private final ProjectBuilder pb;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Create a ParallelBuilder
+     * @param pb The ProjectBuilder used to execute the commands
+     * @param jobs The maximum number of elements to be processed concurrently
+     */
+    ParallelBuilder(@NotNull ProjectBuilder pb, int jobs)
+    {
+        this.pb = pb;
+        this.jobs = jobs;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Returns true if the current thread is a worker of a ParallelBuilder
+     */
+    static boolean isWorker()
+    {
+        return Thread.currentThread() instanceof Worker;
+    }
+
+    /**
+     * Execute the command over the specified elements
+     * @param elements The elements to execute the command over
+     * @param commandName The command to execute
+     */
+    void execute(@NotNull List<? extends ProjectElementHelper> elements, @NotNull String commandName)
+    {
+        final Set<ProjectElementHelper> all = new HashSet<ProjectElementHelper>(elements);
+
+        // Build the dependency graph restricted to the elements to process
+
+        final Map<ProjectElementHelper, Set<ProjectElementHelper>>  pending =
+            new HashMap<ProjectElementHelper, Set<ProjectElementHelper>>();
+        final Map<ProjectElementHelper, List<ProjectElementHelper>> dependents =
+            new HashMap<ProjectElementHelper, List<ProjectElementHelper>>();
+
+        for (ProjectElementHelper element : elements) {
+            final Set<ProjectElementHelper> upstream = new HashSet<ProjectElementHelper>();
+
+            for (ModuleHelper dep : element.getDependencies()) {
+                if (all.contains(dep) && !dep.equals(element)) {
+                    upstream.add(dep);
+                    dependentsOf(dependents, dep).add(element);
+                }
+            }
+
+            pending.put(element, upstream);
+        }
+
+        final ExecutorService executor =
+            Executors.newFixedThreadPool(Math.min(jobs, elements.size()), new WorkerFactory());
+
+        final CompletionService<ProjectElementHelper> completion =
+            new ExecutorCompletionService<ProjectElementHelper>(executor);
+
+        Throwable failure = null;
+
+        try {
+            int running = 0;
+
+            for (ProjectElementHelper element : elements) {
+                if (pending.get(element).isEmpty()) {
+                    completion.submit(job(element, commandName));
+                    running++;
+                }
+            }
+
+            while (running > 0) {
+                ProjectElementHelper done = null;
+
+                try {
+                    done = completion.take().get();
+                }
+                catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = e.getCause();
+                    }
+                }
+
+                running--;
+
+                if (done != null && failure == null) {
+                    for (ProjectElementHelper dependent : dependentsOf(dependents, done)) {
+                        final Set<ProjectElementHelper> upstream = pending.get(dependent);
+                        upstream.remove(done);
+
+                        if (upstream.isEmpty()) {
+                            completion.submit(job(dependent, commandName));
+                            running++;
+                        }
+                    }
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            failure = e;
+        }
+        finally {
+            executor.shutdownNow();
+        }
+
+        if (failure instanceof RuntimeException) {
+            throw (RuntimeException) failure;
+        }
+
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+
+        if (failure != null) {
+            throw new BuildException(failure);
+        }
+    }
+
+    private static List<ProjectElementHelper> dependentsOf(Map<ProjectElementHelper, List<ProjectElementHelper>> dependents,
+                                                           ProjectElementHelper                                  element)
+    {
+        List<ProjectElementHelper> result = dependents.get(element);
+
+        if (result == null) {
+            result = new ArrayList<ProjectElementHelper>();
+            dependents.put(element, result);
+        }
+
+        return result;
+    }
+
+    private Callable<ProjectElementHelper> job(@NotNull final ProjectElementHelper element,
+                                               @NotNull final String               commandName)
+    {
+        return new Callable<ProjectElementHelper>() {
+                public ProjectElementHelper call()
+                {
+                    final Logger           logger = pb.getBaseEnvironment().getLogger();
+                    final StandaloneLogger grouping =
+                        logger instanceof StandaloneLogger ? (StandaloneLogger) logger : null;
+
+                    Apb.setCurrentEnv(pb.getBaseEnvironment());
+
+                    if (grouping != null) {
+                        grouping.startGroup();
+                    }
+
+                    try {
+                        pb.execute(element, commandName);
+                    }
+                    finally {
+                        if (grouping != null) {
+                            grouping.endGroup();
+                        }
+                    }
+
+                    return element;
+                }
+            };
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The threads used to process elements
+     */
+    private static class Worker
+        extends Thread
+    {
+        Worker(Runnable r, String name)
+        {
+            super(r, name);
+            setDaemon(true);
+        }
+    }
+
+    private static class WorkerFactory
+        implements ThreadFactory
+    {
+        private int count;
+
+        public synchronized Thread newThread(Runnable r)
+        {
+            return new Worker(r, "apb-worker-" + ++count);
+        }
+    }
+}
@@ -22,8 +22,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.lang.reflect.Constructor;
 import java.lang.reflect.InvocationTargetException;
+import java.util.Collection;
 import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -52,11 +54,6 @@ public class ProjectBuilder
 {
     //~ Instance fields ......................................................................................
 
-    /**
-     * The name of the current module being processed
-     */
-    @NotNull String currentName;
-
     /**
      * The cache of downloaded Artifacts
      */
@@ -67,6 +64,11 @@ public class ProjectBuilder
      */
     private final boolean track;
 
+    /**
+     * The maximum number of modules to be processed concurrently
+     */
+    private final int parallelJobs;
+
     /**
      * The initial Environment
      */
@@ -78,10 +80,16 @@ public class ProjectBuilder
     @NotNull private final InMemJavaC javac;
 
     /**
-     * The stack of executions
+     * The stack of executions (One for each thread)
+     */
+    @NotNull private final ThreadLocal<LinkedList<Context>> contextStack;
+
+    /**
+     * The name of the current module being processed (One for each thread)
      */
-    @NotNull private final LinkedList<Context> contextStack;
-    @NotNull private final Logger              logger;
+    @NotNull private final ThreadLocal<String> currentName;
+
+    @NotNull private final Logger logger;
 
     /**
      * A Map that contains all constructed Helpers
@@ -101,16 +109,40 @@ public class ProjectBuilder
      * @param projectPath  The path used to search project definition files
      */
     public ProjectBuilder(Environment env, Set<File> projectPath)
+    {
+        this(env, projectPath, new InMemJavaC(env));
+    }
+
+    /**
+     * Create a new Project Builder that uses the specified compiler to load project definitions
+     * @param env  The base Environment for this builder
+     * @param projectPath  The path used to search project definition files
+     * @param javac The compiler used to load project definitions
+     */
+    ProjectBuilder(Environment env, Set<File> projectPath, @NotNull InMemJavaC javac)
     {
         baseEnvironment = env;
         logger = env.getLogger();
-        javac = new InMemJavaC(env);
+        this.javac = javac;
         helpers = new TreeMap<String, ProjectElementHelper>();
         artifactsCache = new ArtifactsCache(env);
         this.projectPath = projectPath;
-        contextStack = new LinkedList<Context>();
-        currentName = "";
+        contextStack =
+            new ThreadLocal<LinkedList<Context>>() {
+                @Override protected LinkedList<Context> initialValue()
+                {
+                    return new LinkedList<Context>();
+                }
+            };
+        currentName =
+            new ThreadLocal<String>() {
+                @Override protected String initialValue()
+                {
+                    return "";
+                }
+            };
         track = env.mustShow(DebugOption.TRACK);
+        parallelJobs = parallelJobs(env);
 
         if (env instanceof DefaultEnvironment) {
             ((DefaultEnvironment) env).register(this);
@@ -169,7 +201,7 @@ public class ProjectBuilder
     public void build(Environment env, String element, String command)
         throws DefinitionException, BuildException
     {
-        currentName = element;
+        currentName.set(element);
         File       source = projectElementFile(element);
         final File pdir = projectDir(source);
 
@@ -197,7 +229,8 @@ public class ProjectBuilder
      */
     @NotNull public String getCurrentCommand()
     {
-        return contextStack.isEmpty() ? "" : contextStack.getLast().getCommand();
+        final LinkedList<Context> stack = contextStack.get();
+        return stack.isEmpty() ? "" : stack.getLast().getCommand();
     }
 
     /**
@@ -205,7 +238,7 @@ public class ProjectBuilder
      */
     @NotNull public String getCurrentName()
     {
-        return currentName;
+        return currentName.get();
     }
 
     /**
@@ -216,6 +249,14 @@ public class ProjectBuilder
         return baseEnvironment;
     }
 
+    /**
+     * The helpers for all the elements loaded by this builder
+     */
+    @NotNull Collection<ProjectElementHelper> getHelpers()
+    {
+        return helpers.values();
+    }
+
     @Nullable ProjectElementHelper constructProjectElement(Environment env, @NotNull File path,
                                                            @NotNull File file)
     {
@@ -227,6 +268,15 @@ public class ProjectBuilder
         }
     }
 
+    /**
+     * Compile all the definition files of a project directory in one go,
+     * so loading each one of them later does not need to invoke the compiler again
+     */
+    void compileDefinitions(@NotNull File projectDirectory, @NotNull List<File> files)
+    {
+        javac.compile(projectDirectory, files);
+    }
+
     @NotNull File sourceFile(ProjectElement element)
     {
         final File file = javac.sourceFile(element.getClass());
@@ -241,25 +291,70 @@ public class ProjectBuilder
     void build(@NotNull ProjectElementHelper element, @NotNull String commandName)
     {
         startExecution(element.getName(), commandName);
-        element.build(this, commandName);
+
+        try {
+            element.build(this, commandName);
+        }
+        finally {
+            endSpan();
+        }
+
         endExecution();
     }
 
+    /**
+     * Execute the command over a list of elements.
+     * The list must be sorted so every element comes after the ones it depends on.
+     * If parallel jobs are enabled each element is processed as soon as all the elements
+     * it depends on were processed.
+     * @param elements The elements to execute the command over
+     * @param commandName The command to be executed
+     */
+    void execute(@NotNull List<? extends ProjectElementHelper> elements, @NotNull String commandName)
+    {
+        if (parallelJobs > 1 && elements.size() > 1 && !ParallelBuilder.isWorker()) {
+            new ParallelBuilder(this, parallelJobs).execute(elements, commandName);
+        }
+        else {
+            for (ProjectElementHelper element : elements) {
+                execute(element, commandName);
+            }
+        }
+    }
+
     void execute(@NotNull ProjectElementHelper element, @NotNull String commandName)
     {
         Environment prev = Apb.setCurrentEnv(element);
         Command     command = element.findCommand(commandName);
 
         if (command != null && element.notExecuted(command)) {
-            for (Command cmd : command.getDependencies()) {
-                if (element.notExecuted(cmd)) {
-                    final String cmdName = cmd.getName();
-                    startExecution(element.getName(), cmdName);
-                    element.markExecuted(cmd);
-                    cmd.invoke(element.getElement());
-                    endExecution();
+            final BuildTrace.Span span = BuildTrace.begin(BuildTrace.MODULE, element.getName());
+
+            try {
+                for (Command cmd : command.getDependencies()) {
+                    if (element.claim(cmd)) {
+                        try {
+                            startExecution(element.getName(), cmd.getName());
+
+                            try {
+                                cmd.invoke(element.getElement());
+                            }
+                            finally {
+                                endSpan();
+                            }
+
+                            endExecution();
+                        }
+                        finally {
+                            element.release(cmd);
+                        }
+                    }
                 }
             }
+            finally {
+                // Also when failing, so the trace of a failed build shows where it failed
+                span.end();
+            }
         }
 
         Apb.setCurrentEnv(prev);
@@ -270,7 +365,7 @@ public class ProjectBuilder
         StringBuilder result = new StringBuilder();
 
         if (track) {
-            final int depth = contextStack.size();
+            final int depth = contextStack.get().size();
             result.append(apb.utils.StringUtils.nChars(depth * 4, ' '));
         }
 
@@ -371,7 +466,7 @@ public class ProjectBuilder
             final Class<? extends ProjectElement> aClass =
                 javac.loadClass(projectDirectory, file).asSubclass(ProjectElement.class);
             final ProjectElement                  element = aClass.newInstance();
-            currentName = element.getName();
+            currentName.set(element.getName());
             initHelpers();
             element.getHelper().setTopLevel(true);
             return element.getHelper();
@@ -381,10 +476,25 @@ public class ProjectBuilder
         }
     }
 
+    private static int parallelJobs(Environment env)
+    {
+        final String jobs = env.getProperty(Constants.PARALLEL_JOBS_PROPERTY, "1");
+
+        try {
+            return Math.max(1, Integer.parseInt(jobs.trim()));
+        }
+        catch (NumberFormatException e) {
+            env.logWarning("Invalid value for '%s': %s\n", Constants.PARALLEL_JOBS_PROPERTY, jobs);
+            return 1;
+        }
+    }
+
     private void startExecution(@NotNull final String name, @NotNull String command)
     {
-        contextStack.add(new Context(name, command));
-        currentName = name;
+        final BuildTrace.Span span =
+            BuildTrace.begin(BuildTrace.COMMAND, name + "." + command).arg("module", name).arg("command", command);
+        contextStack.get().add(new Context(name, command, span));
+        currentName.set(name);
 
         if (track) {
             logger.log(VERBOSE, "About to execute '%s.%s'\n", name, command);
@@ -393,8 +503,10 @@ public class ProjectBuilder
 
     private void endExecution()
     {
+        final LinkedList<Context> stack = contextStack.get();
+
         if (track) {
-            Context       ctx = contextStack.getLast();
+            Context       ctx = stack.getLast();
             long          ms = System.currentTimeMillis() - ctx.startTime;
             final Runtime runtime = Runtime.getRuntime();
             long          free = runtime.freeMemory() / MB;
@@ -404,8 +516,18 @@ public class ProjectBuilder
                        ctx.getElement(), ctx.getCommand(), ms, total - free, total);
         }
 
-        contextStack.removeLast();
-        currentName = contextStack.isEmpty() ? "" : contextStack.getLast().element;
+        stack.removeLast();
+        currentName.set(stack.isEmpty() ? "" : stack.getLast().element);
+    }
+
+    /**
+     * End the trace span of the command being executed.
+     * It is also ended when the command fails, but then the context is kept,
+     * so the failure is reported with the name of the command.
+     */
+    private void endSpan()
+    {
+        contextStack.get().getLast().span.end();
     }
 
     @NotNull private File projectDir(File projectElementFile)
@@ -491,14 +613,16 @@ public class ProjectBuilder
 
     private static class Context
     {
-        private final long   startTime;
-        private final String command;
-        private final String element;
+        private final long            startTime;
+        private final BuildTrace.Span span;
+        private final String          command;
+        private final String          element;
 
-        public Context(String element, String command)
+        public Context(String element, String command, BuildTrace.Span span)
         {
             this.element = element;
             this.command = command;
+            this.span = span;
             startTime = System.currentTimeMillis();
         }
 
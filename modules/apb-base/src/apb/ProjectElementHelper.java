@@ -19,8 +19,11 @@
 package apb;
 
 import java.io.File;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
@@ -60,6 +63,11 @@ public class ProjectElementHelper
 
     @NotNull private final Set<Command> executedCommands;
 
+    /**
+     * The commands currently being executed, and the thread executing each one of them
+     */
+    @NotNull private final Map<Command, Thread> runningCommands;
+
     //~ Constructors .........................................................................................
 
     ProjectElementHelper(@NotNull ProjectBuilder pb, @NotNull ProjectElement element)
@@ -68,6 +76,7 @@ public class ProjectElementHelper
 
         this.element = element;
         executedCommands = new HashSet<Command>();
+        runningCommands = new HashMap<Command, Thread>();
         infoMap = new TreeMap<String, Object>();
 
         sourceFile = pb.sourceFile(element);
@@ -217,17 +226,22 @@ public class ProjectElementHelper
         }
 
         if (command.isRecursive() && !isNonRecursive()) {
+            List<ProjectElementHelper> elements = new ArrayList<ProjectElementHelper>();
+
             for (ModuleHelper dep : getDependencies()) {
-                pb.execute(dep, commandName);
+                elements.add(dep);
             }
+
+            elements.add(this);
+            pb.execute(elements, commandName);
         }
         else {
             for (Command cmd : command.getDirectDependencies()) {
                 pb.build(this, cmd.getName());
             }
-        }
 
-        pb.execute(this, commandName);
+            pb.execute(this, commandName);
+        }
     }
 
     @NotNull CommandBuilder getCommandBuilder()
@@ -249,14 +263,49 @@ public class ProjectElementHelper
         return getCommandBuilder().commands().get(commandName);
     }
 
-    void markExecuted(Command cmd)
+    synchronized boolean notExecuted(Command cmd)
     {
+        return !executedCommands.contains(cmd);
+    }
+
+    /**
+     * Claim the execution of the command for the current thread.
+     * If another thread is executing the command, wait until it finishes.
+     * @param cmd The command to be executed
+     * @return true if the current thread must execute the command,
+     *         false if it was already executed (or it is being executed by the current thread)
+     */
+    synchronized boolean claim(Command cmd)
+    {
+        final Thread current = Thread.currentThread();
+        Thread       owner;
+
+        while ((owner = runningCommands.get(cmd)) != null && owner != current) {
+            try {
+                wait();
+            }
+            catch (InterruptedException e) {
+                throw new BuildException(e);
+            }
+        }
+
+        if (executedCommands.contains(cmd)) {
+            return false;
+        }
+
         executedCommands.add(cmd);
+        runningCommands.put(cmd, current);
+        return true;
     }
 
-    boolean notExecuted(Command cmd)
+    /**
+     * Signal that the execution of a command previously claimed with {@link #claim(Command)} has finished
+     * @param cmd The executed command
+     */
+    synchronized void release(Command cmd)
     {
-        return !executedCommands.contains(cmd);
+        runningCommands.remove(cmd);
+        notifyAll();
     }
 
     void init()
@@ -40,13 +40,25 @@ public class StandaloneLogger
     private boolean color = true;
     private Level   minLevel = Level.INFO;
 
+    /**
+     * The output being grouped by the current thread (If any)
+     */
+    private final ThreadLocal<Group> group = new ThreadLocal<Group>();
+
     //~ Methods ..............................................................................................
 
     public void log(@NotNull Level level, @NotNull String msg, Object... args)
     {
         if (level.compareTo(minLevel) >= 0) {
             String str = format(args == null || args.length == 0 ? msg : String.format(msg, args));
-            System.out.print(str);
+            Group  g = group.get();
+
+            if (g == null) {
+                System.out.print(str);
+            }
+            else {
+                g.text.append(str);
+            }
         }
     }
 
@@ -54,20 +66,54 @@ public class StandaloneLogger
     {
         String        str = trimColors(msg);
         StringBuilder result = new StringBuilder();
+        Group         g = group.get();
+        boolean       bol = g == null ? beginOfLine : g.beginOfLine;
 
         LineSplitter splitter = new LineSplitter(str);
 
         while (splitter.nextLine()) {
-            if (beginOfLine) {
+            if (bol) {
                 result.append(header());
             }
 
-            beginOfLine = splitter.appendLine(result);
+            bol = splitter.appendLine(result);
+        }
+
+        if (g == null) {
+            beginOfLine = bol;
+        }
+        else {
+            g.beginOfLine = bol;
         }
 
         return result.toString();
     }
 
+    /**
+     * Start grouping the output logged from the current thread.
+     * Nothing is printed until {@link #endGroup()} is invoked.
+     */
+    public void startGroup()
+    {
+        group.set(new Group());
+    }
+
+    /**
+     * Print, as a single block, all the output grouped since the last call to {@link #startGroup()}
+     */
+    public void endGroup()
+    {
+        final Group g = group.get();
+        group.remove();
+
+        if (g != null && g.text.length() > 0) {
+            synchronized (System.out) {
+                System.out.print(g.text);
+                System.out.flush();
+            }
+        }
+    }
+
     public void setColor(boolean b)
     {
         color = b;
@@ -88,4 +134,12 @@ public class StandaloneLogger
         final String str = Apb.makeStandardHeader();
         return color && !str.isEmpty() ? ColorUtils.colorize(ColorUtils.GREEN, str) : str;
     }
+
+    //~ Inner Classes ........................................................................................
+
+    private static class Group
+    {
+        private boolean             beginOfLine = true;
+        private final StringBuilder text = new StringBuilder();
+    }
 }
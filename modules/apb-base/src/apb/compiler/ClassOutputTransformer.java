@@ -0,0 +1,37 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Transforms the class files generated by the compiler before they are written
+ * (Like adding the assertions for @NotNull annotations)
+ */
+public interface ClassOutputTransformer
+{
+    //~ Methods ..............................................................................................
+
+    /**
+     * Transform a class file
+     * @param className The binary name of the class (Like 'apb.Main$1')
+     * @param bytes The class file generated by the compiler
+     * @return The class file to write, or null to write the original one
+     */
+    @Nullable byte[] transform(@NotNull String className, @NotNull byte[] bytes);
+}
@@ -0,0 +1,302 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+import apb.Constants;
+import apb.Environment;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A build scoped service that keeps the system java compiler and its file managers warm.
+ * Opening the archives in the classpath (Reading the central directory of every jar) is a significant part
+ * of each compilation, so the file managers are not closed after compiling a module but reused
+ * for the next ones, and the archives already opened by them are not read again.
+ * Each file manager keeps the archives it opened (Up to the limit in the property 'javac.archive-cache',
+ * 0 disables the service), and it is reset when the limit is exceeded or when one of them is modified.
+ * Idle file managers are reused most recently used first.
+ * Outside of a build (Before {@link #start} or after {@link #finish}) each compilation uses a new file manager.
+ */
+public class CompilerService
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The maximum number of archives kept open by each file manager
+     */
+    private final int capacity;
+
+    /**
+     * Statistics
+     */
+    private int compilations;
+    private int resets;
+    private int savedOpens;
+
+    /**
+     * The file managers not in use (Each compilation uses its own one, as they are not thread safe)
+     */
+    @NotNull private final List<Entry> idle;
+
+    //~ Constructors .........................................................................................
+
+    private CompilerService(int capacity)
+    {
+        this.capacity = capacity;
+        idle = new ArrayList<Entry>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the system java compiler
+     */
+    @NotNull public static synchronized JavaCompiler compiler()
+    {
+        if (systemCompiler == null) {
+            systemCompiler = ToolProvider.getSystemJavaCompiler();
+        }
+
+        return systemCompiler;
+    }
+
+    /**
+     * Start the service for a build
+     */
+    public static synchronized void start(@NotNull Environment env)
+    {
+        finish(env);
+
+        final String value = env.getProperty(Constants.JAVAC_ARCHIVE_CACHE_PROPERTY, "");
+        int          capacity = DEFAULT_CAPACITY;
+
+        try {
+            capacity = value.isEmpty() ? DEFAULT_CAPACITY : Integer.parseInt(value.trim());
+        }
+        catch (NumberFormatException e) {
+            env.logWarning("Invalid value for '%s': %s\n", Constants.JAVAC_ARCHIVE_CACHE_PROPERTY, value);
+        }
+
+        current = capacity > 0 ? new CompilerService(capacity) : null;
+    }
+
+    /**
+     * Finish the service for the build, closing all the file managers and reporting the statistics
+     */
+    public static synchronized void finish(@NotNull Environment env)
+    {
+        final CompilerService service = current;
+
+        if (service != null) {
+            current = null;
+
+            for (Entry entry : service.idle) {
+                entry.close();
+            }
+
+            PackageIndex.closeArchives();
+
+            if (service.compilations > 1) {
+                env.logVerbose("Compiler: %d compilations, %d archive opens saved, %d file manager resets.\n",
+                               service.compilations, service.savedOpens, service.resets);
+            }
+        }
+    }
+
+    /**
+     * Get a file manager to compile with the specified classpath
+     * It must be released after the compilation
+     */
+    @NotNull static Entry acquire(@NotNull List<File> classPath)
+    {
+        final CompilerService service = current;
+        return service == null ? new Entry(null) : service.acquireEntry(classPath);
+    }
+
+    /**
+     * Release a file manager, so it can be used by other compilations
+     * @return true if the file manager is kept for the next compilations, false if it was closed
+     */
+    static boolean release(@NotNull Entry entry)
+    {
+        final CompilerService service = entry.service;
+
+        if (service == null || !service.releaseEntry(entry)) {
+            entry.close();
+            return false;
+        }
+
+        return true;
+    }
+
+    private synchronized Entry acquireEntry(@NotNull List<File> classPath)
+    {
+        compilations++;
+
+        final Entry entry = idle.isEmpty() ? new Entry(this) : idle.remove(idle.size() - 1);
+
+        if (!entry.prepare(classPath, capacity)) {
+            resets++;
+            entry.reset();
+            entry.prepare(classPath, capacity);
+        }
+        else {
+            entry.resetLocations();
+        }
+
+        savedOpens += entry.reused;
+        return entry;
+    }
+
+    private synchronized boolean releaseEntry(@NotNull Entry entry)
+    {
+        if (current != this) {
+            // The build already finished
+            return false;
+        }
+
+        idle.add(entry);
+        return true;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    @Nullable private static volatile CompilerService current;
+    @Nullable private static JavaCompiler             systemCompiler;
+
+    private static final int DEFAULT_CAPACITY = 256;
+
+    /**
+     * The locations that can be set by compiler options
+     */
+    private static final StandardLocation[] RESET_LOCATIONS = {
+            StandardLocation.CLASS_OUTPUT, StandardLocation.SOURCE_OUTPUT, StandardLocation.CLASS_PATH,
+            StandardLocation.SOURCE_PATH, StandardLocation.ANNOTATION_PROCESSOR_PATH,
+            StandardLocation.PLATFORM_CLASS_PATH
+        };
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A file manager together with the archives it opened
+     */
+    static class Entry
+    {
+        /**
+         * The number of archives of the last classpath that were already opened
+         */
+        private int reused;
+
+        @NotNull private StandardJavaFileManager fileManager;
+
+        /**
+         * The archives opened, with (A hash of) the length and modification time they had
+         */
+        @NotNull private final Map<File, Long> archives;
+
+        @Nullable private final CompilerService service;
+
+        private Entry(@Nullable CompilerService service)
+        {
+            this.service = service;
+            fileManager = compiler().getStandardFileManager(null, null, null);
+            archives = new HashMap<File, Long>();
+        }
+
+        @NotNull StandardJavaFileManager getFileManager()
+        {
+            return fileManager;
+        }
+
+        /**
+         * Register the archives in the classpath
+         * @return false if any of the archives already opened was modified, so the file manager must be reset
+         */
+        private boolean prepare(@NotNull List<File> classPath, int capacity)
+        {
+            reused = 0;
+
+            for (File file : classPath) {
+                if (file.isFile()) {
+                    final long state = file.length() * 31 + file.lastModified();
+                    final Long previous = archives.put(file, state);
+
+                    if (previous != null) {
+                        if (previous != state) {
+                            return false;
+                        }
+
+                        reused++;
+                    }
+                }
+            }
+
+            // Too many archives open, start again (The file manager cannot close a single one)
+            return archives.size() <= capacity;
+        }
+
+        /**
+         * Clear the locations set by the options of the previous compilation (Like '-processorpath')
+         * so they do not leak into the next one
+         */
+        private void resetLocations()
+        {
+            for (StandardLocation location : RESET_LOCATIONS) {
+                try {
+                    fileManager.setLocation(location, null);
+                }
+                catch (IOException e) {
+                    reset();
+                    return;
+                }
+                catch (IllegalStateException e) {
+                    // Not handled as a path by the file manager
+                }
+            }
+        }
+
+        private void reset()
+        {
+            close();
+            fileManager = compiler().getStandardFileManager(null, null, null);
+            archives.clear();
+        }
+
+        private void close()
+        {
+            try {
+                fileManager.close();
+            }
+            catch (IOException ignore) {
+                // Nothing to do
+            }
+        }
+    }
+}
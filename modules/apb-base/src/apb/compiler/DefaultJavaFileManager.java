@@ -18,26 +18,62 @@
 
 package apb.compiler;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
+import javax.tools.FileObject;
 import javax.tools.ForwardingJavaFileManager;
+import javax.tools.ForwardingJavaFileObject;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 /**
  * A Default {@link javax.tools.JavaFileManager} that just forward everything to {@link javax.tools.StandardJavaFileManager}
  * Plus add some simple defaults.
+ * It records the classes the compiler reads from the classpath, as they include the ones used in ways
+ * that leave no trace in the generated classes (Like inlined constants, or annotations only kept in the source).
  */
 public class DefaultJavaFileManager
     extends ForwardingJavaFileManager<StandardJavaFileManager>
 {
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The transformer applied to the generated classes (If any)
+     */
+    @Nullable private ClassOutputTransformer transformer;
+
+    /**
+     * The classes read from the classpath by the compiler (As internal names, like 'java/lang/String')
+     */
+    @NotNull private final Set<String> readClasses;
+
     //~ Constructors .........................................................................................
 
     DefaultJavaFileManager(JavaCompiler compiler)
     {
-        super(compiler.getStandardFileManager(null, null, null));
+        this(compiler.getStandardFileManager(null, null, null));
+    }
+
+    /**
+     * Forward to an existing file manager (Like a shared one from {@link CompilerService})
+     */
+    DefaultJavaFileManager(StandardJavaFileManager fileManager)
+    {
+        super(fileManager);
+        readClasses = new HashSet<String>();
     }
 
     //~ Methods ..............................................................................................
@@ -53,6 +89,77 @@ public class DefaultJavaFileManager
         return fileManager.getJavaFileObjectsFromFiles(files);
     }
 
+    /**
+     * The classes read from the classpath by the compiler (As internal names, like 'java/lang/String')
+     */
+    @NotNull Set<String> getReadClasses()
+    {
+        return readClasses;
+    }
+
+    @Override public Iterable<JavaFileObject> list(Location location, String packageName,
+                                                   Set<JavaFileObject.Kind> kinds, boolean recurse)
+        throws IOException
+    {
+        final Iterable<JavaFileObject> result = super.list(location, packageName, kinds, recurse);
+        return location == StandardLocation.CLASS_PATH ? recordingReads(result) : result;
+    }
+
+    @Override public String inferBinaryName(Location location, JavaFileObject file)
+    {
+        return super.inferBinaryName(location, unwrap(file));
+    }
+
+    @Override public boolean isSameFile(FileObject a, FileObject b)
+    {
+        return super.isSameFile(unwrap(a), unwrap(b));
+    }
+
+    /**
+     * Wrap the class files of the classpath, so the ones read by the compiler are recorded
+     */
+    @NotNull Iterable<JavaFileObject> recordingReads(@NotNull Iterable<JavaFileObject> files)
+    {
+        final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+
+        for (JavaFileObject file : files) {
+            result.add(file.getKind() == JavaFileObject.Kind.CLASS ? new ClassPathFile(file) : file);
+        }
+
+        return result;
+    }
+
+    /**
+     * The file object wrapped to record its reads (If it is wrapped)
+     */
+    @NotNull static <T extends FileObject> T unwrap(@NotNull T file)
+    {
+        if (file instanceof ClassPathFile) {
+            @SuppressWarnings("unchecked")
+            final T result = (T) ((ClassPathFile) file).getTarget();
+            return result;
+        }
+
+        return file;
+    }
+
+    /**
+     * Set the transformer to apply to the generated classes, before they are written
+     */
+    void setTransformer(@Nullable ClassOutputTransformer transformer)
+    {
+        this.transformer = transformer;
+    }
+
+    @Override public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                         JavaFileObject.Kind kind, FileObject sibling)
+        throws IOException
+    {
+        final JavaFileObject result = super.getJavaFileForOutput(location, className, kind, sibling);
+        return transformer == null || location != StandardLocation.CLASS_OUTPUT ||
+               kind != JavaFileObject.Kind.CLASS ? result : new TransformedClass(result, className, transformer);
+    }
+
     /**
      * Wrap the IOException from close in a runtime one.
      */
@@ -65,4 +172,78 @@ public class DefaultJavaFileManager
             throw new RuntimeException(e);
         }
     }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A class file of the classpath, that records its class when the compiler reads it
+     */
+    private class ClassPathFile
+        extends ForwardingJavaFileObject<JavaFileObject>
+    {
+        ClassPathFile(@NotNull JavaFileObject fileObject)
+        {
+            super(fileObject);
+        }
+
+        @Override public InputStream openInputStream()
+            throws IOException
+        {
+            readClasses.add(inferBinaryName(StandardLocation.CLASS_PATH, fileObject).replace('.', '/'));
+            return super.openInputStream();
+        }
+
+        @NotNull JavaFileObject getTarget()
+        {
+            return fileObject;
+        }
+    }
+
+    /**
+     * A generated class file, that it is transformed in memory when the compiler finishes writing it
+     */
+    private static class TransformedClass
+        extends ForwardingJavaFileObject<JavaFileObject>
+    {
+        @NotNull private final ClassOutputTransformer transformer;
+        @NotNull private final String                 className;
+
+        TransformedClass(@NotNull JavaFileObject fileObject, @NotNull String className,
+                         @NotNull ClassOutputTransformer transformer)
+        {
+            super(fileObject);
+            this.className = className;
+            this.transformer = transformer;
+        }
+
+        @Override public OutputStream openOutputStream()
+        {
+            return new ByteArrayOutputStream() {
+                    private boolean closed;
+
+                    @Override public void close()
+                        throws IOException
+                    {
+                        if (!closed) {
+                            closed = true;
+                            writeTransformed(toByteArray());
+                        }
+                    }
+
+                    private void writeTransformed(@NotNull byte[] bytes)
+                        throws IOException
+                    {
+                        final byte[]       transformed = transformer.transform(className, bytes);
+                        final OutputStream os = fileObject.openOutputStream();
+
+                        try {
+                            os.write(transformed == null ? bytes : transformed);
+                        }
+                        finally {
+                            os.close();
+                        }
+                    }
+                };
+        }
+    }
 }
@@ -0,0 +1,261 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import apb.Constants;
+import apb.Environment;
+
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A persistent cache of the classes compiled from the project definitions of a directory.
+ * It is stored under $HOME/.apb/definitions (One file by project directory), together with the
+ * content hash of every source file the classes were compiled from.
+ * The cache is only used if none of these sources changed, and the apb version, java version
+ * and extension classpath are the same ones used to compile them. Otherwise it is just ignored
+ * (And written again after compiling the definitions).
+ */
+class DefinitionsCache
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The directory where the cache files are stored
+     */
+    @NotNull private final File dir;
+
+    /**
+     * A key for everything the compiled classes depend on, except the sources
+     */
+    @NotNull private final String environmentKey;
+
+    //~ Constructors .........................................................................................
+
+    private DefinitionsCache(@NotNull File dir, @NotNull String environmentKey)
+    {
+        this.dir = dir;
+        this.environmentKey = environmentKey;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the cache for the Environment, or null if it is disabled (Property 'definitions.class-cache')
+     */
+    @Nullable static DefinitionsCache forEnvironment(@NotNull Environment env, @NotNull List<File> extClassPath)
+    {
+        if (!env.getBooleanProperty(Constants.DEFINITIONS_CLASS_CACHE_PROPERTY, true)) {
+            return null;
+        }
+
+        final StringBuilder key = new StringBuilder();
+        key.append(System.getProperty("java.version")).append('\n');
+        key.append(apbVersion()).append('\n');
+
+        for (File file : extClassPath) {
+            key.append(file.getPath()).append(':').append(file.length()).append(':');
+            key.append(file.lastModified()).append('\n');
+        }
+
+        return new DefinitionsCache(new File(FileUtils.getApbDir(), CACHE_DIR), key.toString());
+    }
+
+    /**
+     * Load the classes compiled from the definitions in the specified directory
+     * @return The classes, or null if there are no valid ones in the cache
+     */
+    @Nullable List<CachedClass> load(@NotNull File sourcePath)
+    {
+        final File file = cacheFile(sourcePath);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() != VERSION || !in.readUTF().equals(sourcePath.getAbsolutePath()) ||
+                        !in.readUTF().equals(environmentKey)) {
+                    return null;
+                }
+
+                for (int n = in.readInt(); n > 0; n--) {
+                    final File source = new File(in.readUTF());
+
+                    final long length = in.readLong();
+
+                    if (!isUnchanged(source, length, in.readUTF())) {
+                        return null;
+                    }
+                }
+
+                final List<CachedClass> result = new ArrayList<CachedClass>();
+
+                for (int n = in.readInt(); n > 0; n--) {
+                    final String className = in.readUTF();
+                    final String source = in.readUTF();
+                    final byte[] bytes = new byte[in.readInt()];
+                    in.readFully(bytes);
+                    result.add(new CachedClass(className, source, bytes));
+                }
+
+                return result;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            // A corrupted entry is just ignored (It will be written again)
+            return null;
+        }
+    }
+
+    /**
+     * Store the classes compiled from the definitions in the specified directory.
+     * Nothing is stored if any of the sources was modified after its classes were compiled
+     * @param sourcePath The directory with the definitions
+     * @param classes The compiled classes
+     * @param sources The sources of the classes, with the modification time when they were compiled
+     */
+    void store(@NotNull File sourcePath, @NotNull List<CachedClass> classes, @NotNull Map<String, Long> sources)
+    {
+        final File file = cacheFile(sourcePath);
+        final File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(sourcePath.getAbsolutePath());
+                out.writeUTF(environmentKey);
+                out.writeInt(sources.size());
+
+                for (Map.Entry<String, Long> entry : new TreeMap<String, Long>(sources).entrySet()) {
+                    final File source = new File(entry.getKey());
+
+                    if (source.lastModified() != entry.getValue()) {
+                        throw new IOException("Modified while compiling: " + source);
+                    }
+
+                    out.writeUTF(source.getPath());
+                    out.writeLong(source.length());
+                    out.writeUTF(DigestUtils.hash(source));
+                }
+
+                out.writeInt(classes.size());
+
+                for (CachedClass c : classes) {
+                    out.writeUTF(c.name);
+                    out.writeUTF(c.source);
+                    out.writeInt(c.bytes.length);
+                    out.write(c.bytes);
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+                throw new IOException("Cannot rename: " + tmp);
+            }
+        }
+        catch (IOException e) {
+            // The cache is just an optimization
+            tmp.delete();
+        }
+    }
+
+    @NotNull private File cacheFile(@NotNull File sourcePath)
+    {
+        return new File(dir, DigestUtils.hash(sourcePath.getAbsolutePath().getBytes()) + CACHE_EXT);
+    }
+
+    /**
+     * Check if the source did not change (Definitions are small, so the content is always compared)
+     */
+    private static boolean isUnchanged(@NotNull File source, long length, @NotNull String hash)
+        throws IOException
+    {
+        return source.length() == length && hash.equals(DigestUtils.hash(source));
+    }
+
+    /**
+     * Identify the version of apb by its implementation version, plus the size and date of the jar
+     */
+    @NotNull private static String apbVersion()
+    {
+        final String     version = DefinitionsCache.class.getPackage().getImplementationVersion();
+        final CodeSource codeSource = DefinitionsCache.class.getProtectionDomain().getCodeSource();
+        final URL        location = codeSource == null ? null : codeSource.getLocation();
+        String           result = version == null ? "" : version;
+
+        if (location != null && "file".equals(location.getProtocol())) {
+            final File file = new File(location.getPath());
+            result += ":" + file.length() + ":" + file.lastModified();
+        }
+
+        return result;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String CACHE_DIR = "definitions";
+    private static final String CACHE_EXT = ".classes";
+
+    private static final int VERSION = 1;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A class compiled from a definition
+     */
+    static class CachedClass
+    {
+        @NotNull final byte[] bytes;
+        @NotNull final String name;
+        @NotNull final String source;
+
+        CachedClass(@NotNull String name, @NotNull String source, @NotNull byte[] bytes)
+        {
+            this.name = name;
+            this.source = source;
+            this.bytes = bytes;
+        }
+    }
+}
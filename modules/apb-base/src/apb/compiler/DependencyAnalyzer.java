@@ -0,0 +1,346 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import apb.utils.ClassFileInfo;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Find the elements of a classpath that are not used by a set of compiled classes.
+ * The classes referenced from the constant pool of the compiled classes are resolved against the classpath
+ * (The first element containing the class is the one used, as the compiler does). The super types
+ * of the resolved classes are resolved too, as the compiler needs them even if they are not referenced.
+ * Archives are looked up using their {@link PackageIndex}, so they are only opened to read the super types.
+ * Classes that are not in the classpath (Like the ones of the platform) are ignored.
+ * Uses that leave no trace in the class files are not found by {@link #referencesFrom}: compile time constants
+ * (static final primitives and Strings) are inlined, and annotations with source retention are dropped.
+ * So the classes the compiler read ({@link JavaC#getReadClasses}) are used too. When they are not known
+ * (Nothing, or only some of the classes, were compiled) the elements that declare constants or annotation types
+ * are considered used, as there is no way to tell if they are.
+ */
+public class DependencyAnalyzer
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The (normalized) elements of the classpath
+     */
+    @NotNull private final List<File> classPath;
+
+    /**
+     * The elements of the classpath where any class was found
+     */
+    @NotNull private final Set<File> used;
+
+    /**
+     * The classes already resolved
+     */
+    @NotNull private final Set<String> resolved;
+
+    /**
+     * The class files in each package of an element of the classpath (By 'element!package')
+     */
+    @NotNull private final Map<String, Set<String>> packages;
+
+    /**
+     * The archives opened to read super types
+     */
+    @NotNull private final Map<File, ZipFile> archives;
+
+    //~ Constructors .........................................................................................
+
+    private DependencyAnalyzer(@NotNull List<File> classPath)
+    {
+        this.classPath = new ArrayList<File>();
+
+        for (File file : classPath) {
+            this.classPath.add(FileUtils.normalizeFile(file));
+        }
+
+        used = new HashSet<File>();
+        resolved = new HashSet<String>();
+        packages = new HashMap<String, Set<String>>();
+        archives = new HashMap<File, ZipFile>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the elements of the classpath that do not contain any of the referenced classes (Or their super types)
+     * @param classPath The classpath
+     * @param references The referenced classes (As internal names, like 'java/lang/String')
+     * @param readClasses The classes the compiler read from the classpath compiling all the classes,
+     * or null if they are not known
+     * @return The unused elements of the classpath, in the same order
+     */
+    @NotNull public static List<File> unusedPathElements(@NotNull List<File> classPath,
+                                                         @NotNull Collection<String> references,
+                                                         @Nullable Collection<String> readClasses)
+    {
+        final DependencyAnalyzer analyzer = new DependencyAnalyzer(classPath);
+        final List<File>         result = new ArrayList<File>();
+
+        try {
+            analyzer.resolve(references);
+
+            if (readClasses != null) {
+                analyzer.resolve(readClasses);
+            }
+
+            for (File file : analyzer.classPath) {
+                if (!analyzer.used.contains(file) && (readClasses != null || !analyzer.mayBeUsedInlined(file))) {
+                    result.add(file);
+                }
+            }
+        }
+        finally {
+            analyzer.close();
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the classes referenced from the class files in a directory (Not including the ones in the directory)
+     */
+    @NotNull public static Set<String> referencesFrom(@NotNull File classesDir)
+    {
+        final Set<String> result = new LinkedHashSet<String>();
+        final Set<String> classes = new HashSet<String>();
+
+        for (File file : FileUtils.listAllFilesWithExt(classesDir, CLASS_EXT)) {
+            try {
+                final ClassFileInfo info = ClassFileInfo.read(file);
+                classes.add(info.getName());
+                result.addAll(info.getReferences());
+            }
+            catch (IOException e) {
+                // Not a valid class file, ignore it
+            }
+        }
+
+        result.removeAll(classes);
+        return result;
+    }
+
+    private void resolve(@NotNull Collection<String> references)
+    {
+        final List<String> pending = new ArrayList<String>(references);
+
+        while (!pending.isEmpty()) {
+            final String className = pending.remove(pending.size() - 1);
+
+            if (resolved.add(className)) {
+                final File element = find(className);
+
+                if (element != null) {
+                    used.add(element);
+                    pending.addAll(superTypes(element, className));
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the first element of the classpath that contains the class
+     */
+    @Nullable private File find(@NotNull String className)
+    {
+        final int    slash = className.lastIndexOf('/');
+        final String packageDir = slash == -1 ? "" : className.substring(0, slash);
+        final String fileName = className.substring(slash + 1) + CLASS_EXT;
+
+        for (File element : classPath) {
+            if (classFiles(element, packageDir).contains(fileName)) {
+                return element;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * The names of the class files in a package of an element of the classpath
+     */
+    @NotNull private Set<String> classFiles(@NotNull File element, @NotNull String packageDir)
+    {
+        final String key = element.getPath() + "!" + packageDir;
+        Set<String>  result = packages.get(key);
+
+        if (result == null) {
+            result = new HashSet<String>();
+
+            if (element.isDirectory()) {
+                final String[] names = new File(element, packageDir).list();
+
+                if (names != null) {
+                    for (String name : names) {
+                        if (name.endsWith(CLASS_EXT)) {
+                            result.add(name);
+                        }
+                    }
+                }
+            }
+            else if (element.isFile()) {
+                try {
+                    for (String name : PackageIndex.forArchive(element).entries(packageDir)) {
+                        if (name.endsWith(CLASS_EXT)) {
+                            result.add(name);
+                        }
+                    }
+                }
+                catch (IOException e) {
+                    // Not a valid archive, nothing can be used from it
+                }
+            }
+
+            packages.put(key, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Read the super types of a class from the element of the classpath that contains it
+     */
+    @NotNull private List<String> superTypes(@NotNull File element, @NotNull String className)
+    {
+        final String entryName = className + CLASS_EXT;
+
+        try {
+            if (element.isDirectory()) {
+                return ClassFileInfo.read(new File(element, entryName)).getSuperTypes();
+            }
+
+            final ZipEntry entry = archive(element).getEntry(entryName);
+
+            if (entry != null) {
+                final InputStream is = new BufferedInputStream(archive(element).getInputStream(entry));
+
+                try {
+                    return ClassFileInfo.read(is).getSuperTypes();
+                }
+                finally {
+                    is.close();
+                }
+            }
+        }
+        catch (IOException e) {
+            // The class cannot be read, just ignore its super types
+        }
+
+        return new ArrayList<String>();
+    }
+
+    /**
+     * Whether an element of the classpath declares compile time constants or annotation types,
+     * whose uses may not be visible in the class files
+     */
+    private boolean mayBeUsedInlined(@NotNull File element)
+    {
+        try {
+            if (element.isDirectory()) {
+                for (File file : FileUtils.listAllFilesWithExt(element, CLASS_EXT)) {
+                    if (mayBeUsedInlined(ClassFileInfo.read(file))) {
+                        return true;
+                    }
+                }
+            }
+            else if (element.isFile()) {
+                final ZipFile                         zip = archive(element);
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+
+                while (entries.hasMoreElements()) {
+                    final ZipEntry entry = entries.nextElement();
+
+                    if (entry.getName().endsWith(CLASS_EXT)) {
+                        final InputStream is = new BufferedInputStream(zip.getInputStream(entry));
+
+                        try {
+                            if (mayBeUsedInlined(ClassFileInfo.read(is))) {
+                                return true;
+                            }
+                        }
+                        finally {
+                            is.close();
+                        }
+                    }
+                }
+            }
+        }
+        catch (IOException e) {
+            // It cannot be read, so nothing can be used from it
+        }
+
+        return false;
+    }
+
+    @NotNull private ZipFile archive(@NotNull File file)
+        throws IOException
+    {
+        ZipFile result = archives.get(file);
+
+        if (result == null) {
+            result = new ZipFile(file);
+            archives.put(file, result);
+        }
+
+        return result;
+    }
+
+    private static boolean mayBeUsedInlined(@NotNull ClassFileInfo info)
+    {
+        return info.isAnnotation() || !info.getConstants().isEmpty();
+    }
+
+    private void close()
+    {
+        for (ZipFile zipFile : archives.values()) {
+            try {
+                zipFile.close();
+            }
+            catch (IOException ignore) {
+                // Nothing to do
+            }
+        }
+
+        archives.clear();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String CLASS_EXT = ".class";
+}
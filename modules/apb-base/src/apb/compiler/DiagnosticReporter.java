@@ -31,6 +31,7 @@ import apb.Environment;
 
 import apb.tasks.JavacTask;
 
+import apb.utils.PathPatterns;
 import apb.utils.StringUtils;
 
 import org.jetbrains.annotations.NotNull;
@@ -59,6 +60,11 @@ public class DiagnosticReporter
     @NotNull private List<String>                                     excludes;
     @Nullable private String                                          lastFile;
 
+    /**
+     * The compiled excludes (Compiled when first used)
+     */
+    @Nullable private PathPatterns excludePatterns;
+
     //~ Constructors .........................................................................................
 
     /**
@@ -112,6 +118,7 @@ public class DiagnosticReporter
     public void addExcludePattern(@NotNull String pattern)
     {
         excludes.add(StringUtils.normalizePath(pattern));
+        excludePatterns = null;
     }
 
     /**
@@ -212,11 +219,11 @@ public class DiagnosticReporter
             String name = javacTask.removeSourceDir(fileName);
 
             if (name != null) {
-                for (String exclude : excludes) {
-                    if (StringUtils.matchPath(exclude, name, true)) {
-                        return true;
-                    }
+                if (excludePatterns == null) {
+                    excludePatterns = new PathPatterns(excludes);
                 }
+
+                return excludePatterns.matches(name);
             }
         }
 
@@ -26,15 +26,18 @@ import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import javax.tools.DiagnosticCollector;
 import javax.tools.FileObject;
 import javax.tools.JavaCompiler;
 import javax.tools.JavaFileObject;
 import javax.tools.SimpleJavaFileObject;
-import javax.tools.ToolProvider;
 
 import apb.BuildException;
 import apb.Environment;
@@ -60,7 +63,10 @@ public class InMemJavaC
 
     @NotNull private final JavaCompiler compiler;
 
+    @NotNull private final List<File>            extClassPath;
     @NotNull private final Map<File, Class>      classesByFile;
+    @NotNull private final Set<File>             loadedFromCache;
+    @Nullable private final DefinitionsCache     cache;
     @NotNull private final MemoryClassLoader     memoryClassLoader;
     @NotNull private final MemoryJavaFileManager fileManager;
 
@@ -71,14 +77,30 @@ public class InMemJavaC
      * @param environment
      */
     public InMemJavaC(@NotNull Environment environment)
+    {
+        this(environment, CompilerService.compiler());
+    }
+
+    /**
+     * Creates a Compiler that reuses the compiler instance and the classes already compiled by a previous one.
+     * The classes are defined again in a new ClassLoader, so their static state is not shared
+     * @param environment
+     * @param previous The compiler to get the compiled classes from
+     */
+    public InMemJavaC(@NotNull Environment environment, @NotNull InMemJavaC previous)
+    {
+        this(environment, previous.compiler);
+        memoryClassLoader.addAll(previous.memoryClassLoader);
+    }
+
+    private InMemJavaC(@NotNull Environment environment, @NotNull JavaCompiler javaCompiler)
     {
         env = environment;
-        compiler = ToolProvider.getSystemJavaCompiler();
+        compiler = javaCompiler;
+        extClassPath = new ArrayList<File>(environment.getExtClassPath());
 
         try {
-            memoryClassLoader =
-                new MemoryClassLoader(FileUtils.toUrl(environment.getExtClassPath()),
-                                      getClass().getClassLoader());
+            memoryClassLoader = new MemoryClassLoader(FileUtils.toUrl(extClassPath), getClass().getClassLoader());
         }
         catch (MalformedURLException e) {
             throw new BuildException(e);
@@ -86,6 +108,8 @@ public class InMemJavaC
 
         fileManager = new MemoryJavaFileManager(compiler, memoryClassLoader);
         classesByFile = new HashMap<File, Class>();
+        loadedFromCache = new HashSet<File>();
+        cache = DefinitionsCache.forEnvironment(environment, extClassPath);
     }
 
     //~ Methods ..............................................................................................
@@ -96,6 +120,17 @@ public class InMemJavaC
                ? memoryClassLoader.sourceFile(clazz.getName()) : null;
     }
 
+    /**
+     * Returns true if the classes compiled by this compiler can be reused in the specified Environment.
+     * That is: none of the compiled sources changed, and the extension classpath is the same
+     * @param environment The environment where the classes are going to be used
+     */
+    public boolean isUpToDate(@NotNull Environment environment)
+    {
+        return extClassPath.equals(new ArrayList<File>(environment.getExtClassPath())) &&
+               memoryClassLoader.isUpToDate();
+    }
+
     /**
      * Compile the source in the specified File load it and return the associated class.
      * It also keeps a cache of already loaded classes
@@ -116,6 +151,49 @@ public class InMemJavaC
         return clazz;
     }
 
+    /**
+     * Compile in a single invocation of javac all the specified sources not compiled yet.
+     * This is much faster than compiling them one by one (As done by {@link #loadClass}).
+     * Compilation errors are not reported, if the compilation fails nothing is compiled
+     * and each source will be compiled (And the errors reported) when its class is loaded
+     * @param sourcePath The (optional) sourcePath where to find the sources of the referenced classes
+     * @param sources the files to be compiled
+     * @return true if the compilation succeeded
+     */
+    public boolean compile(@Nullable File sourcePath, @NotNull Collection<File> sources)
+    {
+        loadFromCache(sourcePath);
+
+        final List<File> pending = new ArrayList<File>();
+
+        for (File source : sources) {
+            if (!classesByFile.containsKey(source) && memoryClassLoader.classNameFromSource(source) == null) {
+                pending.add(source);
+            }
+        }
+
+        if (pending.isEmpty()) {
+            return true;
+        }
+
+        final DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
+        final MemoryClassLoader                   output = new MemoryClassLoader(new URL[0], null);
+
+        // Compile into a separate loader, so no class is kept from a failed compilation
+        final MemoryJavaFileManager manager = new MemoryJavaFileManager(compiler, output);
+        final boolean               result =
+            compiler.getTask(null, manager, diagnostics, compilerOptions(sourcePath), null,
+                             manager.getJavaFileObjects(pending)).call();
+        manager.close();
+
+        if (result) {
+            memoryClassLoader.addAll(output);
+            storeInCache(sourcePath);
+        }
+
+        return result;
+    }
+
     /**
      * Compile the source in the specified File and return the associated class
      * @param sourcePath The (optional) sourcePath where to find the source for he class
@@ -126,12 +204,67 @@ public class InMemJavaC
     @NotNull Class<?> compileToClass(@Nullable File sourcePath, @NotNull File source)
         throws ClassNotFoundException
     {
+        loadFromCache(sourcePath);
+
         String className = memoryClassLoader.classNameFromSource(source);
 
         if (className != null) {
             return memoryClassLoader.loadClass(className);
         }
 
+        // Get the compilation task and invoke it
+        boolean result =
+            compiler.getTask(null, fileManager, null, compilerOptions(sourcePath), null,
+                             fileManager.getJavaFileObjects(singleton(source))).call();
+        fileManager.close();
+
+        if (!result) {
+            throw new ClassNotFoundException("Compilation Error");
+        }
+
+        storeInCache(sourcePath);
+
+        // If the compilation was successfull load the compiled class and return it
+
+        return memoryClassLoader.getClassFromSource(source);
+    }
+
+    /**
+     * Load the classes compiled from the definitions in the source path from the persistent cache
+     * (The first time they are needed)
+     */
+    private void loadFromCache(@Nullable File sourcePath)
+    {
+        if (cache != null && sourcePath != null && loadedFromCache.add(sourcePath)) {
+            final List<DefinitionsCache.CachedClass> classes = cache.load(sourcePath);
+
+            if (classes != null) {
+                for (DefinitionsCache.CachedClass c : classes) {
+                    final ByteArrayOutputStream bytes = new ByteArrayOutputStream(c.bytes.length);
+                    bytes.write(c.bytes, 0, c.bytes.length);
+                    memoryClassLoader.addClass(c.name,
+                                               new ClassInfo(c.source, new File(c.source).lastModified(), bytes));
+                }
+            }
+        }
+    }
+
+    /**
+     * Store in the persistent cache all the classes compiled from the definitions in the source path
+     */
+    private void storeInCache(@Nullable File sourcePath)
+    {
+        if (cache != null && sourcePath != null) {
+            final List<DefinitionsCache.CachedClass> classes = new ArrayList<DefinitionsCache.CachedClass>();
+            final Map<String, Long>                  sources = new HashMap<String, Long>();
+
+            memoryClassLoader.collectClasses(sourcePath, classes, sources);
+            cache.store(sourcePath, classes, sources);
+        }
+    }
+
+    private List<String> compilerOptions(@Nullable File sourcePath)
+    {
         List<String> options = new ArrayList<String>();
 
         // Set the options apropiately
@@ -150,19 +283,7 @@ public class InMemJavaC
             options.add(System.getProperty("java.class.path") + pathSeparator + extClassPath);
         }
 
-        // Get the compilation task and invoke it
-        boolean result =
-            compiler.getTask(null, fileManager, null, options, null,
-                             fileManager.getJavaFileObjects(singleton(source))).call();
-        fileManager.close();
-
-        if (!result) {
-            throw new ClassNotFoundException("Compilation Error");
-        }
-
-        // If the compilation was successfull load the compiled class and return it
-
-        return memoryClassLoader.getClassFromSource(source);
+        return options;
     }
 
     //~ Inner Classes ........................................................................................
@@ -218,7 +339,7 @@ public class InMemJavaC
             throws IOException
         {
             ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-            memoryClassLoader.addClass(className, new ClassInfo(this, outputStream));
+            memoryClassLoader.addClass(className, new ClassInfo(getName(), lastModified, outputStream));
             return outputStream;
         }
     }
@@ -228,13 +349,15 @@ public class InMemJavaC
      */
     private static class ClassInfo
     {
+        private final long                  lastModified;
         private final ByteArrayOutputStream bytes;
-        private final MemoryJavaOutput      file;
+        private final String                path;
 
-        public ClassInfo(MemoryJavaOutput fileObject, ByteArrayOutputStream outputStream)
+        public ClassInfo(String sourcePath, long sourceLastModified, ByteArrayOutputStream outputStream)
         {
+            path = sourcePath;
+            lastModified = sourceLastModified;
             bytes = outputStream;
-            file = fileObject;
         }
 
         public byte[] getBytes()
@@ -244,7 +367,12 @@ public class InMemJavaC
 
         public String getPath()
         {
-            return file.getName();
+            return path;
+        }
+
+        public long getLastModified()
+        {
+            return lastModified;
         }
 
         @Override public String toString()
@@ -261,15 +389,51 @@ public class InMemJavaC
     {
         @NotNull private final HashMap<String, ClassInfo> classMap;
 
+        /**
+         * The name of the (top level) class compiled from each source file, by absolute path
+         */
+        @NotNull private final HashMap<String, String> classBySource;
+
         MemoryClassLoader(URL[] urls, ClassLoader parent)
         {
             super(urls, parent);
             classMap = new HashMap<String, ClassInfo>();
+            classBySource = new HashMap<String, String>();
         }
 
-        public void addClass(String name, ClassInfo classInfo)
+        public synchronized void addClass(String name, ClassInfo classInfo)
         {
             classMap.put(name, classInfo);
+
+            final File   source = new File(classInfo.getPath());
+            final String sourceName = FileUtils.removeExtension(source);
+
+            if (name.equals(sourceName) || name.endsWith("." + sourceName)) {
+                classBySource.put(source.getAbsolutePath(), name);
+            }
+        }
+
+        /**
+         * Add all the classes compiled into another class loader
+         */
+        synchronized void addAll(@NotNull MemoryClassLoader other)
+        {
+            classMap.putAll(other.classMap);
+            classBySource.putAll(other.classBySource);
+        }
+
+        /**
+         * Returns true if none of the sources of the compiled classes was modified or removed
+         */
+        boolean isUpToDate()
+        {
+            for (ClassInfo classInfo : classMap.values()) {
+                if (new File(classInfo.getPath()).lastModified() != classInfo.getLastModified()) {
+                    return false;
+                }
+            }
+
+            return true;
         }
 
         protected Class<?> findClass(String className)
@@ -308,25 +472,31 @@ public class InMemJavaC
          * @param source The source file
          * @return The classname that corresponds to the source file or null if the class was not found
          */
-        @Nullable String classNameFromSource(@NotNull File source)
-            throws ClassNotFoundException
+        @Nullable synchronized String classNameFromSource(@NotNull File source)
         {
-            String path = source.getPath();
-            int    lastDot = path.lastIndexOf('.');
+            return classBySource.get(source.getAbsolutePath());
+        }
 
-            if (lastDot != -1) {
-                path = path.substring(0, lastDot);
-            }
+        /**
+         * Collect the classes compiled from the sources in the specified directory
+         * @param dir The directory
+         * @param classes Where to add the classes
+         * @param sources Where to add the sources of the classes, with their modification time when compiled
+         */
+        synchronized void collectClasses(@NotNull File dir, @NotNull List<DefinitionsCache.CachedClass> classes,
+                                         @NotNull Map<String, Long> sources)
+        {
+            final String prefix = dir.getAbsolutePath() + File.separator;
 
-            path = path.replace(File.separatorChar, '.');
+            for (Map.Entry<String, ClassInfo> entry : classMap.entrySet()) {
+                final ClassInfo classInfo = entry.getValue();
+                final String    path = new File(classInfo.getPath()).getAbsolutePath();
 
-            for (String className : classMap.keySet()) {
-                if (path.equals(className) || path.endsWith("." + className)) {
-                    return className;
+                if (path.startsWith(prefix)) {
+                    classes.add(new DefinitionsCache.CachedClass(entry.getKey(), path, classInfo.getBytes()));
+                    sources.put(path, classInfo.getLastModified());
                 }
             }
-
-            return null;
         }
 
         @Nullable File sourceFile(String className)
@@ -25,13 +25,9 @@ import java.util.List;
 import java.util.Set;
 
 import javax.tools.JavaCompiler;
-import javax.tools.ToolProvider;
-
-import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
-
-import static java.io.File.pathSeparator;
+import org.jetbrains.annotations.Nullable;
 
 import static apb.utils.FileUtils.makePath;
 //
@@ -48,8 +44,22 @@ public class JavaC
 
     @NotNull private final DiagnosticReporter diagnostics;
 
+    /**
+     * Whether to list the archives in the classpath using a {@link PackageIndex}
+     */
+    private final boolean usePackageIndex;
+
     @NotNull private final JavaCompiler compiler;
-    @NotNull private final Set<File>    usedPathElements;
+
+    /**
+     * The transformer applied to the generated classes before writing them (If any)
+     */
+    @Nullable private ClassOutputTransformer classTransformer;
+
+    /**
+     * The classes read from the classpath by the compilations (As internal names, like 'java/lang/String')
+     */
+    @NotNull private final Set<String> readClasses;
 
     //~ Constructors .........................................................................................
 
@@ -60,13 +70,43 @@ public class JavaC
      */
     public JavaC(@NotNull DiagnosticReporter reporter)
     {
-        compiler = ToolProvider.getSystemJavaCompiler();
+        this(reporter, true);
+    }
+
+    /**
+     * Construct a JavaC instance
+     * Intialize the underlying compiler.
+     * @param reporter
+     * @param usePackageIndex Whether to use an index of the packages in the archives of the classpath
+     */
+    public JavaC(@NotNull DiagnosticReporter reporter, boolean usePackageIndex)
+    {
+        compiler = CompilerService.compiler();
         diagnostics = reporter;
-        usedPathElements = new HashSet<File>();
+        this.usePackageIndex = usePackageIndex;
+        readClasses = new HashSet<String>();
     }
 
     //~ Methods ..............................................................................................
 
+    /**
+     * Set a transformer for the generated classes. They are transformed in memory, before they are written
+     */
+    public void setClassTransformer(@Nullable ClassOutputTransformer transformer)
+    {
+        classTransformer = transformer;
+    }
+
+    /**
+     * The classes the compiler read from the classpath (As internal names, like 'java/lang/String').
+     * They include the ones used in ways that are not visible in the generated classes,
+     * like compile time constants (That are inlined) or annotations with source retention.
+     */
+    @NotNull public Set<String> getReadClasses()
+    {
+        return readClasses;
+    }
+
     /**
      * Innvoke the compiler
      * @param files  The files to be compiled
@@ -75,51 +115,51 @@ public class JavaC
      * @param classPath The ClassPath where dependencies will be sought
      * @param extraLibraries
      *@param additionalOptions Additional Options for the compiler.
-     * @param trackUnusedPathElements Wheter to track unused path elements or not.   @return true if the compilation was succesful, false otherwise
+     * @return true if the compilation was succesful, false otherwise
      */
     public boolean compile(@NotNull List<File> files, @NotNull List<File> sourceDirs, @NotNull File targetDir,
                            @NotNull List<File> classPath, List<File> extraLibraries,
-                           @NotNull List<String> additionalOptions, boolean trackUnusedPathElements)
+                           @NotNull List<String> additionalOptions)
     {
-        DefaultJavaFileManager fileManager =
-            trackUnusedPathElements ? new TrackingJavaFileManager(compiler, usedPathElements)
-                                    : new DefaultJavaFileManager(compiler);
+        final List<File> path = new ArrayList<File>();
+        path.add(targetDir);
+        path.addAll(classPath);
+        path.addAll(extraLibraries);
+
+        final CompilerService.Entry  entry = CompilerService.acquire(path);
+        final DefaultJavaFileManager fileManager;
+
+        if (usePackageIndex) {
+            fileManager = new PackageIndexJavaFileManager(entry.getFileManager(), path);
+        }
+        else {
+            fileManager = new DefaultJavaFileManager(entry.getFileManager());
+        }
+
+        fileManager.setTransformer(classTransformer);
 
         List<String> options = new ArrayList<String>(additionalOptions);
         options.add("-d");
         options.add(targetDir.getPath());
         options.add("-classpath");
-        options.add(targetDir + pathSeparator + makePath(classPath) + pathSeparator +
-                    makePath(extraLibraries));
+        options.add(makePath(path));
         options.add("-sourcepath");
         options.add(makePath(sourceDirs));
-        usedPathElements.add(targetDir);
-
-        boolean result =
-            compiler.getTask(null, fileManager, diagnostics, options, null,
-                             fileManager.getJavaFileObjects(files)).call();
-        fileManager.close();
-        return result;
-    }
 
-    /**
-     * Return the list of unused path Elements. For this to be meaningfull the compiler must be called with
-     * trackUnusedPathElements in true
-     * @param classPath The classPath to check against
-     * @return The list of unusedPath elements from the provided path
-     */
-    @NotNull public List<File> unusedPathElements(@NotNull List<File> classPath)
-    {
-        List<File> result = new ArrayList<File>();
+        try {
+            return compiler.getTask(null, fileManager, diagnostics, options, null,
+                                    fileManager.getJavaFileObjects(files)).call();
+        }
+        finally {
+            readClasses.addAll(fileManager.getReadClasses());
 
-        for (File file : classPath) {
-            final File f = FileUtils.normalizeFile(file);
+            // Do not close the file manager, the service keeps it open for the next compilations
+            final boolean kept = CompilerService.release(entry);
 
-            if (!usedPathElements.contains(f)) {
-                result.add(f);
+            // Without the service close the archives this compilation opened (Unless others are using them)
+            if (fileManager instanceof PackageIndexJavaFileManager) {
+                ((PackageIndexJavaFileManager) fileManager).releaseArchives(!kept);
             }
         }
-
-        return result;
     }
 }
@@ -0,0 +1,457 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.jar.Attributes;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * An index of the packages in an archive (A jar in the classpath), with the entries of each one
+ * (And the 'Class-Path' of its manifest).
+ * It allows listing the content of a package without opening the archive, and skipping the archives
+ * that do not contain it. The archive itself is only opened when one of its entries is read.
+ * The indexes are persisted under $HOME/.apb/package-index (One file by archive, named by a hash
+ * of its path, size and modification time) and they are read by mapping the file into memory.
+ */
+class PackageIndex
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * Whether the archive was modified, so this index is not longer used for new compilations
+     */
+    private boolean stale;
+
+    /**
+     * The number of compilations using the archive
+     */
+    private int users;
+
+    private final long lastModified;
+    private final long length;
+
+    /**
+     * The archive
+     */
+    @NotNull private final File archive;
+
+    /**
+     * The names of the entries in each package (By package directory, like 'java/util')
+     */
+    @NotNull private final Map<String, List<String>> entriesByPackage;
+
+    /**
+     * The (Relative) urls in the 'Class-Path' attribute of the manifest of the archive
+     */
+    @NotNull private final List<String> manifestClassPath;
+
+    /**
+     * The archive, once opened
+     */
+    @Nullable private ZipFile zipFile;
+
+    //~ Constructors .........................................................................................
+
+    private PackageIndex(@NotNull File archive, long length, long lastModified)
+    {
+        this.archive = archive;
+        this.length = length;
+        this.lastModified = lastModified;
+        entriesByPackage = new HashMap<String, List<String>>();
+        manifestClassPath = new ArrayList<String>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the index for an archive, building it if it is not in the store
+     */
+    @NotNull static PackageIndex forArchive(@NotNull File archive)
+        throws IOException
+    {
+        final long length = archive.length();
+        final long lastModified = archive.lastModified();
+
+        synchronized (indexes) {
+            final PackageIndex index = indexes.get(archive);
+
+            if (index != null && index.length == length && index.lastModified == lastModified) {
+                return index;
+            }
+
+            if (index != null) {
+                index.markStale();
+            }
+        }
+
+        final File   storeFile = storeFile(archive, length, lastModified);
+        PackageIndex result = load(storeFile, archive, length, lastModified);
+
+        if (result == null) {
+            result = build(archive, length, lastModified);
+            result.store(storeFile);
+        }
+
+        synchronized (indexes) {
+            indexes.put(archive, result);
+        }
+
+        return result;
+    }
+
+    /**
+     * Close all the archives opened to read their entries (At the end of the build)
+     */
+    static void closeArchives()
+    {
+        synchronized (indexes) {
+            for (PackageIndex index : indexes.values()) {
+                index.close();
+            }
+        }
+    }
+
+    /**
+     * Register a compilation that may read entries from the archive
+     * It must be released after the compilation
+     */
+    synchronized void retain()
+    {
+        users++;
+    }
+
+    /**
+     * Release the archive after a compilation
+     * @param closeIfUnused Whether to close the archive if no other compilation is using it.
+     * (A stale archive is always closed when not used)
+     */
+    synchronized void release(boolean closeIfUnused)
+    {
+        users--;
+
+        if (users == 0 && (closeIfUnused || stale)) {
+            close();
+        }
+    }
+
+    @NotNull File getArchive()
+    {
+        return archive;
+    }
+
+    /**
+     * The urls in the 'Class-Path' attribute of the manifest of the archive, as they are written in it
+     * (Usually relative to the directory of the archive)
+     */
+    @NotNull List<String> getManifestClassPath()
+    {
+        return manifestClassPath;
+    }
+
+    /**
+     * The names of the entries in a package
+     * @param packageDir The package, as a directory (like 'java/util')
+     */
+    @NotNull List<String> entries(@NotNull String packageDir)
+    {
+        final List<String> result = entriesByPackage.get(packageDir);
+        return result == null ? Collections.<String>emptyList() : result;
+    }
+
+    /**
+     * Open an entry of the archive
+     */
+    @NotNull InputStream open(@NotNull String entryName)
+        throws IOException
+    {
+        final ZipFile  zip = zipFile();
+        final ZipEntry entry = zip.getEntry(entryName);
+
+        if (entry == null) {
+            throw new IOException("Entry not found: " + entryName + " in " + archive);
+        }
+
+        return zip.getInputStream(entry);
+    }
+
+    private synchronized ZipFile zipFile()
+        throws IOException
+    {
+        if (zipFile == null) {
+            zipFile = new ZipFile(archive);
+        }
+
+        return zipFile;
+    }
+
+    private synchronized void markStale()
+    {
+        stale = true;
+
+        if (users == 0) {
+            close();
+        }
+    }
+
+    private synchronized void close()
+    {
+        if (zipFile != null) {
+            try {
+                zipFile.close();
+            }
+            catch (IOException ignore) {
+                // Nothing to do
+            }
+
+            zipFile = null;
+        }
+    }
+
+    private void add(@NotNull String entryName)
+    {
+        final int    slash = entryName.lastIndexOf('/');
+        final String packageDir = slash == -1 ? "" : entryName.substring(0, slash);
+        List<String> entries = entriesByPackage.get(packageDir);
+
+        if (entries == null) {
+            entries = new ArrayList<String>();
+            entriesByPackage.put(packageDir, entries);
+        }
+
+        entries.add(entryName.substring(slash + 1));
+    }
+
+    private void readManifestClassPath(@NotNull InputStream is)
+        throws IOException
+    {
+        final String classPath;
+
+        try {
+            classPath = new Manifest(is).getMainAttributes().getValue(Attributes.Name.CLASS_PATH);
+        }
+        finally {
+            is.close();
+        }
+
+        if (classPath != null) {
+            for (String url : classPath.trim().split("\\s+")) {
+                if (!url.isEmpty()) {
+                    manifestClassPath.add(url);
+                }
+            }
+        }
+    }
+
+    private void store(@NotNull File file)
+    {
+        final File tmp = new File(file.getPath() + ".tmp");
+
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(archive.getPath());
+                out.writeInt(manifestClassPath.size());
+
+                for (String url : manifestClassPath) {
+                    out.writeUTF(url);
+                }
+
+                out.writeInt(entriesByPackage.size());
+
+                for (Map.Entry<String, List<String>> entry : new TreeMap<String, List<String>>(entriesByPackage)
+                                                             .entrySet()) {
+                    out.writeUTF(entry.getKey());
+                    out.writeInt(entry.getValue().size());
+
+                    for (String name : entry.getValue()) {
+                        out.writeUTF(name);
+                    }
+                }
+            }
+            finally {
+                out.close();
+            }
+
+            if (!tmp.renameTo(file) && (!file.delete() || !tmp.renameTo(file))) {
+                tmp.delete();
+            }
+        }
+        catch (IOException e) {
+            // The store is just an optimization
+            tmp.delete();
+        }
+    }
+
+    @NotNull private static PackageIndex build(@NotNull File archive, long length, long lastModified)
+        throws IOException
+    {
+        final PackageIndex result = new PackageIndex(archive, length, lastModified);
+        final ZipFile      zip = new ZipFile(archive);
+
+        try {
+            final Enumeration<? extends ZipEntry> entries = zip.entries();
+
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+
+                if (!entry.isDirectory()) {
+                    result.add(entry.getName());
+                }
+            }
+
+            final ZipEntry manifest = zip.getEntry(JarFile.MANIFEST_NAME);
+
+            if (manifest != null) {
+                result.readManifestClassPath(zip.getInputStream(manifest));
+            }
+        }
+        finally {
+            zip.close();
+        }
+
+        return result;
+    }
+
+    @Nullable private static PackageIndex load(@NotNull File file, @NotNull File archive, long length,
+                                               long lastModified)
+    {
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            final FileInputStream is = new FileInputStream(file);
+
+            try {
+                final FileChannel     channel = is.getChannel();
+                final DataInputStream in =
+                    new DataInputStream(new BufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                                                          channel.size())));
+
+                if (in.readInt() != VERSION || !in.readUTF().equals(archive.getPath())) {
+                    return null;
+                }
+
+                final PackageIndex result = new PackageIndex(archive, length, lastModified);
+
+                for (int n = in.readInt(); n > 0; n--) {
+                    result.manifestClassPath.add(in.readUTF());
+                }
+
+                for (int n = in.readInt(); n > 0; n--) {
+                    final String       packageDir = in.readUTF();
+                    final int          size = in.readInt();
+                    final List<String> entries = new ArrayList<String>(size);
+
+                    for (int i = 0; i < size; i++) {
+                        entries.add(in.readUTF());
+                    }
+
+                    result.entriesByPackage.put(packageDir, entries);
+                }
+
+                return result;
+            }
+            finally {
+                is.close();
+            }
+        }
+        catch (IOException e) {
+            // A corrupted index is just built again
+            return null;
+        }
+    }
+
+    @NotNull private static File storeFile(@NotNull File archive, long length, long lastModified)
+    {
+        final MessageDigest md = DigestUtils.newDigest();
+        DigestUtils.update(md, archive.getAbsolutePath() + ":" + length + ":" + lastModified);
+        return new File(new File(FileUtils.getApbDir(), STORE_DIR), DigestUtils.toHex(md.digest()) + STORE_EXT);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The indexes already loaded, by archive
+     */
+    private static final Map<File, PackageIndex> indexes = new HashMap<File, PackageIndex>();
+
+    private static final String STORE_DIR = "package-index";
+    private static final String STORE_EXT = ".idx";
+
+    private static final int VERSION = 2;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * An InputStream over a (mapped) buffer
+     */
+    private static class BufferInputStream
+        extends InputStream
+    {
+        @NotNull private final ByteBuffer buffer;
+
+        BufferInputStream(@NotNull ByteBuffer buffer)
+        {
+            this.buffer = buffer;
+        }
+
+        @Override public int read()
+        {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+        }
+
+        @Override public int read(byte[] bytes, int off, int len)
+        {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+
+            final int n = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, n);
+            return n;
+        }
+    }
+}
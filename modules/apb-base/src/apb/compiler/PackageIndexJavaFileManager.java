@@ -0,0 +1,320 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.compiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.tools.FileObject;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A {@link javax.tools.JavaFileManager} that lists the packages in the archives of the classpath
+ * using a {@link PackageIndex}, instead of walking every archive for every package the compiler looks for.
+ * Only the archives that contain the package are considered, and they are only opened when one
+ * of their classes is actually read.
+ * Directories in the classpath are listed directly, keeping the order of the classpath.
+ * As javac does, the classpath is expanded with the 'Class-Path' in the manifest of its archives.
+ */
+public class PackageIndexJavaFileManager
+    extends DefaultJavaFileManager
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The complete classpath (In the same order used for the '-classpath' option)
+     */
+    @NotNull private final List<File> classPath;
+
+    /**
+     * The indexes of the archives listed, that are retained until the compilation finishes
+     */
+    @NotNull private final Set<PackageIndex> indexes;
+
+    /**
+     * The classpath expanded with the 'Class-Path' of the manifests of its archives (Built on the first listing)
+     */
+    @Nullable private List<File> searchPath;
+
+    //~ Constructors .........................................................................................
+
+    PackageIndexJavaFileManager(@NotNull StandardJavaFileManager fileManager, @NotNull List<File> classPath)
+    {
+        super(fileManager);
+        this.classPath = classPath;
+        indexes = new HashSet<PackageIndex>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    @Override public Iterable<JavaFileObject> list(Location location, String packageName,
+                                                   Set<JavaFileObject.Kind> kinds, boolean recurse)
+        throws IOException
+    {
+        if (location != StandardLocation.CLASS_PATH || recurse) {
+            return super.list(location, packageName, kinds, recurse);
+        }
+
+        final String               packageDir = packageName.replace('.', '/');
+        final List<JavaFileObject> result = new ArrayList<JavaFileObject>();
+
+        for (File entry : searchPath()) {
+            if (entry.isDirectory()) {
+                listDirectory(new File(entry, packageDir), kinds, result);
+            }
+            else if (entry.isFile()) {
+                final PackageIndex index = index(entry);
+
+                for (String name : index.entries(packageDir)) {
+                    final JavaFileObject.Kind kind = kindOf(name);
+
+                    if (kinds.contains(kind)) {
+                        result.add(new ArchiveFileObject(index, packageName, packageDir, name, kind));
+                    }
+                }
+            }
+        }
+
+        return recordingReads(result);
+    }
+
+    /**
+     * Release the archives used by the compilation
+     * @param close Whether to close the ones not used by other compilations
+     */
+    void releaseArchives(boolean close)
+    {
+        for (PackageIndex index : indexes) {
+            index.release(close);
+        }
+
+        indexes.clear();
+    }
+
+    /**
+     * The classpath, with the entries in the 'Class-Path' of the manifest of each archive after it
+     * (Unless they are already in the path, like javac does)
+     */
+    @NotNull private List<File> searchPath()
+        throws IOException
+    {
+        if (searchPath == null) {
+            final Set<File> result = new LinkedHashSet<File>();
+
+            for (File entry : classPath) {
+                addToSearchPath(entry, result);
+            }
+
+            searchPath = new ArrayList<File>(result);
+        }
+
+        return searchPath;
+    }
+
+    private void addToSearchPath(@NotNull File entry, @NotNull Set<File> result)
+        throws IOException
+    {
+        if (result.add(entry) && entry.isFile()) {
+            final URI dir = entry.getAbsoluteFile().getParentFile().toURI();
+
+            for (String url : index(entry).getManifestClassPath()) {
+                try {
+                    final URI uri = dir.resolve(url);
+
+                    if ("file".equals(uri.getScheme())) {
+                        addToSearchPath(new File(uri), result);
+                    }
+                }
+                catch (IllegalArgumentException ignore) {
+                    // An invalid url is skipped, like javac does
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the index of an archive, retaining it until the compilation finishes
+     */
+    @NotNull private PackageIndex index(@NotNull File archive)
+        throws IOException
+    {
+        final PackageIndex index = PackageIndex.forArchive(archive);
+
+        if (indexes.add(index)) {
+            index.retain();
+        }
+
+        return index;
+    }
+
+    @Override public String inferBinaryName(Location location, JavaFileObject file)
+    {
+        final JavaFileObject f = unwrap(file);
+        return f instanceof ArchiveFileObject ? ((ArchiveFileObject) f).binaryName
+                                              : super.inferBinaryName(location, f);
+    }
+
+    @Override public boolean isSameFile(FileObject a, FileObject b)
+    {
+        final FileObject fa = unwrap(a);
+        final FileObject fb = unwrap(b);
+        return fa instanceof ArchiveFileObject || fb instanceof ArchiveFileObject ? fa.toUri().equals(fb.toUri())
+                                                                                  : super.isSameFile(fa, fb);
+    }
+
+    private void listDirectory(@NotNull File dir, @NotNull Set<JavaFileObject.Kind> kinds,
+                               @NotNull List<JavaFileObject> result)
+    {
+        final File[] files = dir.listFiles();
+
+        if (files != null) {
+            final List<File> selected = new ArrayList<File>();
+
+            for (File file : files) {
+                if (kinds.contains(kindOf(file.getName())) && file.isFile()) {
+                    selected.add(file);
+                }
+            }
+
+            for (JavaFileObject fileObject : getJavaFileObjects(selected)) {
+                result.add(fileObject);
+            }
+        }
+    }
+
+    @NotNull private static JavaFileObject.Kind kindOf(@NotNull String name)
+    {
+        for (JavaFileObject.Kind kind : JavaFileObject.Kind.values()) {
+            if (kind != JavaFileObject.Kind.OTHER && name.endsWith(kind.extension)) {
+                return kind;
+            }
+        }
+
+        return JavaFileObject.Kind.OTHER;
+    }
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * An entry in an archive of the classpath
+     */
+    static class ArchiveFileObject
+        extends SimpleJavaFileObject
+    {
+        @NotNull private final PackageIndex index;
+        @NotNull private final String       binaryName;
+        @NotNull private final String       entryName;
+
+        ArchiveFileObject(@NotNull PackageIndex index, @NotNull String packageName, @NotNull String packageDir,
+                          @NotNull String name, @NotNull Kind kind)
+        {
+            super(entryUri(index.getArchive(), packageDir.isEmpty() ? name : packageDir + "/" + name), kind);
+            this.index = index;
+            entryName = packageDir.isEmpty() ? name : packageDir + "/" + name;
+
+            final String simpleName = name.substring(0, name.length() - kind.extension.length());
+            binaryName = packageName.isEmpty() ? simpleName : packageName + "." + simpleName;
+        }
+
+        /**
+         * The archive that contains the entry
+         */
+        @NotNull File getArchive()
+        {
+            return index.getArchive();
+        }
+
+        @Override public String getName()
+        {
+            return index.getArchive().getPath() + "(" + entryName + ")";
+        }
+
+        @Override public boolean isNameCompatible(String simpleName, Kind kind)
+        {
+            final String name = simpleName + kind.extension;
+            return kind == getKind() && (entryName.equals(name) || entryName.endsWith("/" + name));
+        }
+
+        @Override public InputStream openInputStream()
+            throws IOException
+        {
+            return index.open(entryName);
+        }
+
+        @Override public CharSequence getCharContent(boolean ignoreEncodingErrors)
+            throws IOException
+        {
+            final InputStream           is = openInputStream();
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+            try {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int          n;
+
+                while ((n = is.read(buffer)) > 0) {
+                    bytes.write(buffer, 0, n);
+                }
+            }
+            finally {
+                is.close();
+            }
+
+            return bytes.toString();
+        }
+
+        @Override public long getLastModified()
+        {
+            return index.getArchive().lastModified();
+        }
+
+        @Override public String toString()
+        {
+            return getName();
+        }
+
+        /**
+         * An uri for the entry, like 'file:/lib/junit.jar!/junit/framework/Assert.class'
+         * (It must be hierarchical, so it cannot use the 'jar:' scheme)
+         */
+        private static URI entryUri(@NotNull File archive, @NotNull String entryName)
+        {
+            try {
+                return URI.create(archive.toURI() + "!" + new URI(null, null, "/" + entryName, null).getRawPath());
+            }
+            catch (URISyntaxException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        private static final int BUFFER_SIZE = 8192;
+    }
+}
@@ -56,6 +56,12 @@ public class CompileInfo
      */
     @BuildProperty public boolean failOnWarning = false;
 
+    /**
+     * Recompile only the modified source files and the ones depending on them,
+     * removing the classes of deleted source files
+     */
+    @BuildProperty public boolean incremental = true;
+
     /**
      * Instrument 'not null´  annotations
      */
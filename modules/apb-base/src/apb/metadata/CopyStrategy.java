@@ -0,0 +1,40 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.metadata;
+
+/**
+ * How files are placed in the target directory when copying them.
+ * When a file cannot be linked or cloned (Different file systems, or not supported by them) it is copied.
+ */
+public enum CopyStrategy
+{
+    /**
+     * Copy the content of the files
+     */
+    COPY,
+
+    /**
+     * Create hard links to the files.
+     * (The copies share the content with the originals, so modifying one of them modifies the other)
+     */
+    LINK,
+
+    /**
+     * Clone the files using copy-on-write, in the file systems that support it
+     */
+    REFLINK
+}
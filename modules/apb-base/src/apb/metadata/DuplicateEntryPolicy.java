@@ -0,0 +1,39 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.metadata;
+
+/**
+ * What to do when more than one of the inputs of a package have an entry with the same name.
+ * (Services are always merged)
+ */
+public enum DuplicateEntryPolicy
+{
+    /**
+     * Keep the first entry
+     */
+    FIRST,
+
+    /**
+     * Keep the first entry, and log a warning
+     */
+    WARN,
+
+    /**
+     * Fail the build
+     */
+    FAIL
+}
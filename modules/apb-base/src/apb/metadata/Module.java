@@ -173,7 +173,7 @@ public class Module
                    .including(resources.includes())  //
                    .excluding(resources.excludes());
 
-        copy(fileSet).to(resources.output).execute();
+        copy(fileSet).to(resources.output).using(resources.copyStrategy).execute();
         // todo add filtered
     }
 
@@ -21,7 +21,7 @@ package apb.metadata;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -50,6 +50,23 @@ public class PackageInfo
      */
     @BuildProperty public IncludeDependencies includeDependencies = IncludeDependencies.NONE;
 
+    /**
+     * Whether to include the libraries the module (And the modules included in the package) depend on.
+     * The entries of the library jars are copied into the package.
+     */
+    @BuildProperty public boolean includeLibraries;
+
+    /**
+     * What to do when more than one of the included directories or libraries have the same entry
+     */
+    @BuildProperty public DuplicateEntryPolicy duplicateEntries = DuplicateEntryPolicy.WARN;
+
+    /**
+     * Whether to generate the same package (Byte by byte) from the same content.
+     * (Entries are sorted and written with a fixed time)
+     */
+    @BuildProperty public boolean reproducible;
+
     /**
      * The packaging type for the module
      */
@@ -72,7 +89,7 @@ public class PackageInfo
 
     /**
      * Additional dependencies added into the package.
-     * Libraries are not included in module package. Specified library dependencies will be ignored.
+     * Libraries are only included in the package if {@link #includeLibraries} is set.
      */
     private final DependencyList additionalDependencies = new DependencyList();
 
@@ -153,7 +170,7 @@ public class PackageInfo
         Set<String> ps = services.get(service);
 
         if (ps == null) {
-            ps = new HashSet<String>();
+            ps = new LinkedHashSet<String>();
         }
 
         ps.addAll(asList(providers));
@@ -31,6 +31,12 @@ public class ResourcesInfo
 {
     //~ Instance fields ......................................................................................
 
+    /**
+     * How the resources are placed in the output directory.
+     * Linking or cloning them avoids copying their content when they are in the same file system.
+     */
+    @BuildProperty public CopyStrategy copyStrategy = CopyStrategy.COPY;
+
     /**
      * The directory for the resources.
      * The default is the source directory for the module.
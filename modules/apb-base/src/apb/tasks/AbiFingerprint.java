@@ -0,0 +1,289 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import apb.BuildException;
+
+import apb.utils.ClassFileInfo;
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The fingerprint of the ABI (Application Binary Interface) of a directory of classes.
+ * It is a digest of the non private signatures, constants and annotations of the classes, excluding method bodies,
+ * so it only changes when the classes compiled against the directory may need to be compiled again.
+ * The fingerprint of the output directory of a module is stored next to it (As 'classes.abi'),
+ * together with the fingerprint of each class, so only the modified classes are read again when it is updated.
+ */
+class AbiFingerprint
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The directory of classes
+     */
+    @NotNull private final File dir;
+
+    /**
+     * The state of each class by relative path
+     */
+    @NotNull private final Map<String, ClassState> classes;
+
+    //~ Constructors .........................................................................................
+
+    private AbiFingerprint(@NotNull File dir)
+    {
+        this.dir = dir;
+        classes = new TreeMap<String, ClassState>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Update the fingerprint stored for a directory of classes
+     * @return The fingerprint
+     */
+    @NotNull static String update(@NotNull File dir)
+    {
+        final AbiFingerprint abi = new AbiFingerprint(dir);
+        final File           file = abiFile(dir);
+
+        if (file.exists()) {
+            abi.load(file);
+        }
+
+        final String result = abi.compute();
+        abi.save(file, result);
+        return result;
+    }
+
+    /**
+     * Get a fingerprint for the api of a classpath.
+     * For directories the stored fingerprint is used (Or computed if there is none).
+     * For jars (And other files) the hash of the content is used.
+     */
+    @NotNull static String forClassPath(@NotNull Collection<File> classPath,
+                                        @NotNull FingerprintStore fingerprints)
+    {
+        final MessageDigest md = DigestUtils.newDigest();
+
+        for (File entry : classPath) {
+            DigestUtils.update(md, entry.getPath());
+
+            final String fingerprint;
+
+            if (entry.isDirectory()) {
+                final String stored = read(entry);
+                fingerprint = stored != null ? stored : new AbiFingerprint(entry).compute();
+            }
+            else {
+                fingerprint = entry.isFile() ? fingerprints.hash(entry) : "";
+            }
+
+            DigestUtils.update(md, fingerprint);
+        }
+
+        return DigestUtils.toHex(md.digest());
+    }
+
+    /**
+     * Get the fingerprint stored for a directory (Or null if there is none)
+     */
+    @Nullable static String read(@NotNull File dir)
+    {
+        final File file = abiFile(dir);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                return in.readInt() == VERSION ? in.readUTF() : null;
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Compute the fingerprint, reading the classes that changed since the last time
+     */
+    @NotNull private String compute()
+    {
+        final Map<String, ClassState> current = new TreeMap<String, ClassState>();
+        final int                     prefix = dir.getPath().length() + 1;
+
+        for (File classFile : FileUtils.listAllFilesWithExt(dir, CLASS_EXT)) {
+            final String path = classFile.getPath().substring(prefix).replace(File.separatorChar, '/');
+            ClassState   state = classes.get(path);
+
+            if (state == null || state.length != classFile.length() ||
+                    state.lastModified != classFile.lastModified()) {
+                state = new ClassState(classFile);
+            }
+
+            current.put(path, state);
+        }
+
+        classes.clear();
+        classes.putAll(current);
+
+        final MessageDigest md = DigestUtils.newDigest();
+
+        for (Map.Entry<String, ClassState> entry : classes.entrySet()) {
+            if (!entry.getValue().abi.isEmpty()) {
+                DigestUtils.update(md, entry.getKey());
+                DigestUtils.update(md, entry.getValue().abi);
+            }
+        }
+
+        return DigestUtils.toHex(md.digest());
+    }
+
+    private void load(@NotNull File file)
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() == VERSION) {
+                    // The fingerprint of the directory
+                    in.readUTF();
+
+                    for (int n = in.readInt(); n > 0; n--) {
+                        final String path = in.readUTF();
+                        classes.put(path, new ClassState(in.readLong(), in.readLong(), in.readUTF()));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ignore) {
+            // Everything will be read again
+            classes.clear();
+        }
+    }
+
+    private void save(@NotNull File file, @NotNull String fingerprint)
+    {
+        try {
+            DataOutputStream out =
+                new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(file)));
+
+            try {
+                out.writeInt(VERSION);
+                out.writeUTF(fingerprint);
+                out.writeInt(classes.size());
+
+                for (Map.Entry<String, ClassState> entry : classes.entrySet()) {
+                    final ClassState state = entry.getValue();
+                    out.writeUTF(entry.getKey());
+                    out.writeLong(state.length);
+                    out.writeLong(state.lastModified);
+                    out.writeUTF(state.abi);
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (IOException e) {
+            throw new BuildException("Cannot write abi fingerprint: " + file + ". Cause: " + e.getMessage());
+        }
+    }
+
+    @NotNull private static File abiFile(@NotNull File dir)
+    {
+        return new File(dir.getPath() + ABI_EXT);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String ABI_EXT = ".abi";
+    private static final String CLASS_EXT = ".class";
+
+    private static final int VERSION = 1;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The fingerprint of the api of a class file (Empty if it is not part of the api)
+     */
+    private static class ClassState
+    {
+        private final long   lastModified;
+        private final long   length;
+        private final String abi;
+
+        ClassState(long length, long lastModified, String abi)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.abi = abi;
+        }
+
+        ClassState(@NotNull File classFile)
+        {
+            length = classFile.length();
+            lastModified = classFile.lastModified();
+
+            try {
+                final ClassFileInfo info = ClassFileInfo.read(classFile);
+
+                if (info.getApi().isEmpty()) {
+                    abi = "";
+                }
+                else {
+                    final MessageDigest md = DigestUtils.newDigest();
+
+                    for (String line : info.getApi()) {
+                        DigestUtils.update(md, line);
+                    }
+
+                    abi = DigestUtils.toHex(md.digest());
+                }
+            }
+            catch (IOException e) {
+                throw new BuildException("Invalid class file: " + classFile + ". Cause: " + e.getMessage());
+            }
+        }
+    }
+}
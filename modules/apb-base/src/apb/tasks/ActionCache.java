@@ -0,0 +1,388 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import apb.Constants;
+import apb.Environment;
+
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * A content addressed cache of task outputs, shared by all the builds of the current user.
+ * Each entry is keyed by a hash of everything the outputs of a task depend on
+ * (Input files content, options, tool versions), so the outputs can be restored instead of recomputed
+ * when the same inputs are found again (For example when switching back to a previous branch).
+ * The cache is stored under $HOME/.apb/cache (Or in the directory specified by the 'build.cache.dir' property)
+ * and its size is bounded, evicting the least recently used entries.
+ */
+public class ActionCache
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The maximum size of the cache in bytes
+     */
+    private final long maxSize;
+
+    /**
+     * The cache directory
+     */
+    @NotNull private final File dir;
+
+    //~ Constructors .........................................................................................
+
+    private ActionCache(@NotNull File dir, long maxSize)
+    {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the cache for the specified environment, or null if the cache is disabled
+     */
+    @Nullable static ActionCache forEnvironment(@NotNull Environment env)
+    {
+        if (!env.getBooleanProperty(Constants.BUILD_CACHE_PROPERTY, true)) {
+            return null;
+        }
+
+        long size;
+
+        try {
+            size = Long.parseLong(env.getProperty(Constants.BUILD_CACHE_SIZE_PROPERTY, DEFAULT_SIZE_MB).trim());
+        }
+        catch (NumberFormatException e) {
+            size = Long.parseLong(DEFAULT_SIZE_MB);
+        }
+
+        final String dir = env.getProperty(Constants.BUILD_CACHE_DIR_PROPERTY, "");
+        return new ActionCache(dir.length() == 0 ? new File(FileUtils.getApbDir(), CACHE_DIR)
+                                                 : env.fileFromBase(dir), size * Constants.MB);
+    }
+
+    /**
+     * The number of outputs restored from the cache since the statistics were reset
+     */
+    public static int getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * The number of outputs not found in the cache since the statistics were reset
+     */
+    public static int getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * Reset hits & misses statistics
+     */
+    public static void resetStatistics()
+    {
+        hits.set(0);
+        misses.set(0);
+    }
+
+    /**
+     * Restore the entry with the specified key into a directory
+     * @param key The key of the entry
+     * @param targetDir The directory where to restore the files
+     * @return The (relative) paths of the restored files or null if the entry was not found
+     */
+    @Nullable List<String> restore(@NotNull String key, @NotNull File targetDir)
+    {
+        final File entry = entryFile(key);
+
+        if (!entry.exists()) {
+            misses.incrementAndGet();
+            return null;
+        }
+
+        try {
+            final List<String> result = new ArrayList<String>();
+            ZipInputStream     zip = new ZipInputStream(new BufferedInputStream(new FileInputStream(entry)));
+
+            try {
+                for (ZipEntry e; (e = zip.getNextEntry()) != null;) {
+                    final String name = e.getName();
+                    copy(zip, FileUtils.createOutputStream(new File(targetDir, name)));
+                    result.add(name);
+                }
+            }
+            finally {
+                zip.close();
+            }
+
+            // Mark as recently used
+            entry.setLastModified(System.currentTimeMillis());
+            hits.incrementAndGet();
+            return result;
+        }
+        catch (IOException e) {
+            // A corrupted entry: just remove it
+            entry.delete();
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Store files in an entry of the cache.
+     * Failures storing the entry are ignored, the cache is just an optimization.
+     * @param key The key of the entry
+     * @param baseDir The directory the files are relative to
+     * @param files The (relative) paths of the files to store
+     */
+    void store(@NotNull String key, @NotNull File baseDir, @NotNull Collection<String> files)
+    {
+        final File entry = entryFile(key);
+        File       tmp = null;
+
+        try {
+            entry.getParentFile().mkdirs();
+            tmp = File.createTempFile(key, ".tmp", entry.getParentFile());
+
+            ZipOutputStream zip = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            zip.setLevel(Deflater.BEST_SPEED);
+
+            try {
+                for (String file : files) {
+                    zip.putNextEntry(new ZipEntry(file.replace(File.separatorChar, '/')));
+                    copy(new FileInputStream(new File(baseDir, file)), zip);
+                    zip.closeEntry();
+                }
+            }
+            finally {
+                zip.close();
+            }
+
+            if (tmp.renameTo(entry)) {
+                tmp = null;
+                evict();
+            }
+        }
+        catch (IOException ignore) {
+            // Just do not store it
+        }
+        finally {
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    @NotNull private File entryFile(@NotNull String key)
+    {
+        return new File(new File(dir, key.substring(0, 2)), key + ENTRY_EXT);
+    }
+
+    /**
+     * Remove the least recently used entries until the cache fits in the maximum size
+     */
+    private void evict()
+    {
+        synchronized (ActionCache.class) {
+            final List<File> entries = FileUtils.listAllFilesWithExt(dir, ENTRY_EXT);
+            long             size = 0;
+
+            for (File entry : entries) {
+                size += entry.length();
+            }
+
+            if (size > maxSize) {
+                Collections.sort(entries, LEAST_RECENTLY_USED);
+
+                for (File entry : entries) {
+                    if (size <= maxSize) {
+                        break;
+                    }
+
+                    final long length = entry.length();
+
+                    if (entry.delete()) {
+                        size -= length;
+                    }
+                }
+            }
+        }
+    }
+
+    private static void copy(InputStream from, OutputStream to)
+        throws IOException
+    {
+        final boolean zip = from instanceof ZipInputStream;
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+
+            for (int n; (n = from.read(buffer)) > 0;) {
+                to.write(buffer, 0, n);
+            }
+        }
+        finally {
+            // Zip streams are closed by the caller, once all entries are processed
+            if (zip) {
+                to.close();
+            }
+            else {
+                from.close();
+            }
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String CACHE_DIR = "cache";
+    private static final String ENTRY_EXT = ".zip";
+    private static final String DEFAULT_SIZE_MB = "1024";
+    private static final int    BUFFER_SIZE = 64 * 1024;
+
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+
+    private static final Comparator<File> LEAST_RECENTLY_USED =
+        new Comparator<File>() {
+            public int compare(File o1, File o2)
+            {
+                final long l1 = o1.lastModified();
+                final long l2 = o2.lastModified();
+                return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+            }
+        };
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A builder for the key of a cache entry
+     */
+    static class Key
+    {
+        @NotNull private final FingerprintStore fingerprints;
+        @NotNull private final MessageDigest    md;
+
+        /**
+         * Create the key for the specified action
+         * @param action The name of the action (It includes the version of the tool)
+         * @param fingerprints The store used to get the content hash of files
+         */
+        Key(@NotNull String action, @NotNull FingerprintStore fingerprints)
+        {
+            this.fingerprints = fingerprints;
+            md = DigestUtils.newDigest();
+            add(action);
+            add(System.getProperty("java.version"));
+        }
+
+        Key add(@NotNull String str)
+        {
+            DigestUtils.update(md, str);
+            return this;
+        }
+
+        Key add(@NotNull Collection<String> strs)
+        {
+            for (String str : strs) {
+                add(str);
+            }
+
+            return this;
+        }
+
+        /**
+         * Add a file with the name it will have in the output
+         */
+        Key addFile(@NotNull String name, @NotNull File file)
+        {
+            add(name);
+            return add(file.isFile() ? fingerprints.hash(file) : "");
+        }
+
+        /**
+         * Add the content of a file or all files under a directory (Like a classpath entry)
+         */
+        Key addContent(@NotNull File file)
+        {
+            if (file.isDirectory()) {
+                final List<File> files = FileUtils.listAllFiles(file);
+                fingerprints.hashAll(files);
+
+                final String[] names = new String[files.size()];
+                final int      prefix = file.getPath().length() + 1;
+
+                for (int i = 0; i < names.length; i++) {
+                    names[i] = files.get(i).getPath().substring(prefix);
+                }
+
+                Arrays.sort(names);
+
+                for (String name : names) {
+                    addFile(name, new File(file, name));
+                }
+
+                return this;
+            }
+
+            return addFile(file.getName(), file);
+        }
+
+        Key addContent(@NotNull Collection<File> files)
+        {
+            for (File file : files) {
+                addContent(file);
+            }
+
+            return this;
+        }
+
+        /**
+         * Get the value of the key. (The key cannot be used after this)
+         */
+        @NotNull String digest()
+        {
+            return DigestUtils.toHex(md.digest());
+        }
+    }
+}
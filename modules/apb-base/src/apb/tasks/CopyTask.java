@@ -20,11 +20,22 @@ package apb.tasks;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import apb.Apb;
+import apb.BuildException;
+import apb.BuildTrace;
+
+import apb.metadata.CopyStrategy;
 
 import apb.utils.FileUtils;
 
@@ -32,6 +43,7 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import static java.util.Collections.singletonList;
+import static java.util.Collections.singletonMap;
 
 import static apb.tasks.FileSet.fromDir;
 import static apb.tasks.FileSet.fromFile;
@@ -54,6 +66,30 @@ public class CopyTask
 
     @NotNull protected final List<FileSet> from;
 
+    /**
+     * Whether many files can be copied in parallel
+     */
+    private boolean parallel = true;
+
+    /**
+     * Whether cloning files failed (So it is not tried again)
+     */
+    private volatile boolean reflinkFailed;
+
+    /**
+     * How the files are placed in the target directory
+     */
+    @NotNull private CopyStrategy strategy = CopyStrategy.COPY;
+
+    /**
+     * The number of files (and bytes) copied, the number of files linked (or cloned)
+     * and the number of files skipped because they were up to date, for the log and the build trace
+     */
+    private int  copiedFiles;
+    private long copiedBytes;
+    private int  linkedFiles;
+    private int  skippedFiles;
+
     //~ Constructors .........................................................................................
 
     protected CopyTask(@NotNull List<FileSet> fileSets, @NotNull File to)
@@ -70,14 +106,43 @@ public class CopyTask
        */
     public void execute()
     {
-        if (singleSource == null) {
-            copyToDirectory();
+        final BuildTrace.Span span = BuildTrace.begin(BuildTrace.TASK, "copy").arg("to", to.getPath());
+
+        try {
+            if (singleSource == null) {
+                copyToDirectory();
+            }
+            else {
+                copyToFile(singleSource);
+            }
         }
-        else {
-            copyToFile(singleSource);
+        finally {
+            span.arg("files", copiedFiles).arg("bytes", copiedBytes).arg("linked", linkedFiles)
+                .arg("skipped", skippedFiles).end();
         }
     }
 
+    /**
+     * How the files are placed in the target directory when copying to a directory (Copying them by default).
+     * When a file cannot be linked or cloned it is copied.
+     * (It only applies when copying the files as they are, not when filtering or transforming them)
+     */
+    @NotNull public CopyTask using(@NotNull CopyStrategy s)
+    {
+        strategy = s;
+        return this;
+    }
+
+    /**
+     * Whether many files can be copied in parallel (The default)
+     * (Only when copying the files as they are, not when filtering or transforming them)
+     */
+    @NotNull public CopyTask parallel(boolean b)
+    {
+        parallel = b;
+        return this;
+    }
+
     protected void doCopyFile(File sourceFile, File dest)
         throws IOException
     {
@@ -89,13 +154,51 @@ public class CopyTask
         FileUtils.copyFile(sourceFile, dest, false);
     }
 
+    /**
+     * Whether files are copied as they are by {@link #doCopyFile}.
+     * (So they can be linked instead, and copied in parallel)
+     */
+    protected boolean isPlainCopy()
+    {
+        return true;
+    }
+
     private void copyToFile(@NotNull final File sourceFile)
     {
-        final File dest = to.isDirectory() ? new File(to, sourceFile.getName()) : to;
+        final File             dest = to.isDirectory() ? new File(to, sourceFile.getName()) : to;
+        final FingerprintStore fingerprints = FingerprintStore.forEnvironment(env);
+        final boolean          hasFingerprint = fingerprints.hasFingerprint(dest);
 
-        if (env.forceBuild() || !dest.exists() || sourceFile.lastModified() > dest.lastModified()) {
+        final boolean uptodate = !env.forceBuild() && uptodate(fingerprints, sourceFile, dest);
+
+        if (!uptodate) {
             copyFile(sourceFile, dest);
         }
+
+        if (!uptodate || !hasFingerprint) {
+            record(fingerprints, sourceFile, dest);
+            fingerprints.save();
+        }
+    }
+
+    /**
+     * Check if the destination file is up to date.
+     * It is if its content and the content of the source did not change since it was copied.
+     * (If there are no fingerprints for it, timestamps are compared)
+     */
+    private boolean uptodate(FingerprintStore fingerprints, File source, File dest)
+    {
+        if (fingerprints.hasFingerprint(dest)) {
+            return fingerprints.uptodate(dest, singletonList(source), getClass().getName());
+        }
+
+        final long destLastModified = dest.lastModified();
+        return destLastModified != 0 && source.lastModified() <= destLastModified;
+    }
+
+    private void record(FingerprintStore fingerprints, File source, File dest)
+    {
+        fingerprints.record(dest, singletonList(source), getClass().getName());
     }
 
     @Nullable private File extractSingleFile()
@@ -117,15 +220,182 @@ public class CopyTask
     {
         try {
             doCopyFile(source, dest);
+            count(1, source.length(), 0);
         }
         catch (IOException e) {
             env.handle(e);
         }
     }
 
+    private synchronized void count(int copied, long bytes, int linked)
+    {
+        copiedFiles += copied;
+        copiedBytes += bytes;
+        linkedFiles += linked;
+    }
+
+    /**
+     * Place the files in the target directory, in parallel if there are many of them
+     */
+    private void transferAll(@NotNull Map<File, File> files)
+    {
+        final List<Map<File, File>> batches = batches(files);
+
+        final int threads =
+            !parallel || !isPlainCopy()
+            ? 1
+            : Math.min(Math.min(Math.max(Runtime.getRuntime().availableProcessors(), MIN_THREADS),
+                                files.size() / MIN_FILES_PER_THREAD), batches.size());
+
+        if (threads <= 1) {
+            for (Map<File, File> batch : batches) {
+                transfer(batch);
+            }
+        }
+        else {
+            transferInParallel(batches, threads);
+        }
+    }
+
+    private void transferInParallel(@NotNull List<Map<File, File>> batches, int threads)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<Void>> results = new ArrayList<Future<Void>>();
+
+            for (final Map<File, File> batch : batches) {
+                results.add(executor.submit(new Callable<Void>() {
+                            public Void call()
+                            {
+                                transfer(batch);
+                                return null;
+                            }
+                        }));
+            }
+
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new BuildException(cause);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Split the files to place in groups.
+     * Files to clone are grouped by target directory, to clone many of them at once.
+     * Any other file is placed on its own.
+     */
+    @NotNull private List<Map<File, File>> batches(@NotNull Map<File, File> files)
+    {
+        final List<Map<File, File>> result = new ArrayList<Map<File, File>>();
+
+        if (strategy == CopyStrategy.REFLINK && isPlainCopy()) {
+            final Map<File, Map<File, File>> byDirectory = new LinkedHashMap<File, Map<File, File>>();
+
+            for (Map.Entry<File, File> entry : files.entrySet()) {
+                final File      dir = entry.getValue().getParentFile();
+                Map<File, File> batch = byDirectory.get(dir);
+
+                if (batch == null || batch.size() == MAX_BATCH_SIZE) {
+                    if (batch != null) {
+                        result.add(batch);
+                    }
+
+                    batch = new LinkedHashMap<File, File>();
+                    byDirectory.put(dir, batch);
+                }
+
+                batch.put(entry.getKey(), entry.getValue());
+            }
+
+            result.addAll(byDirectory.values());
+        }
+        else {
+            for (Map.Entry<File, File> entry : files.entrySet()) {
+                result.add(singletonMap(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Place a group of files in the target directory, linking or cloning them if possible
+     */
+    private void transfer(@NotNull Map<File, File> batch)
+    {
+        final CopyStrategy s = isPlainCopy() ? strategy : CopyStrategy.COPY;
+
+        if (s == CopyStrategy.REFLINK && !reflinkFailed) {
+            // The files in a batch go to the same directory, and keep their names
+            final File dir = batch.values().iterator().next().getParentFile();
+
+            // 'cp' writes through existing targets, that may be links to the sources
+            for (File dest : batch.values()) {
+                dest.delete();
+            }
+
+            if (FileUtils.reflink(batch.keySet(), dir)) {
+                logTransfer("Clone", batch);
+                count(0, 0, batch.size());
+                return;
+            }
+
+            // Do not try again, just copy them
+            reflinkFailed = true;
+        }
+
+        for (Map.Entry<File, File> entry : batch.entrySet()) {
+            if (s == CopyStrategy.LINK && FileUtils.createLink(entry.getKey(), entry.getValue())) {
+                logTransfer("Link", singletonMap(entry.getKey(), entry.getValue()));
+                count(0, 0, 1);
+            }
+            else {
+                copyFile(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private void logTransfer(@NotNull String action, @NotNull Map<File, File> files)
+    {
+        if (env.isVerbose()) {
+            for (Map.Entry<File, File> entry : files.entrySet()) {
+                logVerbose("%-5s %s\n", action, entry.getKey());
+                logVerbose("   to %s\n", entry.getValue());
+            }
+        }
+    }
+
     private void copyToDirectory()
     {
-        Map<File, File> files = FileUtils.listAllMappingToTarget(from, to, true);
+        final Map<File, File>  all = FileUtils.listAllMappingToTarget(from, to, false);
+        final FingerprintStore fingerprints = FingerprintStore.forEnvironment(env);
+        final Map<File, File>  files = new LinkedHashMap<File, File>();
+
+        fingerprints.hashAll(all.keySet());
+
+        for (Map.Entry<File, File> entry : all.entrySet()) {
+            final File dest = entry.getValue();
+
+            if (!uptodate(fingerprints, entry.getKey(), dest)) {
+                files.put(entry.getKey(), dest);
+            }
+            else if (!fingerprints.hasFingerprint(dest)) {
+                record(fingerprints, entry.getKey(), dest);
+            }
+        }
+
+        skippedFiles = all.size() - files.size();
 
         /**
          * If the source file/directories are empty or not existent just skip the copy
@@ -136,14 +406,38 @@ public class CopyTask
             }
             else {
                 env.logInfo("Copying %2d file%s\nto %s\n", files.size(), files.size() > 1 ? "s" : "", to);
+                transferAll(files);
 
                 for (Map.Entry<File, File> entry : files.entrySet()) {
-                    copyFile(entry.getKey(), entry.getValue());
+                    record(fingerprints, entry.getKey(), entry.getValue());
                 }
+
+                env.logInfo("Copied %d, linked %d, skipped %d (up to date)\n", copiedFiles, linkedFiles,
+                            skippedFiles);
             }
         }
+
+        fingerprints.save();
     }
 
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The minimum number of files to copy for each thread
+     */
+    private static final int MIN_FILES_PER_THREAD = 32;
+
+    /**
+     * The minimum number of threads for a parallel copy
+     * (Copying small files is bound by the latency of the file system more than by the processors)
+     */
+    private static final int MIN_THREADS = 4;
+
+    /**
+     * The maximum number of files cloned at once
+     */
+    private static final int MAX_BATCH_SIZE = 256;
+
     //~ Inner Classes ........................................................................................
 
     public static class Builder
@@ -0,0 +1,466 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import apb.BuildException;
+import apb.Environment;
+
+import apb.utils.ClassFileInfo;
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+import apb.utils.StringUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.CollectionUtils.addIfNotNull;
+
+/**
+ * The dependencies between the source files compiled into a directory.
+ * For every source file it records the classes generated from it, and the classes they reference
+ * (As found in the constant pool of the generated class files).
+ * It is used by {@link JavacTask} to recompile the dependents of the modified source files,
+ * and to remove the classes generated from deleted ones.
+ * Source files are identified by their path relative to the source directory (Like 'apb/Main.java')
+ */
+class DependencyGraph
+{
+    //~ Instance fields ......................................................................................
+
+    private boolean modified;
+
+    /**
+     * The file where the graph is persisted (null for a transient graph)
+     */
+    @Nullable private final File storeFile;
+
+    /**
+     * The directory where the classes are generated
+     */
+    @NotNull private final File targetDir;
+
+    /**
+     * The information for each source file, by relative path
+     */
+    @NotNull private final Map<String, SourceInfo> sources;
+
+    //~ Constructors .........................................................................................
+
+    private DependencyGraph(@Nullable File storeFile, @NotNull File targetDir)
+    {
+        this.storeFile = storeFile;
+        this.targetDir = targetDir;
+        sources = new HashMap<String, SourceInfo>();
+
+        if (storeFile != null && storeFile.exists()) {
+            load(storeFile);
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the graph for the classes compiled into the specified directory by the module of the Environment.
+     * If there is no current module a transient graph is returned
+     */
+    @NotNull static DependencyGraph forEnvironment(@NotNull Environment env, @NotNull File targetDir)
+    {
+        final String outputBase = env.getProperty(OUTPUT_BASE_PROPERTY, "");
+        final File   storeFile =
+            StringUtils.isEmpty(outputBase) ? null
+                                : new File(env.fileFromBase(outputBase), targetDir.getName() + STORE_EXT);
+        return new DependencyGraph(storeFile, targetDir);
+    }
+
+    /**
+     * Returns true if there is no information about any source file
+     */
+    boolean isEmpty()
+    {
+        return sources.isEmpty();
+    }
+
+    /**
+     * The classes referenced from the classes in the graph, not including the ones generated into the directory
+     */
+    @NotNull Set<String> references()
+    {
+        final Set<String> result = new HashSet<String>();
+
+        for (SourceInfo info : sources.values()) {
+            result.addAll(info.references);
+        }
+
+        for (SourceInfo info : sources.values()) {
+            result.removeAll(info.classes);
+        }
+
+        return result;
+    }
+
+    /**
+     * The source files in the graph that are not longer part of the specified ones
+     */
+    @NotNull Set<String> removedSources(@NotNull Collection<String> currentSources)
+    {
+        final Set<String> result = new TreeSet<String>(sources.keySet());
+        result.removeAll(currentSources);
+        return result;
+    }
+
+    /**
+     * Get the source files that (transitively) depend on the classes generated from the specified ones
+     * @param changed The relative paths of the modified (or removed) source files
+     * @return The dependent source files, not including the changed ones
+     */
+    @NotNull Set<String> dependents(@NotNull Collection<String> changed)
+    {
+        final Map<String, List<String>> usages = usages();
+        final Set<String>               visited = new HashSet<String>(changed);
+        final List<String>              pending = new ArrayList<String>(changed);
+        final Set<String>               result = new LinkedHashSet<String>();
+
+        while (!pending.isEmpty()) {
+            final SourceInfo info = sources.get(pending.remove(pending.size() - 1));
+
+            if (info != null) {
+                for (String className : info.classes) {
+                    final List<String> users = usages.get(className);
+
+                    if (users != null) {
+                        for (String user : users) {
+                            if (visited.add(user)) {
+                                result.add(user);
+                                pending.add(user);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Delete the classes generated from the specified source files and forget about them
+     * @return The number of deleted class files
+     */
+    int deleteClasses(@NotNull Collection<String> sourcePaths)
+    {
+        int result = 0;
+
+        for (String sourcePath : sourcePaths) {
+            final SourceInfo info = sources.remove(sourcePath);
+
+            if (info != null) {
+                modified = true;
+
+                for (String className : info.classes) {
+                    if (new File(targetDir, className + CLASS_EXT).delete()) {
+                        result++;
+                    }
+                }
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Get the digest of the compile time constants declared in the classes of a source file.
+     * (An empty string if there are none, or null if the source file is unknown)
+     */
+    @Nullable String constants(@NotNull String sourcePath)
+    {
+        final SourceInfo info = sources.get(sourcePath);
+        return info == null ? null : info.constants;
+    }
+
+    /**
+     * Update the graph with the classes in the target directory modified since the specified time
+     * (Use 0 to rebuild the whole graph)
+     * @param since The time the compilation started
+     */
+    void update(long since)
+    {
+        if (since == 0) {
+            sources.clear();
+        }
+
+        // Allow for file systems with a coarse timestamp resolution
+        final long                             limit = since == 0 ? 0 : since / 1000 * 1000 - 1000;
+        final Map<String, List<ClassFileInfo>> classesBySource = new HashMap<String, List<ClassFileInfo>>();
+
+        for (File classFile : FileUtils.listAllFilesWithExt(targetDir, CLASS_EXT)) {
+            if (classFile.lastModified() >= limit) {
+                final ClassFileInfo info = readClassFile(classFile);
+                final String        sourcePath = info == null ? null : info.getSourcePath();
+
+                if (sourcePath != null) {
+                    List<ClassFileInfo> classes = classesBySource.get(sourcePath);
+
+                    if (classes == null) {
+                        classes = new ArrayList<ClassFileInfo>();
+                        classesBySource.put(sourcePath, classes);
+                    }
+
+                    classes.add(info);
+                }
+            }
+        }
+
+        for (Map.Entry<String, List<ClassFileInfo>> entry : classesBySource.entrySet()) {
+            final List<ClassFileInfo> classes = entry.getValue();
+            final SourceInfo          previous = sources.get(entry.getKey());
+
+            // Only some of the classes of the source are recent (Include the other ones)
+            if (previous != null) {
+                final Set<String> names = new HashSet<String>();
+
+                for (ClassFileInfo info : classes) {
+                    names.add(info.getName());
+                }
+
+                for (String className : previous.classes) {
+                    final File classFile = new File(targetDir, className + CLASS_EXT);
+
+                    if (!names.contains(className) && classFile.exists()) {
+                        addIfNotNull(classes, readClassFile(classFile));
+                    }
+                }
+            }
+
+            sources.put(entry.getKey(), new SourceInfo(classes));
+        }
+
+        modified |= since == 0 || !classesBySource.isEmpty();
+    }
+
+    /**
+     * Persist the graph if it was modified
+     */
+    void save()
+    {
+        if (storeFile != null && modified) {
+            final File tmp = new File(storeFile.getPath() + ".tmp");
+
+            try {
+                DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+                try {
+                    out.writeInt(VERSION);
+                    out.writeUTF(targetDir.getPath());
+                    out.writeInt(sources.size());
+
+                    for (Map.Entry<String, SourceInfo> entry : sources.entrySet()) {
+                        final SourceInfo info = entry.getValue();
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(info.constants);
+                        writeStrings(out, info.classes);
+                        writeStrings(out, info.references);
+                    }
+                }
+                finally {
+                    out.close();
+                }
+
+                if (!tmp.renameTo(storeFile) && (!storeFile.delete() || !tmp.renameTo(storeFile))) {
+                    throw new IOException("Cannot rename: " + tmp);
+                }
+
+                modified = false;
+            }
+            catch (IOException e) {
+                throw new BuildException("Cannot write dependencies: " + storeFile + ". Cause: " +
+                                         e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * The source files that use each class
+     */
+    private Map<String, List<String>> usages()
+    {
+        final Map<String, List<String>> result = new HashMap<String, List<String>>();
+
+        for (Map.Entry<String, SourceInfo> entry : sources.entrySet()) {
+            for (String className : entry.getValue().references) {
+                List<String> users = result.get(className);
+
+                if (users == null) {
+                    users = new ArrayList<String>();
+                    result.put(className, users);
+                }
+
+                users.add(entry.getKey());
+            }
+        }
+
+        return result;
+    }
+
+    private void load(@NotNull File file)
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() == VERSION && in.readUTF().equals(targetDir.getPath())) {
+                    for (int n = in.readInt(); n > 0; n--) {
+                        final String path = in.readUTF();
+                        final String constants = in.readUTF();
+                        final List<String> classes = readStrings(in);
+                        sources.put(path, new SourceInfo(constants, classes, readStrings(in)));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ignore) {
+            // A corrupted graph is just discarded (Everything will be compiled again)
+            sources.clear();
+        }
+    }
+
+    @Nullable private static ClassFileInfo readClassFile(File classFile)
+    {
+        try {
+            return ClassFileInfo.read(classFile);
+        }
+        catch (IOException e) {
+            // Not tracked, it will be deleted when its source file is compiled again
+            return null;
+        }
+    }
+
+    private static void writeStrings(DataOutputStream out, Collection<String> strings)
+        throws IOException
+    {
+        out.writeInt(strings.size());
+
+        for (String str : strings) {
+            out.writeUTF(str);
+        }
+    }
+
+    private static List<String> readStrings(DataInputStream in)
+        throws IOException
+    {
+        final int          n = in.readInt();
+        final List<String> result = new ArrayList<String>(n);
+
+        for (int i = 0; i < n; i++) {
+            result.add(in.readUTF());
+        }
+
+        return result;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String STORE_EXT = ".deps";
+    private static final String CLASS_EXT = ".class";
+    private static final String OUTPUT_BASE_PROPERTY = "output-base";
+
+    private static final int VERSION = 1;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The classes generated from a source file
+     */
+    private static class SourceInfo
+    {
+        /**
+         * The names of the generated classes
+         */
+        private final List<String> classes;
+
+        /**
+         * The classes referenced from the generated ones
+         */
+        private final Collection<String> references;
+
+        /**
+         * A digest of the compile time constants declared, as they can be inlined in other classes
+         */
+        private final String constants;
+
+        SourceInfo(String constants, List<String> classes, Collection<String> references)
+        {
+            this.constants = constants;
+            this.classes = classes;
+            this.references = references;
+        }
+
+        SourceInfo(List<ClassFileInfo> infos)
+        {
+            classes = new ArrayList<String>();
+            references = new TreeSet<String>();
+
+            final List<String> allConstants = new ArrayList<String>();
+
+            for (ClassFileInfo info : infos) {
+                classes.add(info.getName());
+                references.addAll(info.getReferences());
+
+                for (String constant : info.getConstants()) {
+                    allConstants.add(info.getName() + "." + constant);
+                }
+            }
+
+            // Do not include references between classes of the same source
+            references.removeAll(classes);
+
+            if (allConstants.isEmpty()) {
+                constants = "";
+            }
+            else {
+                final MessageDigest md = DigestUtils.newDigest();
+
+                for (String constant : new TreeSet<String>(allConstants)) {
+                    DigestUtils.update(md, constant);
+                }
+
+                constants = DigestUtils.toHex(md.digest());
+            }
+        }
+    }
+}
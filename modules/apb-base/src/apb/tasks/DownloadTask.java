@@ -33,6 +33,7 @@ import java.util.TimeZone;
 
 import apb.Apb;
 import apb.BuildException;
+import apb.BuildTrace;
 import apb.Environment;
 
 import apb.metadata.UpdatePolicy;
@@ -135,11 +136,14 @@ public class DownloadTask
      */
     public void execute()
     {
+        final BuildTrace.Span span = BuildTrace.begin(BuildTrace.TASK, "download").arg("source", source.toString());
+
         try {
             if (!uptodate() && createTargetDir()) {
                 env.logInfo("Downloading: %s\n", source);
                 env.logInfo("         to: %s\n", FileUtils.normalizePath(dest));
                 download();
+                span.arg("bytes", dest.length());
             }
         }
         catch (UnknownHostException e) {
@@ -149,6 +153,9 @@ public class DownloadTask
             env.logSevere("Error downloading '%s' to '%s'\n", source, dest);
             env.handle(e);
         }
+        finally {
+            span.end();
+        }
     }
 
     private long getMDTM(@NotNull File file)
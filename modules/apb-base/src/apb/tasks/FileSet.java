@@ -29,6 +29,7 @@ import org.jetbrains.annotations.NotNull;
 import apb.Apb;
 import static apb.utils.CollectionUtils.expandAll;
 import apb.utils.DirectoryScanner;
+import apb.utils.TreeSnapshot;
 //
 // User: emilio
 // Date: Sep 9, 2009
@@ -155,6 +156,7 @@ public class FileSet
     public List<String> list()
     {
         DirectoryScanner scanner = new DirectoryScanner(dir, includes, excludes, followSymLinks);
+        scanner.withSnapshot(TreeSnapshot.forEnvironment(Apb.getEnv(), dir));
 
         return scanner.scan();
     }
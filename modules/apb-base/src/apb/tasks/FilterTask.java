@@ -121,6 +121,11 @@ public class FilterTask
         return this;
     }
 
+    @Override protected boolean isPlainCopy()
+    {
+        return false;
+    }
+
     @Override protected void doCopyFile(File source, File dest)
         throws IOException
     {
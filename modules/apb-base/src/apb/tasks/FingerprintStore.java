@@ -0,0 +1,434 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import apb.BuildException;
+import apb.Environment;
+
+import apb.utils.DigestUtils;
+import apb.utils.FileUtils;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.StringUtils.isEmpty;
+
+/**
+ * A store of content fingerprints used by tasks to check if their outputs are up to date.
+ * For every output it records the hash of its content and a digest of the inputs it was generated from,
+ * so a task can skip work when neither of them changed, even if the timestamps did
+ * (For example after a checkout or after restoring a cache).
+ * The hash of a file is only recomputed when its length or its modification time changes.
+ * The store is persisted for each module in a file under the module 'output-base'.
+ */
+class FingerprintStore
+{
+    //~ Instance fields ......................................................................................
+
+    private boolean modified;
+
+    /**
+     * The file where the store is persisted (null for a transient store)
+     */
+    @Nullable private final File storeFile;
+
+    /**
+     * The last known state of each file, by path
+     */
+    @NotNull private final Map<String, FileState> files;
+
+    /**
+     * The fingerprints of each output, by path
+     */
+    @NotNull private final Map<String, Fingerprint> outputs;
+
+    //~ Constructors .........................................................................................
+
+    private FingerprintStore(@Nullable File storeFile)
+    {
+        this.storeFile = storeFile;
+        files = new HashMap<String, FileState>();
+        outputs = new HashMap<String, Fingerprint>();
+
+        if (storeFile != null && storeFile.exists()) {
+            load(storeFile);
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the store for the module of the specified Environment.
+     * If there is no current module a transient store is returned
+     */
+    @NotNull static FingerprintStore forEnvironment(@NotNull Environment env)
+    {
+        final String outputBase = env.getProperty(OUTPUT_BASE_PROPERTY, "");
+        return new FingerprintStore(isEmpty(outputBase) ? null
+                                                        : new File(env.fileFromBase(outputBase), STORE_FILE));
+    }
+
+    /**
+     * Returns true if there are fingerprints recorded for the specified output
+     */
+    boolean hasFingerprint(@NotNull File output)
+    {
+        return outputs.containsKey(output.getPath());
+    }
+
+    /**
+     * Check if an output is up to date.
+     * That is: it exists, its content did not change since it was recorded,
+     * and it was generated from the same inputs (and extra information) it is being generated now.
+     * @param output The output file
+     * @param inputs The files the output is generated from
+     * @param extra Any additional information the output depends on
+     */
+    boolean uptodate(@NotNull File output, @NotNull Collection<File> inputs, @NotNull String extra)
+    {
+        final Fingerprint fingerprint = outputs.get(output.getPath());
+        return fingerprint != null && output.exists() && fingerprint.output.equals(hash(output)) &&
+               fingerprint.inputs.equals(digest(inputs, extra));
+    }
+
+    boolean uptodate(@NotNull File output, @NotNull File input)
+    {
+        return uptodate(output, Collections.singletonList(input), "");
+    }
+
+    /**
+     * Record the fingerprints of an output that has been generated from the specified inputs
+     * @param output The output file
+     * @param inputs The files the output was generated from
+     * @param extra Any additional information the output depends on
+     */
+    void record(@NotNull File output, @NotNull Collection<File> inputs, @NotNull String extra)
+    {
+        if (output.exists()) {
+            outputs.put(output.getPath(), new Fingerprint(hash(output), digest(inputs, extra)));
+        }
+        else {
+            outputs.remove(output.getPath());
+        }
+
+        modified = true;
+    }
+
+    void record(@NotNull File output, @NotNull File input)
+    {
+        record(output, Collections.singletonList(input), "");
+    }
+
+    /**
+     * Returns true if there is a digest recorded for the specified key
+     */
+    boolean hasDigest(@NotNull String key)
+    {
+        return outputs.containsKey(key);
+    }
+
+    /**
+     * Check if the digest recorded for a key (Like the api of a classpath) is the specified one
+     */
+    boolean sameDigest(@NotNull String key, @NotNull String digest)
+    {
+        final Fingerprint fingerprint = outputs.get(key);
+        return fingerprint != null && fingerprint.inputs.equals(digest);
+    }
+
+    /**
+     * Record a digest for a key
+     */
+    void recordDigest(@NotNull String key, @NotNull String digest)
+    {
+        outputs.put(key, new Fingerprint("", digest));
+        modified = true;
+    }
+
+    /**
+     * Compute the hashes of the specified files that changed since they were last hashed.
+     * If there are many of them they are computed in parallel.
+     */
+    void hashAll(@NotNull Collection<File> fs)
+    {
+        final List<File> changed = new ArrayList<File>();
+
+        for (File file : fs) {
+            if (file.isFile() && knownState(file) == null) {
+                changed.add(file);
+            }
+        }
+
+        final int threads =
+            Math.min(Runtime.getRuntime().availableProcessors(), changed.size() / MIN_FILES_PER_THREAD);
+
+        if (threads <= 1) {
+            for (File file : changed) {
+                hash(file);
+            }
+        }
+        else {
+            hashInParallel(changed, threads);
+        }
+    }
+
+    /**
+     * Persist the store if it was modified
+     */
+    void save()
+    {
+        if (storeFile != null && modified) {
+            final File tmp = new File(storeFile.getPath() + ".tmp");
+
+            try {
+                DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+                try {
+                    out.writeInt(VERSION);
+                    // Forget about the files that do not longer exist
+                    for (Iterator<String> it = files.keySet().iterator(); it.hasNext();) {
+                        if (!new File(it.next()).exists()) {
+                            it.remove();
+                        }
+                    }
+
+                    out.writeInt(files.size());
+
+                    for (Map.Entry<String, FileState> entry : files.entrySet()) {
+                        final FileState state = entry.getValue();
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(state.length);
+                        out.writeLong(state.lastModified);
+                        out.writeUTF(state.hash);
+                    }
+
+                    out.writeInt(outputs.size());
+
+                    for (Map.Entry<String, Fingerprint> entry : outputs.entrySet()) {
+                        out.writeUTF(entry.getKey());
+                        out.writeUTF(entry.getValue().output);
+                        out.writeUTF(entry.getValue().inputs);
+                    }
+                }
+                finally {
+                    out.close();
+                }
+
+                if (!tmp.renameTo(storeFile) && (!storeFile.delete() || !tmp.renameTo(storeFile))) {
+                    throw new IOException("Cannot rename: " + tmp);
+                }
+
+                modified = false;
+            }
+            catch (IOException e) {
+                throw new BuildException("Cannot write fingerprints: " + storeFile + ". Cause: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the hash of the content of the file.
+     * It is only recomputed if the length or the modification time of the file changed.
+     */
+    @NotNull String hash(@NotNull File file)
+    {
+        FileState state = knownState(file);
+
+        if (state == null) {
+            state = new FileState(file);
+
+            synchronized (files) {
+                files.put(file.getPath(), state);
+                modified = true;
+            }
+        }
+
+        return state.hash;
+    }
+
+    @Nullable private FileState knownState(@NotNull File file)
+    {
+        final FileState state;
+
+        synchronized (files) {
+            state = files.get(file.getPath());
+        }
+
+        return state != null && state.length == file.length() && state.lastModified == file.lastModified()
+               ? state : null;
+    }
+
+    private void hashInParallel(List<File> changed, int threads)
+    {
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<String>> results = new ArrayList<Future<String>>();
+
+            for (final File file : changed) {
+                results.add(executor.submit(new Callable<String>() {
+                            public String call()
+                            {
+                                return hash(file);
+                            }
+                        }));
+            }
+
+            for (Future<String> result : results) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        catch (ExecutionException e) {
+            throw new BuildException(e.getCause());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * A digest of the paths and hashes of the inputs plus the extra information
+     */
+    @NotNull private String digest(@NotNull Collection<File> inputs, @NotNull String extra)
+    {
+        hashAll(inputs);
+
+        final MessageDigest md = DigestUtils.newDigest();
+
+        for (File input : inputs) {
+            DigestUtils.update(md, input.getPath());
+            DigestUtils.update(md, input.isFile() ? hash(input) : "");
+        }
+
+        DigestUtils.update(md, extra);
+        return DigestUtils.toHex(md.digest());
+    }
+
+    private void load(@NotNull File file)
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            try {
+                if (in.readInt() == VERSION) {
+                    for (int n = in.readInt(); n > 0; n--) {
+                        final String path = in.readUTF();
+                        files.put(path, new FileState(in.readLong(), in.readLong(), in.readUTF()));
+                    }
+
+                    for (int n = in.readInt(); n > 0; n--) {
+                        final String path = in.readUTF();
+                        outputs.put(path, new Fingerprint(in.readUTF(), in.readUTF()));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ignore) {
+            // A corrupted store is just discarded
+            files.clear();
+            outputs.clear();
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String STORE_FILE = "fingerprints.dat";
+    private static final String OUTPUT_BASE_PROPERTY = "output-base";
+
+    private static final int VERSION = 1;
+
+    /**
+     * The minimum number of files to hash for each thread
+     */
+    private static final int MIN_FILES_PER_THREAD = 32;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The state of a file when it was hashed
+     */
+    private static class FileState
+    {
+        private final long   lastModified;
+        private final long   length;
+        private final String hash;
+
+        FileState(long length, long lastModified, String hash)
+        {
+            this.length = length;
+            this.lastModified = lastModified;
+            this.hash = hash;
+        }
+
+        FileState(@NotNull File file)
+        {
+            // Read the timestamp before the content, so a concurrent modification is detected next time
+            length = file.length();
+            lastModified = file.lastModified();
+
+            try {
+                hash = DigestUtils.hash(file);
+            }
+            catch (IOException e) {
+                throw new BuildException(e);
+            }
+        }
+    }
+
+    /**
+     * The fingerprints of an output: The hash of its content and the digest of its inputs
+     */
+    private static class Fingerprint
+    {
+        private final String inputs;
+        private final String output;
+
+        Fingerprint(String output, String inputs)
+        {
+            this.output = output;
+            this.inputs = inputs;
+        }
+    }
+}
@@ -0,0 +1,351 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Reads the central directory of an existing jar, and the raw (Still compressed) data of its entries,
+ * so they can be copied to another jar by {@link JarWriter} without inflating and deflating them again.
+ */
+class JarReader
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The entries in the central directory, by name (In the order they appear)
+     */
+    @NotNull private final Map<String, CentralEntry> entries;
+
+    @NotNull private final File             file;
+    @NotNull private final RandomAccessFile raf;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Open a jar and read its central directory
+     * @throws IOException If the file cannot be read or it is not a valid archive
+     */
+    JarReader(@NotNull File file)
+        throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file, "r");
+        entries = new LinkedHashMap<String, CentralEntry>();
+
+        try {
+            readCentralDirectory();
+        }
+        catch (IOException e) {
+            raf.close();
+            throw e;
+        }
+        catch (RuntimeException e) {
+            raf.close();
+            throw new IOException("Invalid archive: " + file);
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * The names of the entries
+     */
+    @NotNull Collection<String> names()
+    {
+        return Collections.unmodifiableCollection(entries.keySet());
+    }
+
+    /**
+     * The (Uncompressed) size of an entry, or -1 if there is no entry with that name
+     */
+    long size(@NotNull String name)
+    {
+        final CentralEntry entry = entries.get(name);
+        return entry == null ? -1 : entry.size;
+    }
+
+    /**
+     * Read an entry as it is stored in the archive
+     * @return The entry, or null if there is no entry with that name or it cannot be copied raw
+     */
+    @Nullable synchronized JarWriter.Entry readRaw(@NotNull String name)
+        throws IOException
+    {
+        final CentralEntry entry = entries.get(name);
+
+        if (entry == null || (entry.flags & ENCRYPTED_FLAG) != 0) {
+            return null;
+        }
+
+        final byte[] header = new byte[LOCAL_HEADER_SIZE];
+        raf.seek(entry.offset);
+        raf.readFully(header);
+
+        if (getInt(header, 0) != LOCAL_HEADER) {
+            throw new IOException("Invalid local header for '" + name + "' in " + file);
+        }
+
+        final byte[] data = new byte[(int) entry.compressedSize];
+        raf.seek(entry.offset + LOCAL_HEADER_SIZE + getShort(header, 26) + getShort(header, 28));
+        raf.readFully(data);
+
+        return new JarWriter.Entry(name, entry.dosTime, entry.method, entry.crc, entry.size, data);
+    }
+
+    /**
+     * Read the (Uncompressed) content of an entry
+     * @throws IOException If there is no entry with that name or it cannot be read
+     */
+    @NotNull byte[] read(@NotNull String name)
+        throws IOException
+    {
+        final JarWriter.Entry entry = readRaw(name);
+
+        if (entry == null || entry.size > Integer.MAX_VALUE ||
+                (entry.method != ZipEntry.STORED && entry.method != ZipEntry.DEFLATED)) {
+            throw new IOException("Cannot read '" + name + "' from " + file);
+        }
+
+        if (entry.method == ZipEntry.STORED) {
+            return entry.data;
+        }
+
+        final byte[]   result = new byte[(int) entry.size];
+        final Inflater inflater = new Inflater(true);
+
+        try {
+            // An extra byte is needed by the inflater when reading without the zlib header
+            final byte[] input = new byte[entry.data.length + 1];
+            System.arraycopy(entry.data, 0, input, 0, entry.data.length);
+            inflater.setInput(input);
+
+            int n = 0;
+
+            while (n < result.length && !inflater.finished()) {
+                final int read = inflater.inflate(result, n, result.length - n);
+
+                if (read == 0 && inflater.needsInput()) {
+                    break;
+                }
+
+                n += read;
+            }
+
+            if (n != result.length) {
+                throw new IOException("Invalid entry '" + name + "' in " + file);
+            }
+
+            return result;
+        }
+        catch (DataFormatException e) {
+            throw new IOException("Invalid entry '" + name + "' in " + file + ": " + e.getMessage());
+        }
+        finally {
+            inflater.end();
+        }
+    }
+
+    void close()
+    {
+        try {
+            raf.close();
+        }
+        catch (IOException ignore) {
+            // Nothing to do
+        }
+    }
+
+    private void readCentralDirectory()
+        throws IOException
+    {
+        final long   length = raf.length();
+        final int    tailSize = (int) Math.min(length, END_HEADER_SIZE + MAX_COMMENT_SIZE);
+        final byte[] tail = new byte[tailSize];
+        raf.seek(length - tailSize);
+        raf.readFully(tail);
+
+        int end = tailSize - END_HEADER_SIZE;
+
+        while (end >= 0 && getInt(tail, end) != END_HEADER) {
+            end--;
+        }
+
+        if (end < 0) {
+            throw new IOException("Not a valid archive: " + file);
+        }
+
+        long count = getShort(tail, end + 10);
+        long size = getInt(tail, end + 12);
+        long start = getInt(tail, end + 16);
+
+        if (count == ZIP64_MAGIC_COUNT || size == ZIP64_MAGIC_VALUE || start == ZIP64_MAGIC_VALUE) {
+            final long locator = length - tailSize + end - ZIP64_LOCATOR_SIZE;
+
+            if (locator >= 0) {
+                final byte[] bytes = new byte[ZIP64_LOCATOR_SIZE];
+                raf.seek(locator);
+                raf.readFully(bytes);
+
+                if (getInt(bytes, 0) == ZIP64_LOCATOR) {
+                    final byte[] end64 = new byte[ZIP64_END_SIZE];
+                    raf.seek(getLong(bytes, 8));
+                    raf.readFully(end64);
+                    count = getLong(end64, 32);
+                    size = getLong(end64, 40);
+                    start = getLong(end64, 48);
+                }
+            }
+        }
+
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Central directory too large: " + file);
+        }
+
+        final byte[] directory = new byte[(int) size];
+        raf.seek(start);
+        raf.readFully(directory);
+
+        int pos = 0;
+
+        for (long i = 0; i < count; i++) {
+            if (getInt(directory, pos) != CENTRAL_HEADER) {
+                throw new IOException("Invalid central directory: " + file);
+            }
+
+            final int nameLength = getShort(directory, pos + 28);
+            final int extraLength = getShort(directory, pos + 30);
+            final int commentLength = getShort(directory, pos + 32);
+
+            final CentralEntry entry = new CentralEntry();
+            entry.flags = getShort(directory, pos + 8);
+            entry.method = getShort(directory, pos + 10);
+            entry.dosTime = getInt(directory, pos + 12);
+            entry.crc = getInt(directory, pos + 16);
+            entry.compressedSize = getInt(directory, pos + 20);
+            entry.size = getInt(directory, pos + 24);
+            entry.offset = getInt(directory, pos + 42);
+
+            final String name = new String(directory, pos + CENTRAL_HEADER_SIZE, nameLength, UTF8);
+            readZip64Extra(directory, pos + CENTRAL_HEADER_SIZE + nameLength, extraLength, entry);
+
+            if (entry.compressedSize > Integer.MAX_VALUE) {
+                // Not copied raw
+                entry.flags |= ENCRYPTED_FLAG;
+            }
+
+            entries.put(name, entry);
+            pos += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+    }
+
+    /**
+     * Read the values that did not fit in the central header from the Zip64 extra field
+     */
+    private static void readZip64Extra(byte[] bytes, int start, int length, CentralEntry entry)
+    {
+        int pos = start;
+
+        while (pos + 4 <= start + length) {
+            final int id = getShort(bytes, pos);
+            final int size = getShort(bytes, pos + 2);
+
+            if (id == ZIP64_EXTRA) {
+                int value = pos + 4;
+
+                if (entry.size == ZIP64_MAGIC_VALUE) {
+                    entry.size = getLong(bytes, value);
+                    value += 8;
+                }
+
+                if (entry.compressedSize == ZIP64_MAGIC_VALUE) {
+                    entry.compressedSize = getLong(bytes, value);
+                    value += 8;
+                }
+
+                if (entry.offset == ZIP64_MAGIC_VALUE) {
+                    entry.offset = getLong(bytes, value);
+                }
+            }
+
+            pos += 4 + size;
+        }
+    }
+
+    private static int getShort(byte[] bytes, int pos)
+    {
+        return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8);
+    }
+
+    private static long getInt(byte[] bytes, int pos)
+    {
+        return getShort(bytes, pos) | ((long) getShort(bytes, pos + 2) << 16);
+    }
+
+    private static long getLong(byte[] bytes, int pos)
+    {
+        return getInt(bytes, pos) | (getInt(bytes, pos + 4) << 32);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String UTF8 = "UTF-8";
+
+    private static final long LOCAL_HEADER = 0x04034b50L;
+    private static final long CENTRAL_HEADER = 0x02014b50L;
+    private static final long END_HEADER = 0x06054b50L;
+    private static final long ZIP64_LOCATOR = 0x07064b50L;
+    private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int ZIP64_END_SIZE = 56;
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int END_HEADER_SIZE = 22;
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+    private static final int ENCRYPTED_FLAG = 1;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The information of an entry in the central directory
+     */
+    private static class CentralEntry
+    {
+        private int  flags;
+        private int  method;
+        private long compressedSize;
+        private long crc;
+        private long dosTime;
+        private long offset;
+        private long size;
+    }
+}
@@ -18,36 +18,45 @@
 
 package apb.tasks;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.jar.Attributes;
-import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
-import java.util.jar.JarOutputStream;
 import java.util.jar.Manifest;
-import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
 
 import apb.BuildException;
+import apb.BuildTrace;
 import apb.Messages;
 
+import apb.metadata.DuplicateEntryPolicy;
+
+import apb.utils.CollectionUtils;
 import apb.utils.DirectoryScanner;
 import apb.utils.FileUtils;
+import apb.utils.PathPatterns;
+import apb.utils.TreeSnapshot;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -70,10 +79,30 @@ public class JarTask
     private final int                         level = Deflater.DEFAULT_COMPRESSION;
     @NotNull private final List<String>       excludes, includes;
     private final List<File>                  sourceDir;
+    @NotNull private final List<File>         archives;
+    @NotNull private DuplicateEntryPolicy     duplicates;
     @NotNull private Manifest                 manifest;
     @NotNull private Map<String, Set<String>> services;
 
-    private String comment;
+    /**
+     * The compiled include and exclude patterns (Compiled when the task is executed)
+     */
+    private PathPatterns includePatterns, excludePatterns;
+
+    private String  comment;
+    private boolean incremental;
+    private boolean reproducible;
+    private boolean useCache;
+
+    /**
+     * Whether many entries can be compressed in parallel
+     */
+    private boolean parallel = true;
+
+    /**
+     * The hash of the content of the jar (Once the task is executed)
+     */
+    @Nullable private String contentHash;
 
     //~ Constructors .........................................................................................
 
@@ -82,12 +111,14 @@ public class JarTask
         this.jarFile = jarFile;
         sourceDir = new ArrayList<File>();
         sourceDir.add(source);
+        archives = new ArrayList<File>();
+        duplicates = DuplicateEntryPolicy.WARN;
         excludes = new ArrayList<String>();
         includes = new ArrayList<String>();
         services = Collections.emptyMap();
         manifest = new Manifest();
         manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
-        manifest.getMainAttributes().putValue("Created-By", "APB");
+        manifest.getMainAttributes().putValue(CREATED_BY, APB);
     }
 
     //~ Methods ..............................................................................................
@@ -165,22 +196,134 @@ public class JarTask
     }
 
     public void execute()
+    {
+        final BuildTrace.Span span = BuildTrace.begin(BuildTrace.TASK, "jar").arg("jar", jarFile.getPath());
+
+        try {
+            execute(span);
+        }
+        finally {
+            span.end();
+        }
+    }
+
+    private void execute(BuildTrace.Span span)
     {
         if (includes.isEmpty()) {
             includes.add("**/**");
         }
 
+        includePatterns = new PathPatterns(includes);
+        excludePatterns = new PathPatterns(excludes);
+
         long                    jarTimeStamp = checkJarFile();
         Map<File, List<String>> files = new LinkedHashMap<File, List<String>>();
 
         for (File dir : sourceDir) {
-            DirectoryScanner scanner = new DirectoryScanner(dir, includes, excludes);
+            DirectoryScanner scanner = new DirectoryScanner(dir, includePatterns, excludePatterns, true);
+            scanner.withSnapshot(TreeSnapshot.forEnvironment(env, dir));
             files.put(dir, scanner.scan());
         }
 
-        if (!uptodate(jarTimeStamp, files)) {
-            buildJar(files);
+        final FingerprintStore fingerprints = FingerprintStore.forEnvironment(env);
+        final List<File>       inputs = inputFiles(files);
+        inputs.addAll(archives);
+
+        final String           info = fingerprintInfo();
+        final boolean          hasFingerprint = fingerprints.hasFingerprint(jarFile);
+
+        final boolean uptodate =
+            hasFingerprint ? fingerprints.uptodate(jarFile, inputs, info) : uptodate(jarTimeStamp, inputs, files);
+
+        span.arg("files", inputs.size());
+
+        if (!uptodate) {
+            final ActionCache cache = useCache ? ActionCache.forEnvironment(env) : null;
+            final String      cacheKey = cache == null ? null : cacheKey(fingerprints, files, info);
+
+            if (cacheKey == null || env.forceBuild() || !restoreFromCache(cache, cacheKey)) {
+                final JarReader previous = incremental && !env.forceBuild() ? openPrevious() : null;
+
+                try {
+                    final int copied = buildJar(files, previous, jarTimeStamp);
+
+                    if (previous != null) {
+                        span.arg("copied", copied);
+                    }
+                }
+                finally {
+                    if (previous != null) {
+                        previous.close();
+                    }
+                }
+
+                if (cacheKey != null) {
+                    cache.store(cacheKey, jarFile.getParentFile(), Collections.singletonList(jarFile.getName()));
+                }
+            }
+            else {
+                span.arg("cache", "hit");
+            }
+
+            span.arg("bytes", jarFile.length());
+        }
+
+        contentHash = fingerprints.hash(jarFile);
+
+        if (!uptodate || !hasFingerprint) {
+            fingerprints.record(jarFile, inputs, info);
         }
+
+        fingerprints.save();
+    }
+
+    /**
+     * The hash of the content of the jar, available once the task is executed.
+     * (For a reproducible jar it only depends on its inputs, so other tasks can use it as a key for their results)
+     */
+    @Nullable public String getContentHash()
+    {
+        return contentHash;
+    }
+
+    /**
+     * Restore the jar from the build cache when possible (And store it in the cache when built)
+     */
+    public JarTask useCache(boolean b)
+    {
+        useCache = b;
+        return this;
+    }
+
+    /**
+     * Update the existing jar instead of building it from scratch: the entries whose files did not change
+     * are copied from it without compressing them again (Entries of deleted files are dropped)
+     */
+    public JarTask incremental(boolean b)
+    {
+        incremental = b;
+        return this;
+    }
+
+    /**
+     * Build the same jar (Byte by byte) from the same inputs: entries are written sorted by name and
+     * with a fixed time, services and their providers are sorted, and the manifest attributes are written in
+     * a fixed order (With the 'Created-By' attribute set to 'APB')
+     */
+    public JarTask reproducible(boolean b)
+    {
+        reproducible = b;
+        return this;
+    }
+
+    /**
+     * Whether many entries can be compressed in parallel (The default)
+     * (The jar is the same one either way)
+     */
+    public JarTask parallel(boolean b)
+    {
+        parallel = b;
+        return this;
     }
 
     public void setComment(String comment)
@@ -195,6 +338,28 @@ public class JarTask
         }
     }
 
+    /**
+     * Add the entries of another archive.
+     * They are copied without uncompressing them, except for services that are merged with the other ones.
+     * (The manifest, index and signatures of the archive are not copied)
+     */
+    public void addJar(@Nullable File file)
+    {
+        if (file != null) {
+            archives.add(file);
+        }
+    }
+
+    /**
+     * What to do when there is more than one entry with the same name (By default the first one is used
+     * and a warning is logged)
+     */
+    public JarTask onDuplicates(@NotNull DuplicateEntryPolicy policy)
+    {
+        duplicates = policy;
+        return this;
+    }
+
     public JarTask including(String... patterns)
     {
         return including(Arrays.asList(patterns));
@@ -225,24 +390,262 @@ public class JarTask
 
     /**
      * Check if the jar file is uptodate.
-     * (The timestamp for all files is lower than the jar one)
+     * (The timestamp for all files is lower than the jar one, and it has an entry for each one of them
+     * and for nothing else)
      * @param jarTimeStamp The timestamp for the jar file
-     * @param files The set of files to add
+     * @param inputs The files to add
+     * @param files The set of files to add, by directory
      * @return true if the jar is 'uptodate'
      */
-    private static boolean uptodate(long jarTimeStamp, final Map<File, List<String>> files)
+    private boolean uptodate(long jarTimeStamp, List<File> inputs, final Map<File, List<String>> files)
     {
-        for (File dir : files.keySet()) {
-            for (String fileName : files.get(dir)) {
-                File file = new File(dir, fileName);
+        if (!FileUtils.uptodate(inputs, jarTimeStamp)) {
+            return false;
+        }
+
+        final JarReader jar = openPrevious();
+
+        if (jar == null) {
+            return false;
+        }
+
+        try {
+            final Set<String> entries = new HashSet<String>();
+
+            for (String name : jar.names()) {
+                if (isComparable(name)) {
+                    entries.add(name);
+                }
+            }
+
+            final Set<String> expected = new HashSet<String>();
+
+            for (File dir : files.keySet()) {
+                for (String fileName : files.get(dir)) {
+                    final File   file = new File(dir, fileName);
+                    final String name = fileName.replace(File.separatorChar, '/');
 
-                // Check timestamps
-                if (file.lastModified() > jarTimeStamp) {
+                    if (file.length() != 0 && !file.isDirectory() && isComparable(name)) {
+                        expected.add(name);
+                    }
+                }
+            }
+
+            for (File archive : archives) {
+                final JarReader reader = new JarReader(archive);
+
+                try {
+                    for (String name : reader.names()) {
+                        if (isCopied(name) && isComparable(name)) {
+                            expected.add(name);
+                        }
+                    }
+                }
+                finally {
+                    reader.close();
+                }
+            }
+
+            return entries.equals(expected);
+        }
+        catch (IOException e) {
+            return false;
+        }
+        finally {
+            jar.close();
+        }
+    }
+
+    /**
+     * Whether to compare an entry when checking if the jar is uptodate
+     * (Directories, the manifest and the services are generated, so they are not compared)
+     */
+    private static boolean isComparable(String name)
+    {
+        return !name.endsWith("/") && !JarFile.MANIFEST_NAME.equalsIgnoreCase(name) &&
+               !name.startsWith(SERVICES_DIR);
+    }
+
+    /**
+     * Whether an entry of another archive must be copied.
+     * (It must match the patterns, and its manifest, index and signature files are not copied)
+     */
+    private boolean isCopied(String name)
+    {
+        if (name.endsWith("/")) {
+            return false;
+        }
+
+        final String upperCaseName = name.toUpperCase();
+
+        if (upperCaseName.startsWith(META_INF) && upperCaseName.indexOf('/', META_INF.length()) == -1) {
+            for (String suffix : NOT_COPIED) {
+                if (upperCaseName.endsWith(suffix)) {
                     return false;
                 }
             }
         }
 
+        final String path = name.replace('/', File.separatorChar);
+        return includePatterns.matches(path) && !excludePatterns.matches(path);
+    }
+
+    /**
+     * Open the existing jar, or return null if there is not a valid one
+     */
+    @Nullable private JarReader openPrevious()
+    {
+        if (!jarFile.isFile()) {
+            return null;
+        }
+
+        try {
+            return new JarReader(jarFile);
+        }
+        catch (IOException e) {
+            logVerbose("Cannot read %s: %s\n", jarFile, e.getMessage());
+            return null;
+        }
+    }
+
+    private static List<File> inputFiles(final Map<File, List<String>> files)
+    {
+        List<File> result = new ArrayList<File>();
+
+        for (File dir : files.keySet()) {
+            for (String fileName : files.get(dir)) {
+                result.add(new File(dir, fileName));
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * The information (other than the input files) the content of the jar depends on
+     * (The patterns also select the entries copied from the archives, which are not input files)
+     */
+    private String fingerprintInfo()
+    {
+        try {
+            return new String(manifestContent(), UTF8) + services + comment + reproducible + duplicates +
+                   "+" + includePatterns + "-" + excludePatterns;
+        }
+        catch (IOException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * The content of the manifest entry
+     */
+    private byte[] manifestContent()
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        if (!reproducible) {
+            manifest.write(out);
+            return out.toByteArray();
+        }
+
+        // Attributes are kept in hash maps, so they are written sorted instead of in the map order
+        final Attributes main = manifest.getMainAttributes();
+        final String     version = main.getValue(Attributes.Name.MANIFEST_VERSION);
+        writeManifestLine(out, Attributes.Name.MANIFEST_VERSION.toString(), version == null ? "1.0" : version);
+        writeManifestLine(out, CREATED_BY, APB);
+
+        for (Map.Entry<String, String> attribute : sorted(main).entrySet()) {
+            final String name = attribute.getKey();
+
+            if (!name.equalsIgnoreCase(CREATED_BY) &&
+                    !name.equalsIgnoreCase(Attributes.Name.MANIFEST_VERSION.toString())) {
+                writeManifestLine(out, name, attribute.getValue());
+            }
+        }
+
+        out.write(MANIFEST_NEWLINE);
+
+        for (String entryName : new TreeSet<String>(manifest.getEntries().keySet())) {
+            writeManifestLine(out, "Name", entryName);
+
+            for (Map.Entry<String, String> attribute : sorted(manifest.getAttributes(entryName)).entrySet()) {
+                writeManifestLine(out, attribute.getKey(), attribute.getValue());
+            }
+
+            out.write(MANIFEST_NEWLINE);
+        }
+
+        return out.toByteArray();
+    }
+
+    private static Map<String, String> sorted(Attributes attributes)
+    {
+        final Map<String, String> result = new TreeMap<String, String>();
+
+        for (Map.Entry<Object, Object> attribute : attributes.entrySet()) {
+            result.put(attribute.getKey().toString(), String.valueOf(attribute.getValue()));
+        }
+
+        return result;
+    }
+
+    /**
+     * Write a manifest attribute, splitting it in lines of at most 72 bytes (Continued with a leading space)
+     */
+    private static void writeManifestLine(OutputStream out, String name, String value)
+        throws IOException
+    {
+        final byte[] bytes = (name + ": " + value).getBytes(UTF8);
+        int          start = 0;
+        int          max = MANIFEST_LINE_LENGTH;
+
+        while (bytes.length - start > max) {
+            int end = start + max;
+
+            // Do not split a multibyte character
+            while ((bytes[end] & 0xC0) == 0x80) {
+                end--;
+            }
+
+            out.write(bytes, start, end - start);
+            out.write(MANIFEST_NEWLINE);
+            out.write(' ');
+            start = end;
+            max = MANIFEST_LINE_LENGTH - 1;
+        }
+
+        out.write(bytes, start, bytes.length - start);
+        out.write(MANIFEST_NEWLINE);
+    }
+
+    /**
+     * The key in the cache for the jar: The names and contents of the entries plus the manifest information
+     */
+    private String cacheKey(FingerprintStore fingerprints, Map<File, List<String>> files, String info)
+    {
+        final ActionCache.Key key = new ActionCache.Key("jar", fingerprints);
+
+        for (File dir : files.keySet()) {
+            for (String fileName : files.get(dir)) {
+                key.addFile(fileName.replace(File.separatorChar, '/'), new File(dir, fileName));
+            }
+        }
+
+        for (File archive : archives) {
+            key.addFile(archive.getName(), archive);
+        }
+
+        return key.add(info).digest();
+    }
+
+    private boolean restoreFromCache(ActionCache cache, String key)
+    {
+        if (cache.restore(key, jarFile.getParentFile()) == null) {
+            return false;
+        }
+
+        env.logInfo("Restored from the build cache: %s\n", FileUtils.normalizePath(jarFile));
         return true;
     }
 
@@ -260,58 +663,173 @@ public class JarTask
         return result;
     }
 
-    private void buildJar(Map<File, List<String>> files)
+    /**
+     * Build the jar
+     * @param files The files to add, by directory
+     * @param previous The previous version of the jar to copy the unchanged entries from (If any)
+     * @param jarTimeStamp The time the previous version was built
+     * @return The number of entries copied from the previous version
+     */
+    private int buildJar(Map<File, List<String>> files, @Nullable JarReader previous, long jarTimeStamp)
     {
+        final List<JarReader> readers = new ArrayList<JarReader>();
+
         try {
             env.logInfo("Building: %s\n", FileUtils.normalizePath(jarFile));
 
-            JarOutputStream jarOutputStream = null;
+            final long buildTime = System.currentTimeMillis();
+            final long time = reproducible ? REPRODUCIBLE_TIME : buildTime;
 
-            boolean success = false;
+            // The entries by name (Sorted when the jar is reproducible), and where each one comes from
+            final Map<String, Callable<JarWriter.Entry>> contents =
+                reproducible ? new TreeMap<String, Callable<JarWriter.Entry>>()
+                             : new LinkedHashMap<String, Callable<JarWriter.Entry>>();
+            final Map<String, String>      origins = new HashMap<String, String>();
+            final Map<String, Set<String>> allServices = new LinkedHashMap<String, Set<String>>();
+            CollectionUtils.mergeSets(allServices, services);
 
-            try {
-                jarOutputStream = openJar();
+            boolean writeManifest = true;
+            int     copied = 0;
 
-                Set<String> addedDirs = new HashSet<String>();
-                writeMetaInfEntries(jarOutputStream, addedDirs);
+            for (File dir : files.keySet()) {
+                for (String fileName : files.get(dir)) {
+                    final File file = new File(dir, fileName);
 
-                boolean writeManifest = true;
+                    if (file.length() != 0 && !file.isDirectory()) {
+                        String normalizedName = fileName.replace(File.separatorChar, '/');
 
-                for (File dir : files.keySet()) {
-                    for (String fileName : files.get(dir)) {
-                        final File file = new File(dir, fileName);
+                        if (normalizedName.startsWith(SERVICES_DIR)) {
+                            mergeServices(allServices, normalizedName, FileUtils.readBytes(file));
+                            continue;
+                        }
 
-                        if (file.length() != 0 && !file.isDirectory()) {
-                            String normalizedName = fileName.replace(File.separatorChar, '/');
+                        if (JarFile.MANIFEST_NAME.equalsIgnoreCase(normalizedName)) {
+                            env.logWarning(Messages.MANIFEST_OVERRIDE(file));
+                            writeManifest = false;
+                        }
 
-                            if (JarFile.MANIFEST_NAME.equalsIgnoreCase(normalizedName)) {
-                                env.logWarning(Messages.MANIFEST_OVERRIDE(file));
-                                writeManifest = false;
+                        // Files not modified after building the previous jar are copied from it
+                        if (previous != null && previous.size(normalizedName) == file.length() &&
+                                file.lastModified() < jarTimeStamp) {
+                            if (addEntry(contents, origins, normalizedName,
+                                         copiedEntry(previous, normalizedName, file, time), file.getPath())) {
+                                copied++;
                             }
-
-                            writeToJar(jarOutputStream, normalizedName, new FileInputStream(file), addedDirs);
+                        }
+                        else {
+                            addEntry(contents, origins, normalizedName, fileEntry(normalizedName, file, time),
+                                     file.getPath());
                         }
                     }
                 }
+            }
+
+            for (File archive : archives) {
+                final JarReader reader = new JarReader(archive);
+                readers.add(reader);
 
-                if (writeManifest) {
-                    writeManifest(jarOutputStream);
+                for (String name : reader.names()) {
+                    if (!isCopied(name)) {
+                        continue;
+                    }
+
+                    if (name.startsWith(SERVICES_DIR)) {
+                        mergeServices(allServices, name, reader.read(name));
+                    }
+                    else {
+                        addEntry(contents, origins, name, archiveEntry(reader, name, time), archive.getPath());
+                    }
                 }
+            }
 
-                jarOutputStream.setComment(comment);
-                success = true;
+            final List<Callable<JarWriter.Entry>> entries = new ArrayList<Callable<JarWriter.Entry>>();
+            final Set<String>                     addedDirs = new HashSet<String>();
+
+            addMetaInfEntries(entries, addedDirs, allServices, time);
+
+            for (Map.Entry<String, Callable<JarWriter.Entry>> e : contents.entrySet()) {
+                final String name = e.getKey();
+                addParentDirs(entries, name, addedDirs, time);
+                logVerbose("Adding entry... %s\n", name);
+                entries.add(e.getValue());
             }
-            finally {
-                closeJar(jarOutputStream, success);
+
+            if (writeManifest) {
+                entries.add(entry(JarFile.MANIFEST_NAME, manifestContent(), time));
+            }
+
+            writeJar(entries, buildTime);
+
+            if (copied > 0) {
+                logVerbose("Copied %d unchanged entries from the previous jar\n", copied);
             }
+
+            return copied;
         }
         catch (IOException ioe) {
             jarFile.delete();
             throw new BuildException("Problem creating: " + jarFile + " " + ioe.getMessage(), ioe);
         }
+        finally {
+            for (JarReader reader : readers) {
+                reader.close();
+            }
+        }
+    }
+
+    /**
+     * Add an entry, applying the {@link DuplicateEntryPolicy} if there is already one with the same name
+     * @return true if the entry was added
+     */
+    private boolean addEntry(Map<String, Callable<JarWriter.Entry>> contents, Map<String, String> origins,
+                             String name, Callable<JarWriter.Entry> entry, String origin)
+    {
+        final String previousOrigin = origins.get(name);
+
+        if (previousOrigin == null) {
+            origins.put(name, origin);
+            contents.put(name, entry);
+            return true;
+        }
+
+        switch (duplicates) {
+        case FAIL:
+            throw new BuildException("Duplicate entry '" + name + "' in " + previousOrigin + " and " + origin);
+        case WARN:
+            env.logWarning(Messages.DUPLICATE_ENTRY(name, origin, previousOrigin));
+            break;
+        }
+
+        return false;
+    }
+
+    /**
+     * Merge the providers in a service file with the other ones for the same service
+     */
+    private static void mergeServices(Map<String, Set<String>> allServices, String name, byte[] content)
+        throws IOException
+    {
+        final Set<String> providers = new LinkedHashSet<String>();
+
+        for (String line : new String(content, UTF8).split("\n")) {
+            final int comment = line.indexOf('#');
+            final String provider = (comment == -1 ? line : line.substring(0, comment)).trim();
+
+            if (!provider.isEmpty()) {
+                providers.add(provider);
+            }
+        }
+
+        CollectionUtils.mergeSets(allServices,
+                                  Collections.singletonMap(name.substring(SERVICES_DIR.length()), providers));
     }
 
-    private JarOutputStream openJar()
+    /**
+     * Write the entries to the jar.
+     * Entries are compressed in parallel (When there are enough of them), but they are written in order,
+     * so the jar is the same one that writing them sequentially.
+     */
+    private void writeJar(List<Callable<JarWriter.Entry>> entries, long time)
         throws IOException
     {
         FileUtils.validateDirectory(jarFile.getParentFile());
@@ -320,76 +838,203 @@ public class JarTask
             throw new BuildException("Can not recreate: '" + jarFile + "'.");
         }
 
-        final FileOutputStream os = new FileOutputStream(jarFile);
-        final JarOutputStream  jarOutputStream = new JarOutputStream(os);
-        jarOutputStream.setMethod(doCompress ? ZipOutputStream.DEFLATED : ZipOutputStream.STORED);
-        jarOutputStream.setLevel(level);
-        return jarOutputStream;
+        // Written to a temporary file first, as the entries may be copied from the previous jar
+        final File         tmp = new File(jarFile.getPath() + ".tmp");
+        final OutputStream os = new FileOutputStream(tmp);
+
+        try {
+            final JarWriter writer = new JarWriter(os);
+            final int       threads =
+                !parallel
+                ? 1
+                : Math.min(Math.max(Runtime.getRuntime().availableProcessors(), MIN_THREADS),
+                           entries.size() / MIN_ENTRIES_PER_THREAD);
+
+            if (threads <= 1) {
+                for (Callable<JarWriter.Entry> entry : entries) {
+                    writer.write(call(entry));
+                }
+            }
+            else {
+                writeInParallel(writer, entries, threads);
+            }
+
+            writer.close(comment);
+        }
+        catch (IOException e) {
+            tmp.delete();
+            throw e;
+        }
+        finally {
+            os.close();
+        }
+
+        if (!tmp.renameTo(jarFile) && (!jarFile.delete() || !tmp.renameTo(jarFile))) {
+            tmp.delete();
+            throw new IOException("Cannot rename: " + tmp);
+        }
+
+        // Files modified while building the jar must be considered newer than it
+        jarFile.setLastModified(time);
     }
 
-    private void closeJar(JarOutputStream jarOutputStream, boolean success)
+    private static void writeInParallel(JarWriter writer, List<Callable<JarWriter.Entry>> entries, int threads)
         throws IOException
     {
-        if (jarOutputStream != null) {
-            try {
-                jarOutputStream.close();
-            }
-            catch (IOException ex) {
-                if (success) {
-                    throw ex;
+        final ExecutorService               executor = Executors.newFixedThreadPool(threads);
+        final List<Future<JarWriter.Entry>> pending = new ArrayList<Future<JarWriter.Entry>>();
+
+        try {
+            // Keep a limited number of entries compressed ahead of the writer, to bound the memory used
+            final int window = threads * ENTRIES_AHEAD_PER_THREAD;
+            int       submitted = 0;
+
+            for (int i = 0; i < entries.size(); i++) {
+                while (submitted < entries.size() && submitted < i + window) {
+                    pending.add(executor.submit(entries.get(submitted++)));
                 }
+
+                writer.write(pending.get(i).get());
+                pending.set(i, null);
+            }
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
             }
+
+            throw new BuildException(cause);
+        }
+        finally {
+            executor.shutdownNow();
         }
     }
 
-    private void writeToJar(JarOutputStream jarOut, final String fileName, final InputStream is,
-                            Set<String> addedDirs)
+    private static JarWriter.Entry call(Callable<JarWriter.Entry> entry)
         throws IOException
     {
-        writeParentDirs(jarOut, fileName, addedDirs);
+        try {
+            return entry.call();
+        }
+        catch (IOException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
 
-        logVerbose("Adding entry... %s\n", fileName);
+    /**
+     * An entry with the content of a file (Read and compressed when the entry is created)
+     */
+    private Callable<JarWriter.Entry> fileEntry(final String name, final File file, final long time)
+    {
+        return new Callable<JarWriter.Entry>() {
+                public JarWriter.Entry call()
+                    throws IOException
+                {
+                    return createEntry(name, readContent(file), time);
+                }
+            };
+    }
 
-        JarEntry entry = new JarEntry(fileName);
-        jarOut.putNextEntry(entry);
+    /**
+     * An entry copied from the previous jar (Or read from the file if it cannot be copied)
+     */
+    private Callable<JarWriter.Entry> copiedEntry(final JarReader previous, final String name, final File file,
+                                                  final long time)
+    {
+        return new Callable<JarWriter.Entry>() {
+                public JarWriter.Entry call()
+                    throws IOException
+                {
+                    final JarWriter.Entry entry = previous.readRaw(name);
+
+                    if (entry == null) {
+                        return createEntry(name, readContent(file), time);
+                    }
 
-        byte[] arr = new byte[1024];
-        int    n;
+                    return reproducible ? entry.withTime(time) : entry;
+                }
+            };
+    }
 
-        while ((n = is.read(arr)) > 0) {
-            jarOut.write(arr, 0, n);
-        }
+    /**
+     * An entry copied from another archive
+     */
+    private Callable<JarWriter.Entry> archiveEntry(final JarReader archive, final String name, final long time)
+    {
+        return new Callable<JarWriter.Entry>() {
+                public JarWriter.Entry call()
+                    throws IOException
+                {
+                    final JarWriter.Entry entry = archive.readRaw(name);
+
+                    if (entry == null) {
+                        return createEntry(name, archive.read(name), time);
+                    }
+
+                    return reproducible ? entry.withTime(time) : entry;
+                }
+            };
+    }
+
+    private Callable<JarWriter.Entry> entry(final String name, final byte[] content, final long time)
+    {
+        return new Callable<JarWriter.Entry>() {
+                public JarWriter.Entry call()
+                {
+                    return createEntry(name, content, time);
+                }
+            };
+    }
 
-        is.close();
-        jarOut.flush();
+    private JarWriter.Entry createEntry(String name, byte[] content, long time)
+    {
+        return doCompress ? JarWriter.compress(name, time, content, level) : JarWriter.store(name, time, content);
     }
 
-    private void writeManifest(JarOutputStream jarOut)
+    /**
+     * Read the content of a file to add, from memory if it was just generated (See {@link MemoryOutput})
+     */
+    private static byte[] readContent(File file)
         throws IOException
     {
-        ZipEntry e = new ZipEntry(JarFile.MANIFEST_NAME);
-        jarOut.putNextEntry(e);
-        manifest.write(new BufferedOutputStream(jarOut));
-        jarOut.closeEntry();
+        final byte[] bytes = MemoryOutput.remove(file);
+        return bytes == null ? FileUtils.readBytes(file) : bytes;
     }
 
-    private void writeMetaInfEntries(JarOutputStream jarOut, Set<String> addedDirs)
+    private void addMetaInfEntries(List<Callable<JarWriter.Entry>> entries, Set<String> addedDirs,
+                                   Map<String, Set<String>> allServices, long time)
         throws IOException
     {
-        for (Map.Entry<String, Set<String>> e : services.entrySet()) {
-            String        fileName = "META-INF/services/" + e.getKey();
+        final Map<String, Set<String>> svcs =
+            reproducible ? new TreeMap<String, Set<String>>(allServices) : allServices;
+
+        for (Map.Entry<String, Set<String>> e : svcs.entrySet()) {
+            String        fileName = SERVICES_DIR + e.getKey();
             StringBuilder buff = new StringBuilder();
 
-            for (String provider : e.getValue()) {
+            for (String provider : reproducible ? new TreeSet<String>(e.getValue()) : e.getValue()) {
                 buff.append(provider).append('\n');
             }
 
-            writeToJar(jarOut, fileName, new ByteArrayInputStream(buff.toString().getBytes()), addedDirs);
+            addParentDirs(entries, fileName, addedDirs, time);
+            logVerbose("Adding entry... %s\n", fileName);
+            entries.add(entry(fileName, buff.toString().getBytes(UTF8), time));
         }
     }
 
-    private void writeParentDirs(JarOutputStream jarOut, String fileName, Set<String> addedDirs)
-        throws IOException
+    private void addParentDirs(List<Callable<JarWriter.Entry>> entries, String fileName, Set<String> addedDirs,
+                               long time)
     {
         List<String> directories = new ArrayList<String>();
         int          slashPos = fileName.length();
@@ -404,20 +1049,56 @@ public class JarTask
         }
 
         for (int i = directories.size() - 1; i >= 0; i--) {
-            String dirName = directories.get(i);
+            final String dirName = directories.get(i);
             logVerbose("Adding dir...   %s\n", dirName);
-            JarEntry ze = new JarEntry(dirName);
-            ze.setSize(0);
-            ze.setMethod(ZipEntry.STORED);
-            ze.setCrc(EMPTY_CRC);
 
-            jarOut.putNextEntry(ze);
+            final JarWriter.Entry entry = JarWriter.directory(dirName, time);
+            entries.add(new Callable<JarWriter.Entry>() {
+                    public JarWriter.Entry call()
+                    {
+                        return entry;
+                    }
+                });
         }
     }
 
     //~ Static fields/initializers ...........................................................................
 
-    private static final long EMPTY_CRC = new CRC32().getValue();
+    private static final String META_INF = "META-INF/";
+    private static final String SERVICES_DIR = META_INF + "services/";
+
+    /**
+     * The suffixes of the files in the META-INF directory of other archives that are not copied
+     */
+    private static final String[] NOT_COPIED = { "MANIFEST.MF", "INDEX.LIST", ".SF", ".DSA", ".RSA", ".EC" };
+    private static final String CREATED_BY = "Created-By";
+    private static final String APB = "APB";
+    private static final String UTF8 = "UTF-8";
+
+    /**
+     * The time of the entries of reproducible jars.
+     * (Before the first MS-DOS time, so it is written as 1980-01-01 whatever the time zone is)
+     */
+    private static final long REPRODUCIBLE_TIME = 0;
+
+    private static final int    MANIFEST_LINE_LENGTH = 72;
+    private static final byte[] MANIFEST_NEWLINE = { '\r', '\n' };
+
+    /**
+     * The minimum number of entries to compress in each thread
+     */
+    private static final int MIN_ENTRIES_PER_THREAD = 64;
+
+    /**
+     * The minimum number of threads for a parallel jar
+     * (Reading the files to compress is bound by the latency of the file system as well as by the processors)
+     */
+    private static final int MIN_THREADS = 4;
+
+    /**
+     * The number of entries each thread can compress ahead of the ones being written
+     */
+    private static final int ENTRIES_AHEAD_PER_THREAD = 16;
 
     //~ Inner Classes ........................................................................................
 
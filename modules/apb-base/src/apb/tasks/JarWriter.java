@@ -0,0 +1,391 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Writes a jar from entries that are already compressed.
+ * As compressing an entry does not depend on the other ones, entries can be compressed in any thread
+ * (Or copied raw from other archives), and the output only depends on the order they are written in.
+ * It writes the sizes and crc in the local headers (No data descriptors), and uses Zip64 records
+ * when the number of entries or the size of the archive requires them.
+ */
+class JarWriter
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The number of bytes written
+     */
+    private long offset;
+
+    /**
+     * What the central directory needs from the entries already written (But not their data)
+     */
+    @NotNull private final List<CentralRecord> records;
+    @NotNull private final OutputStream        out;
+
+    //~ Constructors .........................................................................................
+
+    JarWriter(@NotNull OutputStream out)
+    {
+        this.out = new BufferedOutputStream(out, BUFFER_SIZE);
+        records = new ArrayList<CentralRecord>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Create a directory entry
+     * @param name The name of the directory, ending with '/'
+     * @param time The modification time
+     */
+    @NotNull static Entry directory(@NotNull String name, long time)
+    {
+        return new Entry(name, dosTime(time), ZipEntry.STORED, EMPTY_CRC, 0, new byte[0]);
+    }
+
+    /**
+     * Create an entry compressing its content
+     * @param name The name of the entry
+     * @param time The modification time
+     * @param content The content of the entry
+     * @param level The compression level, or -1 for the default one
+     */
+    @NotNull static Entry compress(@NotNull String name, long time, @NotNull byte[] content, int level)
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+
+        final Deflater              deflater = new Deflater(level, true);
+        final ByteArrayOutputStream data = new ByteArrayOutputStream(content.length / 2 + 64);
+
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+
+            final byte[] buffer = new byte[BUFFER_SIZE];
+
+            while (!deflater.finished()) {
+                final int n = deflater.deflate(buffer);
+                data.write(buffer, 0, n);
+            }
+        }
+        finally {
+            deflater.end();
+        }
+
+        return new Entry(name, dosTime(time), ZipEntry.DEFLATED, crc.getValue(), content.length,
+                         data.toByteArray());
+    }
+
+    /**
+     * Create an entry storing its content without compressing it
+     * @param name The name of the entry
+     * @param time The modification time
+     * @param content The content of the entry
+     */
+    @NotNull static Entry store(@NotNull String name, long time, @NotNull byte[] content)
+    {
+        final CRC32 crc = new CRC32();
+        crc.update(content);
+        return new Entry(name, dosTime(time), ZipEntry.STORED, crc.getValue(), content.length, content);
+    }
+
+    /**
+     * Write an entry
+     */
+    void write(@NotNull Entry entry)
+        throws IOException
+    {
+        // The first entry is marked as a jar (As JarOutputStream does)
+        final byte[] extra = records.isEmpty() ? JAR_MAGIC : NO_EXTRA;
+
+        records.add(new CentralRecord(entry, offset));
+
+        writeInt(LOCAL_HEADER);
+        writeShort(version(entry.method));
+        writeShort(flags(entry.utf8));
+        writeShort(entry.method);
+        writeInt(entry.dosTime);
+        writeInt(entry.crc);
+        writeInt(entry.data.length);
+        writeInt(entry.size);
+        writeShort(entry.nameBytes.length);
+        writeShort(extra.length);
+        writeBytes(entry.nameBytes);
+        writeBytes(extra);
+        writeBytes(entry.data);
+    }
+
+    /**
+     * Write the central directory and close the output
+     * @param comment The comment of the archive
+     */
+    void close(@Nullable String comment)
+        throws IOException
+    {
+        final long start = offset;
+
+        for (int i = 0; i < records.size(); i++) {
+            writeCentralHeader(records.get(i), i == 0 ? JAR_MAGIC : NO_EXTRA);
+        }
+
+        final long size = offset - start;
+        final int  count = records.size();
+
+        if (count >= ZIP64_MAGIC_COUNT || start >= ZIP64_MAGIC_VALUE || size >= ZIP64_MAGIC_VALUE) {
+            final long end64 = offset;
+
+            writeInt(ZIP64_END);
+            writeLong(ZIP64_END_SIZE);
+            writeShort(ZIP64_VERSION);
+            writeShort(ZIP64_VERSION);
+            writeInt(0);
+            writeInt(0);
+            writeLong(count);
+            writeLong(count);
+            writeLong(size);
+            writeLong(start);
+
+            writeInt(ZIP64_LOCATOR);
+            writeInt(0);
+            writeLong(end64);
+            writeInt(1);
+        }
+
+        final byte[] commentBytes = comment == null ? NO_EXTRA : comment.getBytes(UTF8);
+
+        writeInt(END_HEADER);
+        writeShort(0);
+        writeShort(0);
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeShort(Math.min(count, ZIP64_MAGIC_COUNT));
+        writeInt(Math.min(size, ZIP64_MAGIC_VALUE));
+        writeInt(Math.min(start, ZIP64_MAGIC_VALUE));
+        writeShort(commentBytes.length);
+        writeBytes(commentBytes);
+        out.close();
+    }
+
+    private void writeCentralHeader(@NotNull CentralRecord record, @NotNull byte[] extra)
+        throws IOException
+    {
+        final boolean zip64 = record.offset >= ZIP64_MAGIC_VALUE;
+
+        writeInt(CENTRAL_HEADER);
+        writeShort(zip64 ? ZIP64_VERSION : version(record.method));
+        writeShort(zip64 ? ZIP64_VERSION : version(record.method));
+        writeShort(flags(record.utf8));
+        writeShort(record.method);
+        writeInt(record.dosTime);
+        writeInt(record.crc);
+        writeInt(record.compressedSize);
+        writeInt(record.size);
+        writeShort(record.nameBytes.length);
+        writeShort(extra.length + (zip64 ? ZIP64_EXTRA_SIZE : 0));
+        writeShort(0);
+        writeShort(0);
+        writeShort(0);
+        writeInt(0);
+        writeInt(zip64 ? ZIP64_MAGIC_VALUE : record.offset);
+        writeBytes(record.nameBytes);
+        writeBytes(extra);
+
+        if (zip64) {
+            writeShort(ZIP64_EXTRA);
+            writeShort(ZIP64_EXTRA_SIZE - 4);
+            writeLong(record.offset);
+        }
+    }
+
+    private void writeShort(int value)
+        throws IOException
+    {
+        out.write(value & 0xFF);
+        out.write((value >>> 8) & 0xFF);
+        offset += 2;
+    }
+
+    private void writeInt(long value)
+        throws IOException
+    {
+        writeShort((int) (value & 0xFFFF));
+        writeShort((int) ((value >>> 16) & 0xFFFF));
+    }
+
+    private void writeLong(long value)
+        throws IOException
+    {
+        writeInt(value & 0xFFFFFFFFL);
+        writeInt(value >>> 32);
+    }
+
+    private void writeBytes(@NotNull byte[] bytes)
+        throws IOException
+    {
+        out.write(bytes);
+        offset += bytes.length;
+    }
+
+    private static int version(int method)
+    {
+        return method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    private static int flags(boolean utf8)
+    {
+        return utf8 ? UTF8_FLAG : 0;
+    }
+
+    /**
+     * Convert a java time to the MS-DOS format used in the archives
+     */
+    private static long dosTime(long time)
+    {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+
+        final int year = calendar.get(Calendar.YEAR);
+
+        if (year < 1980) {
+            return DOS_MIN_TIME;
+        }
+
+        return ((year - 1980) << 25) | ((calendar.get(Calendar.MONTH) + 1) << 21) |
+               (calendar.get(Calendar.DAY_OF_MONTH) << 16) | (calendar.get(Calendar.HOUR_OF_DAY) << 11) |
+               (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String UTF8 = "UTF-8";
+
+    private static final long LOCAL_HEADER = 0x04034b50L;
+    private static final long CENTRAL_HEADER = 0x02014b50L;
+    private static final long END_HEADER = 0x06054b50L;
+    private static final long ZIP64_END = 0x06064b50L;
+    private static final long ZIP64_LOCATOR = 0x07064b50L;
+    private static final long ZIP64_MAGIC_VALUE = 0xFFFFFFFFL;
+    private static final long ZIP64_END_SIZE = 44;
+    private static final long DOS_MIN_TIME = (1 << 21) | (1 << 16);
+    private static final long EMPTY_CRC = new CRC32().getValue();
+
+    private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+    private static final int ZIP64_VERSION = 45;
+    private static final int ZIP64_EXTRA = 0x0001;
+    private static final int ZIP64_EXTRA_SIZE = 12;
+    private static final int UTF8_FLAG = 0x800;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final byte[] NO_EXTRA = new byte[0];
+    private static final byte[] JAR_MAGIC = { (byte) 0xFE, (byte) 0xCA, 0, 0 };
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * An entry ready to be written (With its data already compressed)
+     */
+    static class Entry
+    {
+        final boolean         utf8;
+        final int             method;
+        final long            crc;
+        final long            dosTime;
+        final long            size;
+        @NotNull final byte[] data;
+        @NotNull final byte[] nameBytes;
+        @NotNull final String name;
+
+        /**
+         * Create an entry
+         * @param name The name of the entry
+         * @param dosTime The modification time (In MS-DOS format)
+         * @param method The compression method
+         * @param crc The crc of the uncompressed content
+         * @param size The size of the uncompressed content
+         * @param data The (Compressed) data
+         */
+        Entry(@NotNull String name, long dosTime, int method, long crc, long size, @NotNull byte[] data)
+        {
+            this.name = name;
+            this.dosTime = dosTime;
+            this.method = method;
+            this.crc = crc;
+            this.size = size;
+            this.data = data;
+
+            try {
+                nameBytes = name.getBytes(UTF8);
+            }
+            catch (UnsupportedEncodingException e) {
+                throw new RuntimeException(e);
+            }
+
+            utf8 = nameBytes.length != name.length();
+        }
+
+        /**
+         * The same entry with another modification time
+         */
+        @NotNull Entry withTime(long time)
+        {
+            return new Entry(name, dosTime(time), method, crc, size, data);
+        }
+    }
+
+    /**
+     * The fields of an entry already written that go in the central directory
+     */
+    private static class CentralRecord
+    {
+        private final boolean         utf8;
+        private final int             method;
+        private final long            compressedSize;
+        private final long            crc;
+        private final long            dosTime;
+        private final long            offset;
+        private final long            size;
+        @NotNull private final byte[] nameBytes;
+
+        CentralRecord(@NotNull Entry entry, long offset)
+        {
+            this.offset = offset;
+            utf8 = entry.utf8;
+            method = entry.method;
+            dosTime = entry.dosTime;
+            crc = entry.crc;
+            compressedSize = entry.data.length;
+            size = entry.size;
+            nameBytes = entry.nameBytes;
+        }
+    }
+}
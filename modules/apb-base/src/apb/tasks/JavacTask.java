@@ -21,12 +21,20 @@ package apb.tasks;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import apb.Apb;
 import apb.BuildException;
+import apb.BuildTrace;
+import apb.Constants;
 
+import apb.compiler.ClassOutputTransformer;
+import apb.compiler.DependencyAnalyzer;
 import apb.compiler.DiagnosticReporter;
 import apb.compiler.JavaC;
 
@@ -59,9 +67,12 @@ public class JavacTask
     private boolean            debug;
     private boolean            deprecated;
     private boolean            failOnWarning;
+    private boolean            incremental;
+    private boolean            recordAbi;
     private boolean            instrumentNotNull;
     private boolean            lint;
     private boolean            trackUnusedDependencies;
+    private boolean            useCache;
     private boolean            warn;
     private DiagnosticReporter reporter;
 
@@ -74,6 +85,16 @@ public class JavacTask
 
     @NotNull private final Map<String, String> annnotationOptions;
 
+    /**
+     * The classes read from the classpath by the compiler (As internal names)
+     */
+    @NotNull private final Set<String> readClasses;
+
+    /**
+     * The fingerprint of the api of the classpath
+     */
+    @NotNull private String classPathAbi;
+
     @NotNull private String lintOptions;
     @NotNull private String name;
     @NotNull private String processing;
@@ -97,7 +118,9 @@ public class JavacTask
         lintOptions = "";
         processing = "";
         name = "";
+        classPathAbi = "";
         annnotationOptions = new HashMap<String, String>();
+        readClasses = new HashSet<String>();
     }
 
     //~ Methods ..............................................................................................
@@ -204,89 +227,372 @@ public class JavacTask
 
     public void execute()
     {
-        JavaC jc = new JavaC(reporter);
+        final BuildTrace.Span span = BuildTrace.begin(BuildTrace.TASK, "javac").arg("to", targetDir.getPath());
+
+        try {
+            execute(span);
+        }
+        finally {
+            span.end();
+        }
+    }
+
+    private void execute(BuildTrace.Span span)
+    {
+        final FingerprintStore fingerprints = FingerprintStore.forEnvironment(env);
+        final Map<File, File>  classFiles = new LinkedHashMap<File, File>();
+
+        List<File> files = filterUptodate(fingerprints, classFiles);
 
-        List<File> files = filterByTimeStamp();
+        final DependencyGraph     graph = incremental ? DependencyGraph.forEnvironment(env, targetDir) : null;
+        final Map<String, String> constants = new HashMap<String, String>();
+
+        if (graph != null && !graph.isEmpty()) {
+            files = addDependents(graph, classFiles, files, constants);
+        }
+
+        span.arg("sources", classFiles.size()).arg("files", files.size());
+
+        if (BuildTrace.isEnabled()) {
+            span.arg("bytes", FileUtils.totalLength(files));
+        }
 
         if (files.isEmpty()) {
             logVerbose("Nothing to compile\n");
-        }
-        else {
-            env.logInfo("Compiling %3d file%s\n", files.size(), (files.size() > 1) ? "s" : "");
+            checkUnusedDependencies(graph, false);
+            recordFingerprints(fingerprints, classFiles, files);
 
-            if (env.isVerbose()) {
-                logInfo(files);
+            if (graph != null) {
+                graph.save();
             }
+        }
+        else {
+            final List<String> options = compilerOptions();
+            final ActionCache  cache = useCache ? ActionCache.forEnvironment(env) : null;
+            final String       cacheKey = cache == null ? null : cacheKey(fingerprints, classFiles, options);
 
-            final List<String> options = new ArrayList<String>();
+            if (cacheKey != null && !env.forceBuild() && restoreFromCache(cache, cacheKey)) {
+                span.arg("cache", "hit");
 
-            if (!processorPath.isEmpty()) {
-                options.add("-processorpath");
-                options.add(FileUtils.makePath(processorPath));
-            }
+                if (graph != null) {
+                    graph.update(0);
+                    graph.save();
+                }
 
-            if (debug) {
-                options.add("-g");
+                checkUnusedDependencies(graph, false);
+                recordFingerprints(fingerprints, classFiles, new ArrayList<File>(classFiles.keySet()));
             }
-
-            if (lint) {
-                if (lintOptions.isEmpty()) {
-                    options.add("-Xlint");
+            else {
+                if (graph == null) {
+                    compile(files, options);
                 }
                 else {
-                    options.add("-Xlint:" + lintOptions);
+                    compile(graph, classFiles, files, options, constants);
                 }
-            }
 
-            if (deprecated) {
-                options.add("-deprecation");
-            }
+                checkUnusedDependencies(graph, files.size() == classFiles.size());
+                recordFingerprints(fingerprints, classFiles, files);
 
-            if (!warn) {
-                options.add("-nowarn");
+                if (cacheKey != null) {
+                    storeInCache(cache, cacheKey);
+                }
             }
+        }
 
-            if (failOnWarning && reporter == null) {
-                options.add("-Werror");
-            }
+        if (recordAbi && targetDir.isDirectory()) {
+            AbiFingerprint.update(targetDir);
+        }
+    }
 
-            if (!source.isEmpty()) {
-                options.add("-source");
-                options.add(source);
+    /**
+     * Add to the files to compile the ones depending on them, or on the deleted source files.
+     * The classes of the deleted source files, and the previous classes of the ones to compile are removed.
+     * @param constants Where to store the constants of the source files before compiling them
+     * @return The complete list of files to compile
+     */
+    private List<File> addDependents(DependencyGraph graph, Map<File, File> classFiles, List<File> files,
+                                     Map<String, String> constants)
+    {
+        final Map<String, File> sources = sourcesByPath(classFiles);
+        final Set<String>       removed = graph.removedSources(sources.keySet());
+        final Set<String>       changed = new LinkedHashSet<String>(removed);
+        final Set<File>         toCompile = new LinkedHashSet<File>(files);
+
+        for (Map.Entry<String, File> entry : sources.entrySet()) {
+            if (toCompile.contains(entry.getValue())) {
+                changed.add(entry.getKey());
             }
+        }
+
+        for (String dependent : graph.dependents(changed)) {
+            final File source = sources.get(dependent);
 
-            if (!target.isEmpty()) {
-                options.add("-target");
-                options.add(target);
+            if (source != null) {
+                toCompile.add(source);
             }
+        }
+
+        final List<File> result = new ArrayList<File>(toCompile);
+
+        if (result.size() > files.size()) {
+            logVerbose("Adding %d dependent file%s\n", result.size() - files.size(),
+                       result.size() - files.size() > 1 ? "s" : "");
+        }
 
-            for (Map.Entry<String, String> entry : annnotationOptions.entrySet()) {
-                options.add("-A" + entry.getKey() + "=" + entry.getValue());
+        final Set<String> toDelete = new HashSet<String>(removed);
+
+        for (Map.Entry<String, File> entry : sources.entrySet()) {
+            if (toCompile.contains(entry.getValue())) {
+                toDelete.add(entry.getKey());
             }
+        }
 
-            if (!processing.isEmpty()) {
-                options.add("-proc:" + processing);
+        for (String path : toDelete) {
+            final String digest = graph.constants(path);
+
+            if (digest != null) {
+                constants.put(path, digest);
             }
+        }
 
-            final boolean status =
-                jc.compile(files, sourceDirs, targetDir, classPath, extraLibraries, options,
-                           trackUnusedDependencies);
+        final int deleted = graph.deleteClasses(toDelete);
 
-            if (reporter != null) {
-                reporter.reportSumary();
+        if (!removed.isEmpty()) {
+            env.logInfo("Removed %3d class%s of deleted source files\n", deleted, deleted == 1 ? "" : "es");
+        }
+
+        return result;
+    }
+
+    /**
+     * Compile the specified files updating the dependency graph.
+     * If the compile time constants of a source file changed, all the files are compiled,
+     * as the constants may be inlined in any class
+     */
+    private void compile(DependencyGraph graph, Map<File, File> classFiles, List<File> files,
+                         List<String> options, Map<String, String> constants)
+    {
+        final boolean empty = graph.isEmpty();
+        long          start = System.currentTimeMillis();
+
+        compile(files, options);
+        graph.update(empty ? 0 : start);
+
+        boolean constantsChanged = false;
+
+        for (Map.Entry<String, String> entry : constants.entrySet()) {
+            final String digest = graph.constants(entry.getKey());
+            constantsChanged |= !entry.getValue().equals(digest == null ? "" : digest);
+        }
+
+        if (constantsChanged && files.size() < classFiles.size()) {
+            final Set<File>    compiled = new HashSet<File>(files);
+            final List<File>   remaining = new ArrayList<File>();
+            final List<String> paths = new ArrayList<String>();
+
+            for (Map.Entry<String, File> entry : sourcesByPath(classFiles).entrySet()) {
+                if (!compiled.contains(entry.getValue())) {
+                    remaining.add(entry.getValue());
+                    paths.add(entry.getKey());
+                }
             }
 
-            if (!status) {
-                env.handle("Compilation failed");
+            logVerbose("Compile time constants changed\n");
+            graph.deleteClasses(paths);
+            start = System.currentTimeMillis();
+            compile(remaining, options);
+            graph.update(start);
+            files.addAll(remaining);
+        }
+
+        graph.save();
+    }
+
+    /**
+     * The source files by path relative to its source directory, as used in the dependency graph
+     */
+    private Map<String, File> sourcesByPath(Map<File, File> classFiles)
+    {
+        final Map<String, File> result = new LinkedHashMap<String, File>();
+        final int               prefix = targetDir.getPath().length() + 1;
+
+        for (Map.Entry<File, File> entry : classFiles.entrySet()) {
+            final String classPath = entry.getValue().getPath().substring(prefix);
+            final String path =
+                FileUtils.changeExtension(new File(classPath), ".java").getPath().replace(File.separatorChar, '/');
+            result.put(path, entry.getKey());
+        }
+
+        return result;
+    }
+
+    /**
+     * Compile the specified files, on failure the build is aborted
+     */
+    private void compile(List<File> files, List<String> options)
+    {
+        env.logInfo("Compiling %3d file%s\n", files.size(), (files.size() > 1) ? "s" : "");
+
+        if (env.isVerbose()) {
+            logInfo(files);
+        }
+
+        JavaC jc = new JavaC(reporter, env.getBooleanProperty(Constants.JAVAC_PACKAGE_INDEX_PROPERTY, true));
+
+        // Classes are instrumented in memory, unless there are so many that it is better to do it in parallel
+        final List<File>        generated = new ArrayList<File>();
+        final Map<File, byte[]> contents = new HashMap<File, byte[]>();
+
+        if (!instrumentNotNull) {
+            jc.setClassTransformer(keepContents(null, contents));
+        }
+        else if (files.size() < PARALLEL_INSTRUMENT_THRESHOLD) {
+            jc.setClassTransformer(keepContents(createNotNullInstrumenter(), contents));
+        }
+        else {
+            jc.setClassTransformer(recordClasses(generated));
+        }
+
+        final boolean status = jc.compile(files, sourceDirs, targetDir, classPath, extraLibraries, options);
+        readClasses.addAll(jc.getReadClasses());
+
+        if (reporter != null) {
+            reporter.reportSumary();
+        }
+
+        if (!status) {
+            env.handle("Compilation failed");
+        }
+        else if (!generated.isEmpty()) {
+            createNotNullInstrumentTask(generated).execute();
+        }
+        else {
+            MemoryOutput.addAll(contents);
+        }
+    }
+
+    private List<String> compilerOptions()
+    {
+        final List<String> options = new ArrayList<String>();
+
+        if (!processorPath.isEmpty()) {
+            options.add("-processorpath");
+            options.add(FileUtils.makePath(processorPath));
+        }
+
+        if (debug) {
+            options.add("-g");
+        }
+
+        if (lint) {
+            if (lintOptions.isEmpty()) {
+                options.add("-Xlint");
             }
             else {
-                checkUnusedDependencies(jc);
+                options.add("-Xlint:" + lintOptions);
+            }
+        }
 
-                if (instrumentNotNull) {
-                    createNotNullInstrumentTask().execute();
-                }
+        if (deprecated) {
+            options.add("-deprecation");
+        }
+
+        if (!warn) {
+            options.add("-nowarn");
+        }
+
+        if (failOnWarning && reporter == null) {
+            options.add("-Werror");
+        }
+
+        if (!source.isEmpty()) {
+            options.add("-source");
+            options.add(source);
+        }
+
+        if (!target.isEmpty()) {
+            options.add("-target");
+            options.add(target);
+        }
+
+        for (Map.Entry<String, String> entry : annnotationOptions.entrySet()) {
+            options.add("-A" + entry.getKey() + "=" + entry.getValue());
+        }
+
+        if (!processing.isEmpty()) {
+            options.add("-proc:" + processing);
+        }
+
+        return options;
+    }
+
+    /**
+     * The key in the cache for the output of compiling all the sources.
+     * It includes the sources, the options, and the content of the classpath.
+     */
+    private String cacheKey(FingerprintStore fingerprints, Map<File, File> classFiles, List<String> options)
+    {
+        final ActionCache.Key key = new ActionCache.Key("javac", fingerprints);
+        key.add(options);
+        key.add(String.valueOf(instrumentNotNull));
+
+        final int prefix = targetDir.getPath().length() + 1;
+
+        for (Map.Entry<File, File> entry : classFiles.entrySet()) {
+            key.addFile(entry.getValue().getPath().substring(prefix), entry.getKey());
+        }
+
+        key.addContent(classPath);
+        key.addContent(extraLibraries);
+        key.addContent(processorPath);
+        return key.digest();
+    }
+
+    /**
+     * Restore the classes from the cache, removing the ones that are not part of the cached output
+     * @return true if the classes were found in the cache
+     */
+    private boolean restoreFromCache(ActionCache cache, String key)
+    {
+        final List<String> restored = cache.restore(key, targetDir);
+
+        if (restored == null) {
+            return false;
+        }
+
+        env.logInfo("Restored %3d class%s from the build cache\n", restored.size(),
+                    restored.size() == 1 ? "" : "es");
+
+        final Set<String> names = new HashSet<String>(restored);
+
+        for (String name : classNames()) {
+            if (!names.contains(name)) {
+                logVerbose("Removing class: %s\n", name);
+                new File(targetDir, name).delete();
             }
         }
+
+        return true;
+    }
+
+    private void storeInCache(ActionCache cache, String key)
+    {
+        cache.store(key, targetDir, classNames());
+    }
+
+    /**
+     * The relative names of all the classes in the target directory
+     */
+    private List<String> classNames()
+    {
+        final List<String> result = new ArrayList<String>();
+        final int          prefix = targetDir.getPath().length() + 1;
+
+        for (File file : FileUtils.listAllFilesWithExt(targetDir, ".class")) {
+            result.add(file.getPath().substring(prefix).replace(File.separatorChar, '/'));
+        }
+
+        return result;
     }
 
     public boolean failOnWarning()
@@ -434,6 +740,35 @@ public class JavacTask
         return this;
     }
 
+    /**
+     * Record the ABI fingerprint of the compiled classes,
+     * so tasks compiling against them can skip compilation when the api does not change
+     */
+    public JavacTask recordAbi(boolean b)
+    {
+        recordAbi = b;
+        return this;
+    }
+
+    /**
+     * Recompile the dependents of the modified source files, and remove the classes of the deleted ones
+     */
+    public JavacTask incremental(boolean b)
+    {
+        incremental = b;
+        return this;
+    }
+
+    /**
+     * Restore the compiled classes from the build cache when possible
+     * (And store them in the cache when compiled)
+     */
+    public JavacTask useCache(boolean b)
+    {
+        useCache = b;
+        return this;
+    }
+
     private static void validateDir(File dir)
     {
         if (dir.exists()) {
@@ -473,10 +808,22 @@ public class JavacTask
         logVerbose("Target directory: %s\n", targetDir);
     }
 
-    private void checkUnusedDependencies(JavaC jc)
+    /**
+     * Check that every element of the classpath is used by the classes in the target directory.
+     * The references are taken from the dependency graph if there is one, or read from the class files,
+     * so it also works when only some of the files were compiled.
+     * As compile time constants are inlined, and annotations with source retention are not in the class files,
+     * the classes the compiler read from the classpath are used too, but they are only known when all
+     * the files were compiled (See {@link DependencyAnalyzer}).
+     * @param compiledAll Whether all the files were compiled
+     */
+    private void checkUnusedDependencies(@Nullable DependencyGraph graph, boolean compiledAll)
     {
         if (trackUnusedDependencies) {
-            final List<File> unused = jc.unusedPathElements(classPath);
+            final Set<String> references =
+                graph == null || graph.isEmpty() ? DependencyAnalyzer.referencesFrom(targetDir) : graph.references();
+            final List<File>  unused =
+                DependencyAnalyzer.unusedPathElements(classPath, references, compiledAll ? readClasses : null);
 
             if (!unused.isEmpty()) {
                 throw new UnusedLibrariesException(name, unused);
@@ -484,17 +831,78 @@ public class JavacTask
         }
     }
 
-    private Task createNotNullInstrumentTask()
+    private ClassOutputTransformer createNotNullInstrumenter()
     {
         try {
-            return (Task) ClassUtils.newInstance("apb.processors.NotNullInstrumentTask");
+            return (ClassOutputTransformer) ClassUtils.newInstance("apb.processors.NotNullInstrumenter", env);
         }
         catch (Exception e) {
             throw new BuildException(e);
         }
     }
 
-    private List<File> filterByTimeStamp()
+    private Task createNotNullInstrumentTask(List<File> classFiles)
+    {
+        try {
+            return (Task) ClassUtils.newInstance("apb.processors.NotNullInstrumentTask", classFiles);
+        }
+        catch (Exception e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * A transformer that does not modify the generated classes, it just records their class files
+     */
+    private ClassOutputTransformer recordClasses(final List<File> classFiles)
+    {
+        return new ClassOutputTransformer() {
+                public byte[] transform(@NotNull String className, @NotNull byte[] bytes)
+                {
+                    classFiles.add(classFile(className));
+                    return null;
+                }
+            };
+    }
+
+    /**
+     * A transformer that keeps the (transformed) content of the generated classes, so they can be
+     * handed to the tasks packaging them through {@link MemoryOutput} instead of being read again
+     */
+    private ClassOutputTransformer keepContents(@Nullable final ClassOutputTransformer transformer,
+                                                final Map<File, byte[]> contents)
+    {
+        return new ClassOutputTransformer() {
+                private long total;
+
+                public byte[] transform(@NotNull String className, @NotNull byte[] bytes)
+                {
+                    final byte[] result = transformer == null ? null : transformer.transform(className, bytes);
+                    final byte[] content = result == null ? bytes : result;
+                    total += content.length;
+
+                    if (MemoryOutput.hasSpaceFor(total)) {
+                        contents.put(classFile(className), content);
+                    }
+
+                    return result;
+                }
+            };
+    }
+
+    private File classFile(String className)
+    {
+        return new File(targetDir, className.replace('.', File.separatorChar) + ".class");
+    }
+
+    /**
+     * Returns the list of source files that must be compiled.
+     * A source file is up to date if its content and the content of its class file did not change
+     * since it was compiled. (If there are no fingerprints for it, timestamps are compared)
+     * @param fingerprints The store of fingerprints
+     * @param classFiles  A map to be filled with the class file for each source file
+     */
+    private List<File> filterUptodate(FingerprintStore fingerprints, Map<File, File> classFiles)
     {
         List<File> result = new ArrayList<File>();
 
@@ -512,31 +920,101 @@ public class JavacTask
                 sourceDirs.add(sourceDir);
 
                 for (String f : fileNames) {
-                    final File sourceFile = new File(sourceDir, f);
-                    final File classFile = FileUtils.changeExtension(new File(targetDir, f), ".class");
-
-                    if (env.forceBuild()) {
-                        result.add(sourceFile);
-                    }
-                    else {
-                        final long classLastModified;
-
-                        if ((classLastModified = classFile.lastModified()) == 0 ||
-                                sourceFile.lastModified() > classLastModified) {
-                            result.add(sourceFile);
-                        }
-                        else if (trackUnusedDependencies) {
-                            logVerbose("Not tracking dependencies because some files will not be compiled\n");
-                            trackUnusedDependencies = false;
-                        }
-                    }
+                    classFiles.put(new File(sourceDir, f),
+                                   FileUtils.changeExtension(new File(targetDir, f), ".class"));
                 }
             }
         }
 
+        if (!env.forceBuild()) {
+            fingerprints.hashAll(classFiles.keySet());
+        }
+
+        final boolean classPathChanged = classPathChanged(fingerprints);
+
+        for (Map.Entry<File, File> entry : classFiles.entrySet()) {
+            final File sourceFile = entry.getKey();
+            final File classFile = entry.getValue();
+
+            if (env.forceBuild() || classPathChanged) {
+                result.add(sourceFile);
+            }
+            else if (fingerprints.hasFingerprint(classFile) ? !fingerprints.uptodate(classFile, sourceFile)
+                                                            : !uptodate(sourceFile, classFile)) {
+                result.add(sourceFile);
+            }
+        }
+
         return result;
     }
 
+    private static boolean uptodate(File sourceFile, File classFile)
+    {
+        final long classLastModified = classFile.lastModified();
+        return classLastModified != 0 && sourceFile.lastModified() <= classLastModified;
+    }
+
+    /**
+     * Check if the api of the classpath changed since the last compilation.
+     * Classpath directories are compared using their ABI fingerprint, so changes in method bodies
+     * of upstream modules do not force a new compilation
+     */
+    private boolean classPathChanged(FingerprintStore fingerprints)
+    {
+        final List<File> entries = new ArrayList<File>(classPath);
+        entries.addAll(extraLibraries);
+        entries.remove(targetDir);
+
+        classPathAbi = AbiFingerprint.forClassPath(entries, fingerprints);
+
+        final String  key = classPathKey();
+        final boolean result = fingerprints.hasDigest(key) && !fingerprints.sameDigest(key, classPathAbi);
+
+        if (result && !env.forceBuild()) {
+            logVerbose("The api of the classpath changed\n");
+        }
+
+        return result;
+    }
+
+    private String classPathKey()
+    {
+        return targetDir.getPath() + CLASSPATH_SUFFIX;
+    }
+
+    /**
+     * Record the fingerprints of the compiled files, and of the ones that do not have them yet
+     */
+    private void recordFingerprints(FingerprintStore fingerprints, Map<File, File> classFiles,
+                                    List<File> compiled)
+    {
+        fingerprints.recordDigest(classPathKey(), classPathAbi);
+
+        final Set<File> compiledSet = new HashSet<File>(compiled);
+
+        for (Map.Entry<File, File> entry : classFiles.entrySet()) {
+            final File classFile = entry.getValue();
+
+            if (compiledSet.contains(entry.getKey()) || !fingerprints.hasFingerprint(classFile)) {
+                fingerprints.record(classFile, entry.getKey());
+            }
+        }
+
+        fingerprints.save();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The suffix of the key used to record the fingerprint of the classpath api
+     */
+    private static final String CLASSPATH_SUFFIX = "#classpath";
+
+    /**
+     * The number of files to compile from which @NotNull assertions are added in parallel, after compiling
+     */
+    private static final int PARALLEL_INSTRUMENT_THRESHOLD = 2000;
+
     //~ Inner Classes ........................................................................................
 
     public static class Builder
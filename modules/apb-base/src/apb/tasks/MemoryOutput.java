@@ -0,0 +1,108 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tasks;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The content of the files generated during the build, kept in memory so the tasks consuming them
+ * (Like {@link JarTask} packaging the classes just compiled by {@link JavacTask}) do not read them again.
+ * A file is only served from memory while its size and modification time are the ones it had when it was added,
+ * and it is served just once (Files are usually consumed by a single task).
+ * The total size is limited, files beyond the limit are just read from disk.
+ */
+public class MemoryOutput
+{
+    //~ Methods ..............................................................................................
+
+    /**
+     * Discard all the files (Called at the start of each build)
+     */
+    public static synchronized void clear()
+    {
+        files.clear();
+        totalBytes = 0;
+    }
+
+    /**
+     * Check if there is space for the specified number of bytes
+     */
+    static synchronized boolean hasSpaceFor(long bytes)
+    {
+        return totalBytes + bytes <= MAX_BYTES;
+    }
+
+    /**
+     * Keep the content of files already written
+     */
+    static synchronized void addAll(@NotNull Map<File, byte[]> contents)
+    {
+        for (Map.Entry<File, byte[]> entry : contents.entrySet()) {
+            final File   file = entry.getKey();
+            final byte[] bytes = entry.getValue();
+
+            if (file.length() == bytes.length && hasSpaceFor(bytes.length)) {
+                final Content previous = files.put(file, new Content(bytes, file.lastModified()));
+                totalBytes += bytes.length - (previous == null ? 0 : previous.bytes.length);
+            }
+        }
+    }
+
+    /**
+     * Get (And remove) the content of a file
+     * @return The content, or null if it is not in memory or the file was modified after adding it
+     */
+    @Nullable static synchronized byte[] remove(@NotNull File file)
+    {
+        final Content content = files.remove(file);
+
+        if (content == null) {
+            return null;
+        }
+
+        totalBytes -= content.bytes.length;
+        return file.length() == content.bytes.length && file.lastModified() == content.lastModified
+               ? content.bytes : null;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static long totalBytes;
+
+    @NotNull private static final Map<File, Content> files = new HashMap<File, Content>();
+
+    private static final long MAX_BYTES = 64L * 1024 * 1024;
+
+    //~ Inner Classes ........................................................................................
+
+    private static class Content
+    {
+        private final long            lastModified;
+        @NotNull private final byte[] bytes;
+
+        Content(@NotNull byte[] bytes, long lastModified)
+        {
+            this.bytes = bytes;
+            this.lastModified = lastModified;
+        }
+    }
+}
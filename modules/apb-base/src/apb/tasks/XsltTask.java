@@ -117,6 +117,11 @@ public class XsltTask
         return this;
     }
 
+    @Override protected boolean isPlainCopy()
+    {
+        return false;
+    }
+
     @Override protected void doCopyFile(File source, File dest)
         throws IOException
     {
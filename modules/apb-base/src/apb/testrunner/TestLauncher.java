@@ -38,6 +38,7 @@ import java.util.Set;
 
 import apb.Apb;
 import apb.BuildException;
+import apb.BuildTrace;
 import apb.Environment;
 import apb.Proxy;
 import apb.TestModuleHelper;
@@ -51,6 +52,7 @@ import apb.testrunner.output.TestReport;
 
 import apb.utils.ClassUtils;
 import apb.utils.FileUtils;
+import apb.utils.TreeSnapshot;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -273,7 +275,15 @@ public class TestLauncher
             showJavaArgs();
         }
 
-        int result = fork ? executeOutOfProcess() : executeInProcess();
+        final BuildTrace.Span span = BuildTrace.begin(BuildTrace.TASK, "tests").arg("fork", String.valueOf(fork));
+        int                   result = TestRunner.ERROR;
+
+        try {
+            result = fork ? executeOutOfProcess() : executeInProcess();
+        }
+        finally {
+            span.arg("result", result).end();
+        }
 
         if (result == TestRunner.NO_TESTS) {
             if (failIfEmpty) {
@@ -432,7 +442,9 @@ public class TestLauncher
         cp.add(testClasses);
         ClassLoader cl = createClassLoader(cp);
 
-        final Set<String> tests = listTests(cl, testCreator, testClasses, includes, excludes, singleTest);
+        final Set<String> tests =
+            listTests(cl, testCreator, testClasses, includes, excludes, singleTest,
+                      TreeSnapshot.forEnvironment(env, testClasses));
 
         final File dir = reportDir;
 
@@ -604,6 +616,7 @@ public class TestLauncher
 
         try {
             TestRunner      runner = new TestRunner(testClasses, reportDir, includes, excludes, testGroups);
+            runner.setSnapshot(TreeSnapshot.forEnvironment(env, testClasses));
             final Set<File> cp = new HashSet<File>(classPath);
             cp.add(testClasses);
             final ClassLoader loader = createClassLoader(cp);
@@ -30,6 +30,7 @@ import java.util.TreeMap;
 import apb.testrunner.output.TestReport;
 
 import apb.utils.DirectoryScanner;
+import apb.utils.TreeSnapshot;
 
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -53,6 +54,11 @@ class TestRunner
     @NotNull private final List<String> includes;
     @NotNull private final List<String> testGroups;
 
+    /**
+     * The snapshot of the tests directory tree (If any)
+     */
+    @Nullable private TreeSnapshot snapshot;
+
     //~ Constructors .........................................................................................
 
     public TestRunner(@NotNull File basedir, File outputDir, @NotNull List<String> includes,
@@ -68,11 +74,13 @@ class TestRunner
     //~ Methods ..............................................................................................
 
     public static Set<String> listTests(ClassLoader testsClassLoader, String creatorClass, File basedir,
-                                        List<String> includes, List<String> excludes, String singleTest)
+                                        List<String> includes, List<String> excludes, String singleTest,
+                                        @Nullable TreeSnapshot snapshot)
         throws TestSetFailedException
     {
         final TestSetCreator<?> testCreator = TestLauncher.instatiateCreator(creatorClass, testsClassLoader);
-        return loadTests(testsClassLoader, testCreator, basedir, includes, excludes, singleTest).keySet();
+        return loadTests(testsClassLoader, testCreator, basedir, includes, excludes, singleTest, snapshot)
+               .keySet();
     }
 
     public static int worseResult(int r1, int r2)
@@ -92,7 +100,7 @@ class TestRunner
         throws TestSetFailedException
     {
         final Collection<TestSet> tests =
-            loadTests(testsClassLoader, creator, basedir, includes, excludes, singleTest).values();
+            loadTests(testsClassLoader, creator, basedir, includes, excludes, singleTest, snapshot).values();
 
         report = report.init(outputDir);
         report.startRun(tests.size());
@@ -136,6 +144,14 @@ class TestRunner
         failEmpty = v;
     }
 
+    /**
+     * Use a snapshot of the tests directory tree to look for the tests
+     */
+    public void setSnapshot(@Nullable TreeSnapshot s)
+    {
+        snapshot = s;
+    }
+
     public boolean isVerbose()
     {
         return verbose;
@@ -143,13 +159,14 @@ class TestRunner
 
     private static <T> Map<String, TestSet> loadTests(ClassLoader testsClassLoader, TestSetCreator<T> creator,
                                                       File basedir, List<String> includes,
-                                                      List<String> excludes, String singleTest)
+                                                      List<String> excludes, String singleTest,
+                                                      @Nullable TreeSnapshot snapshot)
         throws TestSetFailedException
     {
         Map<String, TestSet> testSets = new TreeMap<String, TestSet>();
 
         // Load tests
-        for (String file : collectTests(basedir, excludes, includes)) {
+        for (String file : collectTests(basedir, excludes, includes, snapshot)) {
             TestSet<T> testSet = loadTest(testsClassLoader, creator, file, singleTest);
 
             if (testSet != null) {
@@ -201,13 +218,15 @@ class TestRunner
         }
     }
 
-    private static List<String> collectTests(File basedir, List<String> excludes, List<String> includes)
+    private static List<String> collectTests(File basedir, List<String> excludes, List<String> includes,
+                                             @Nullable TreeSnapshot snapshot)
         throws TestSetFailedException
     {
         List<String> result = new ArrayList<String>();
 
         if (basedir.exists()) {
             DirectoryScanner scanner = new DirectoryScanner(basedir, includes, excludes);
+            scanner.withSnapshot(snapshot);
 
             for (String s : scanner.scan()) {
                 if (s.endsWith(".class")) {
@@ -0,0 +1,327 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Detects the changes in the files and directories watched for a set of keys, polling them.
+ * The state of a directory is its modification time, and the state of a file its modification time and length.
+ * Polls can only check the directories, whose modification time changes when files are added, removed
+ * or replaced (As most editors do when saving), and take the state of the files from the previous poll.
+ * The excluded files and directories (And everything inside them) are not watched.
+ */
+public class ChangeDetector
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The listings of the directories watched, they are reused while the directory is not modified
+     */
+    @NotNull private final Map<File, Listing> listings;
+
+    /**
+     * The files and directories not watched
+     */
+    @NotNull private final Set<File> excluded;
+
+    /**
+     * The files and directories watched for each key
+     */
+    @NotNull private final Map<String, Set<File>> watched;
+
+    /**
+     * The state the changes are relative to (Null until the first poll)
+     */
+    @Nullable private Map<File, Long> state;
+
+    /**
+     * The state in the last poll
+     */
+    @Nullable private Map<File, Long> current;
+
+    //~ Constructors .........................................................................................
+
+    public ChangeDetector()
+    {
+        listings = new HashMap<File, Listing>();
+        excluded = new HashSet<File>();
+        watched = new LinkedHashMap<String, Set<File>>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Do not watch the specified file or directory
+     */
+    public void exclude(@NotNull File file)
+    {
+        excluded.add(file);
+    }
+
+    public boolean isExcluded(@NotNull File file)
+    {
+        return excluded.contains(file);
+    }
+
+    /**
+     * Watch the specified files and directories (Besides the ones already watched) for the key.
+     * The ones not watched before start from their current state, so a change is only
+     * reported when they are modified from now on.
+     */
+    public void watch(@NotNull String key, @NotNull Collection<File> files)
+    {
+        final Set<File> roots = watchedRoots();
+
+        Set<File> keyFiles = watched.get(key);
+
+        if (keyFiles == null) {
+            keyFiles = new LinkedHashSet<File>();
+            watched.put(key, keyFiles);
+        }
+
+        keyFiles.addAll(files);
+
+        if (state != null) {
+            final Set<File> added = new LinkedHashSet<File>(files);
+            added.removeAll(roots);
+
+            final Map<File, Long> addedState = snapshot(added, null);
+            state.putAll(addedState);
+            current.putAll(addedState);
+        }
+    }
+
+    /**
+     * Poll the files and directories watched
+     * @param checkFiles Whether to check the files, or only the directories
+     * @return true if something changed since the previous poll
+     */
+    public boolean poll(boolean checkFiles)
+    {
+        if (state == null) {
+            state = snapshot(null);
+            current = state;
+            return false;
+        }
+
+        final Map<File, Long> previous = current;
+        current = snapshot(checkFiles ? null : previous);
+        return !current.equals(previous);
+    }
+
+    /**
+     * The keys whose files changed since the previous call (In the order they were first watched),
+     * as of the last poll
+     */
+    @NotNull public List<String> changedKeys()
+    {
+        final List<String> result = new ArrayList<String>();
+
+        if (state != null && current != state) {
+            final Set<File> changed = new HashSet<File>();
+
+            for (Map.Entry<File, Long> entry : current.entrySet()) {
+                if (!entry.getValue().equals(state.get(entry.getKey()))) {
+                    changed.add(entry.getKey());
+                }
+            }
+
+            for (File file : state.keySet()) {
+                if (!current.containsKey(file)) {
+                    changed.add(file);
+                }
+            }
+
+            for (Map.Entry<String, Set<File>> entry : watched.entrySet()) {
+                if (isAffected(entry.getValue(), changed)) {
+                    result.add(entry.getKey());
+                }
+            }
+
+            // A copy, as the states of files watched from now on are added to both of them
+            state = new HashMap<File, Long>(current);
+        }
+
+        return result;
+    }
+
+    /**
+     * All the files and directories watched
+     */
+    @NotNull private Set<File> watchedRoots()
+    {
+        final Set<File> result = new LinkedHashSet<File>();
+
+        for (Set<File> files : watched.values()) {
+            result.addAll(files);
+        }
+
+        return result;
+    }
+
+    /**
+     * The state of every file or directory watched
+     * @param previous A previous state to take the state of the files from (Only directories are checked),
+     *                 or null to check everything
+     */
+    @NotNull private Map<File, Long> snapshot(@Nullable Map<File, Long> previous)
+    {
+        final Map<File, Long> result = snapshot(watchedRoots(), previous);
+
+        // Forget about the directories no longer watched or removed
+        listings.keySet().retainAll(result.keySet());
+        return result;
+    }
+
+    /**
+     * The state of the specified files or directories, and of everything inside them.
+     * @param previous A previous state to take the state of the files from, or null to check them
+     */
+    @NotNull private Map<File, Long> snapshot(@NotNull Collection<File> roots, @Nullable Map<File, Long> previous)
+    {
+        final Map<File, Long> result = new HashMap<File, Long>();
+
+        for (File root : roots) {
+            if (root.isDirectory()) {
+                scanDirectory(root, previous, result);
+            }
+            else if (!excluded.contains(root)) {
+                result.put(root, fileState(root));
+            }
+        }
+
+        return result;
+    }
+
+    private void scanDirectory(@NotNull File dir, @Nullable Map<File, Long> previous,
+                               @NotNull Map<File, Long> result)
+    {
+        if (excluded.contains(dir) || result.containsKey(dir)) {
+            return;
+        }
+
+        final long lastModified = dir.lastModified();
+        result.put(dir, lastModified);
+
+        Listing listing = listings.get(dir);
+
+        if (listing == null || listing.lastModified != lastModified) {
+            // Get the time before listing it, so a concurrent modification is detected next time
+            final long now = System.currentTimeMillis();
+            listing = new Listing(dir, lastModified);
+
+            // A modification in the same tick than the listing would not be detected
+            if (lastModified != 0 && lastModified + TIMESTAMP_RESOLUTION < now) {
+                listings.put(dir, listing);
+            }
+            else {
+                listings.remove(dir);
+            }
+        }
+
+        for (File file : listing.files) {
+            final Long fileState = previous == null ? null : previous.get(file);
+
+            if (!excluded.contains(file)) {
+                result.put(file, fileState != null ? fileState : fileState(file));
+            }
+        }
+
+        for (File subdir : listing.dirs) {
+            scanDirectory(subdir, previous, result);
+        }
+    }
+
+    /**
+     * Returns true if any of the changed files is one of the roots or is inside them
+     */
+    private static boolean isAffected(@NotNull Set<File> roots, @NotNull Set<File> changed)
+    {
+        for (File root : roots) {
+            final String prefix = root.getPath() + File.separator;
+
+            for (File file : changed) {
+                if (file.equals(root) || file.getPath().startsWith(prefix)) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * A value that changes when a file is modified
+     */
+    private static long fileState(@NotNull File file)
+    {
+        return file.lastModified() * 31 + file.length();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The time (In milliseconds) a directory must have been unmodified to trust its modification time
+     * (Some file systems only keep it in seconds, or in intervals of two seconds)
+     */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The files and subdirectories of a directory
+     */
+    private static class Listing
+    {
+        private final long                lastModified;
+        @NotNull private final List<File> dirs;
+        @NotNull private final List<File> files;
+
+        Listing(@NotNull File dir, long lastModified)
+        {
+            this.lastModified = lastModified;
+            dirs = new ArrayList<File>();
+            files = new ArrayList<File>();
+
+            final File[] entries = dir.listFiles();
+
+            if (entries != null) {
+                for (File entry : entries) {
+                    if (entry.isDirectory()) {
+                        dirs.add(entry);
+                    }
+                    else {
+                        files.add(entry);
+                    }
+                }
+            }
+        }
+    }
+}
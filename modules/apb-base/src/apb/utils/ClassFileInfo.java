@@ -0,0 +1,633 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * The information of a class file needed to track dependencies between classes.
+ * It is obtained by reading the constant pool of the class, without loading it.
+ * All class names are internal names (Like 'java/lang/String')
+ */
+public class ClassFileInfo
+{
+    //~ Instance fields ......................................................................................
+
+    /**
+     * The access flags of the class
+     */
+    private int access;
+
+    /**
+     * The name of the source file the class was compiled from (Or null if it was not recorded)
+     */
+    @Nullable private String sourceFile;
+
+    /**
+     * The name of the class
+     */
+    @NotNull private String name;
+
+    /**
+     * The compile time constants (Non private) declared in the class, as 'name=value'
+     */
+    @NotNull private final List<String> constants;
+
+    /**
+     * The description of the api of the class
+     */
+    @NotNull private final List<String> api;
+
+    /**
+     * The super class and the interfaces implemented by the class
+     */
+    @NotNull private final List<String> superTypes;
+
+    /**
+     * The classes referenced from the class.
+     * It is a conservative approximation: It includes every class named in the constant pool
+     * (Including the ones only appearing in descriptors or signatures)
+     */
+    @NotNull private final Set<String> references;
+
+    //~ Constructors .........................................................................................
+
+    private ClassFileInfo()
+    {
+        name = "";
+        constants = new ArrayList<String>();
+        api = new ArrayList<String>();
+        superTypes = new ArrayList<String>();
+        references = new TreeSet<String>();
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Read the information of the specified class file
+     * @throws IOException If the file cannot be read or it is not a valid class file
+     */
+    @NotNull public static ClassFileInfo read(@NotNull File classFile)
+        throws IOException
+    {
+        final InputStream is = new BufferedInputStream(new FileInputStream(classFile));
+
+        try {
+            return read(is);
+        }
+        finally {
+            is.close();
+        }
+    }
+
+    /**
+     * Read the information of a class file from the specified stream
+     * @throws IOException If the stream cannot be read or it does not contain a valid class file
+     */
+    @NotNull public static ClassFileInfo read(@NotNull InputStream is)
+        throws IOException
+    {
+        final ClassFileInfo result = new ClassFileInfo();
+        result.parse(new DataInputStream(is));
+        return result;
+    }
+
+    @NotNull public String getName()
+    {
+        return name;
+    }
+
+    @Nullable public String getSourceFile()
+    {
+        return sourceFile;
+    }
+
+    /**
+     * The path (Relative to the source directory) of the source file the class was compiled from,
+     * or null if it is unknown
+     */
+    @Nullable public String getSourcePath()
+    {
+        if (sourceFile == null) {
+            return null;
+        }
+
+        final int slash = name.lastIndexOf('/');
+        return slash == -1 ? sourceFile : name.substring(0, slash + 1) + sourceFile;
+    }
+
+    /**
+     * The classes referenced by this class (Not including itself)
+     */
+    @NotNull public Set<String> getReferences()
+    {
+        return Collections.unmodifiableSet(references);
+    }
+
+    /**
+     * The super class (If any) and the interfaces implemented by the class
+     */
+    @NotNull public List<String> getSuperTypes()
+    {
+        return Collections.unmodifiableList(superTypes);
+    }
+
+    /**
+     * A description of the api of the class (Its non private signatures, constants and annotations).
+     * Method bodies are not included, so it only changes when classes using this one may need to be recompiled.
+     * It is empty for local and anonymous classes.
+     */
+    @NotNull public List<String> getApi()
+    {
+        return Collections.unmodifiableList(api);
+    }
+
+    /**
+     * Whether the class is an annotation type
+     */
+    public boolean isAnnotation()
+    {
+        return (access & ACC_ANNOTATION) != 0;
+    }
+
+    /**
+     * The compile time constants that can be inlined in other classes
+     */
+    @NotNull public List<String> getConstants()
+    {
+        return Collections.unmodifiableList(constants);
+    }
+
+    private void parse(DataInputStream in)
+        throws IOException
+    {
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not a class file");
+        }
+
+        // minor & major version
+        in.readUnsignedShort();
+        in.readUnsignedShort();
+
+        final int      count = in.readUnsignedShort();
+        final Object[] pool = new Object[count];
+
+        for (int i = 1; i < count; i++) {
+            final int tag = in.readUnsignedByte();
+
+            switch (tag) {
+            case UTF8:
+                pool[i] = in.readUTF();
+                break;
+            case INTEGER:
+                pool[i] = in.readInt();
+                break;
+            case FLOAT:
+                pool[i] = in.readFloat();
+                break;
+            case LONG:
+                pool[i++] = in.readLong();
+                break;
+            case DOUBLE:
+                pool[i++] = in.readDouble();
+                break;
+            case CLASS:
+                pool[i] = new ClassRef(in.readUnsignedShort());
+                break;
+            case STRING:
+                pool[i] = new StringRef(in.readUnsignedShort());
+                break;
+            case METHOD_TYPE:
+            case MODULE:
+            case PACKAGE:
+                in.readUnsignedShort();
+                break;
+            case METHOD_HANDLE:
+                in.readUnsignedByte();
+                in.readUnsignedShort();
+                break;
+            case FIELD_REF:
+            case METHOD_REF:
+            case INTERFACE_METHOD_REF:
+            case NAME_AND_TYPE:
+            case DYNAMIC:
+            case INVOKE_DYNAMIC:
+                in.readInt();
+                break;
+            default:
+                throw new IOException("Invalid constant pool tag: " + tag);
+            }
+        }
+
+        for (Object entry : pool) {
+            if (entry instanceof ClassRef) {
+                addReference((String) pool[((ClassRef) entry).index]);
+            }
+            else if (entry instanceof String) {
+                // Descriptors & signatures name classes not referenced by Class entries
+                addDescriptorReferences((String) entry);
+            }
+        }
+
+        access = in.readUnsignedShort();
+        name = className(pool, in.readUnsignedShort());
+
+        final StringBuilder header = new StringBuilder("class ");
+        header.append(access & ~ACC_SUPER).append(' ').append(name);
+
+        final int superClass = in.readUnsignedShort();
+
+        if (superClass != 0) {
+            superTypes.add(className(pool, superClass));
+            header.append(" extends ").append(className(pool, superClass));
+        }
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            final String interfaceName = className(pool, in.readUnsignedShort());
+            superTypes.add(interfaceName);
+            header.append(' ').append(interfaceName);
+        }
+
+        final List<String> members = new ArrayList<String>();
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            readMember(in, pool, "field ", members);
+        }
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            readMember(in, pool, "method ", members);
+        }
+
+        boolean inApi = true;
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            final String attribute = (String) pool[in.readUnsignedShort()];
+            final int    length = in.readInt();
+
+            if (SOURCE_FILE.equals(attribute)) {
+                sourceFile = (String) pool[in.readUnsignedShort()];
+            }
+            else if (INNER_CLASSES.equals(attribute)) {
+                inApi = readInnerClasses(in, pool, header);
+            }
+            else {
+                readApiAttribute(in, pool, attribute, length, header);
+            }
+        }
+
+        if (inApi) {
+            api.add(header.toString());
+            Collections.sort(members);
+            api.addAll(members);
+        }
+
+        references.remove(name);
+    }
+
+    /**
+     * Read a field or a method, recording the compile time constants,
+     * and adding its description to the api if it is not private
+     */
+    private void readMember(DataInputStream in, Object[] pool, String kind, List<String> members)
+        throws IOException
+    {
+        final int     access = in.readUnsignedShort();
+        final String  memberName = (String) pool[in.readUnsignedShort()];
+        final String  descriptor = (String) pool[in.readUnsignedShort()];
+        final boolean inApi = (access & (ACC_PRIVATE | ACC_SYNTHETIC)) == 0 && !CLASS_INIT.equals(memberName);
+
+        final StringBuilder member = new StringBuilder(kind);
+        member.append(access).append(' ').append(memberName).append(descriptor);
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            final String attribute = (String) pool[in.readUnsignedShort()];
+            final int    length = in.readInt();
+
+            if (CONSTANT_VALUE.equals(attribute)) {
+                final String value = constantValue(pool, in.readUnsignedShort());
+                member.append(" = ").append(value);
+
+                if ((access & ACC_PRIVATE) == 0) {
+                    constants.add(memberName + "=" + value);
+                }
+            }
+            else if (inApi) {
+                readApiAttribute(in, pool, attribute, length, member);
+            }
+            else {
+                skip(in, length);
+            }
+        }
+
+        if (inApi) {
+            members.add(member.toString());
+        }
+    }
+
+    /**
+     * Read an attribute adding its description to the specified one if it is part of the api
+     * (Signatures, thrown exceptions & annotations), otherwise skip it
+     */
+    private static void readApiAttribute(DataInputStream in, Object[] pool, String attribute, int length,
+                                         StringBuilder description)
+        throws IOException
+    {
+        if (SIGNATURE.equals(attribute)) {
+            description.append(" signature ").append(pool[in.readUnsignedShort()]);
+        }
+        else if (EXCEPTIONS.equals(attribute)) {
+            description.append(" throws");
+
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                description.append(' ').append(className(pool, in.readUnsignedShort()));
+            }
+        }
+        else if (VISIBLE_ANNOTATIONS.equals(attribute) || INVISIBLE_ANNOTATIONS.equals(attribute)) {
+            readAnnotations(in, pool, description);
+        }
+        else if (VISIBLE_PARAMETER_ANNOTATIONS.equals(attribute) ||
+                     INVISIBLE_PARAMETER_ANNOTATIONS.equals(attribute)) {
+            for (int n = in.readUnsignedByte(), i = 0; i < n; i++) {
+                description.append(" param").append(i);
+                readAnnotations(in, pool, description);
+            }
+        }
+        else if (ANNOTATION_DEFAULT.equals(attribute)) {
+            description.append(" default ");
+            readElementValue(in, pool, description);
+        }
+        else {
+            skip(in, length);
+        }
+    }
+
+    /**
+     * Read the InnerClasses attribute, adding the access flags of the class when it is a nested one
+     * @return false if it is a local or anonymous class, as they are not part of the api
+     */
+    private boolean readInnerClasses(DataInputStream in, Object[] pool, StringBuilder description)
+        throws IOException
+    {
+        boolean result = true;
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            final int inner = in.readUnsignedShort();
+            final int outer = in.readUnsignedShort();
+
+            // inner name
+            in.readUnsignedShort();
+            final int access = in.readUnsignedShort();
+
+            if (inner != 0 && name.equals(className(pool, inner))) {
+                if (outer == 0 || (access & ACC_PRIVATE) != 0) {
+                    result = false;
+                }
+                else {
+                    description.append(" nested ").append(access);
+                }
+            }
+        }
+
+        return result;
+    }
+
+    private static void readAnnotations(DataInputStream in, Object[] pool, StringBuilder description)
+        throws IOException
+    {
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            description.append(' ');
+            readAnnotation(in, pool, description);
+        }
+    }
+
+    private static void readAnnotation(DataInputStream in, Object[] pool, StringBuilder description)
+        throws IOException
+    {
+        description.append('@').append(pool[in.readUnsignedShort()]).append('(');
+
+        for (int n = in.readUnsignedShort(); n > 0; n--) {
+            description.append(pool[in.readUnsignedShort()]).append('=');
+            readElementValue(in, pool, description);
+            description.append(n > 1 ? "," : "");
+        }
+
+        description.append(')');
+    }
+
+    private static void readElementValue(DataInputStream in, Object[] pool, StringBuilder description)
+        throws IOException
+    {
+        final int tag = in.readUnsignedByte();
+
+        switch (tag) {
+        case 'B':
+        case 'C':
+        case 'D':
+        case 'F':
+        case 'I':
+        case 'J':
+        case 'S':
+        case 'Z':
+        case 's':
+            description.append(constantValue(pool, in.readUnsignedShort()));
+            break;
+        case 'e':
+            description.append(pool[in.readUnsignedShort()]).append('.').append(pool[in.readUnsignedShort()]);
+            break;
+        case 'c':
+            description.append(pool[in.readUnsignedShort()]);
+            break;
+        case '@':
+            readAnnotation(in, pool, description);
+            break;
+        case '[':
+            description.append('{');
+
+            for (int n = in.readUnsignedShort(); n > 0; n--) {
+                readElementValue(in, pool, description);
+                description.append(n > 1 ? "," : "");
+            }
+
+            description.append('}');
+            break;
+        default:
+            throw new IOException("Invalid annotation element tag: " + (char) tag);
+        }
+    }
+
+    private static String constantValue(Object[] pool, int index)
+    {
+        final Object value = pool[index];
+        return value instanceof StringRef ? '"' + (String) pool[((StringRef) value).index] + '"'
+                                          : String.valueOf(value);
+    }
+
+    private void addReference(String className)
+    {
+        if (className.startsWith("[")) {
+            addDescriptorReferences(className);
+        }
+        else {
+            references.add(className);
+        }
+    }
+
+    /**
+     * Add the classes named in a descriptor or signature, like: '(Ljava/lang/String;I)Ljava/util/List;'
+     */
+    private void addDescriptorReferences(String descriptor)
+    {
+        for (int start = descriptor.indexOf('L'); start != -1;) {
+            final int end = descriptor.indexOf(';', start);
+
+            if (end == -1) {
+                break;
+            }
+
+            // Generic arguments are not part of the class name
+            final int    generic = descriptor.indexOf('<', start);
+            final int    stop = generic == -1 ? end : Math.min(generic, end);
+            final String className = descriptor.substring(start + 1, stop);
+
+            if (isClassName(className)) {
+                references.add(className);
+            }
+
+            start = descriptor.indexOf('L', stop);
+        }
+    }
+
+    private static boolean isClassName(String str)
+    {
+        if (str.length() == 0) {
+            return false;
+        }
+
+        for (int i = 0; i < str.length(); i++) {
+            final char chr = str.charAt(i);
+
+            if (chr != '/' && chr != '$' && !Character.isJavaIdentifierPart(chr)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String className(Object[] pool, int classIndex)
+        throws IOException
+    {
+        final Object entry = pool[classIndex];
+
+        if (!(entry instanceof ClassRef)) {
+            throw new IOException("Invalid class index: " + classIndex);
+        }
+
+        return (String) pool[((ClassRef) entry).index];
+    }
+
+    private static void skip(DataInputStream in, int length)
+        throws IOException
+    {
+        for (int n = length; n > 0;) {
+            final int skipped = in.skipBytes(n);
+
+            if (skipped <= 0) {
+                throw new IOException("Unexpected end of class file");
+            }
+
+            n -= skipped;
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int MAGIC = 0xCAFEBABE;
+
+    private static final int ACC_PRIVATE = 0x0002;
+    private static final int ACC_SUPER = 0x0020;
+    private static final int ACC_SYNTHETIC = 0x1000;
+    private static final int ACC_ANNOTATION = 0x2000;
+
+    private static final String CLASS_INIT = "<clinit>";
+
+    // Attributes
+    private static final String SOURCE_FILE = "SourceFile";
+    private static final String CONSTANT_VALUE = "ConstantValue";
+    private static final String INNER_CLASSES = "InnerClasses";
+    private static final String SIGNATURE = "Signature";
+    private static final String EXCEPTIONS = "Exceptions";
+    private static final String ANNOTATION_DEFAULT = "AnnotationDefault";
+    private static final String VISIBLE_ANNOTATIONS = "RuntimeVisibleAnnotations";
+    private static final String INVISIBLE_ANNOTATIONS = "RuntimeInvisibleAnnotations";
+    private static final String VISIBLE_PARAMETER_ANNOTATIONS = "RuntimeVisibleParameterAnnotations";
+    private static final String INVISIBLE_PARAMETER_ANNOTATIONS = "RuntimeInvisibleParameterAnnotations";
+
+    // Constant pool tags
+    private static final int UTF8 = 1;
+    private static final int INTEGER = 3;
+    private static final int FLOAT = 4;
+    private static final int LONG = 5;
+    private static final int DOUBLE = 6;
+    private static final int CLASS = 7;
+    private static final int STRING = 8;
+    private static final int FIELD_REF = 9;
+    private static final int METHOD_REF = 10;
+    private static final int INTERFACE_METHOD_REF = 11;
+    private static final int NAME_AND_TYPE = 12;
+    private static final int METHOD_HANDLE = 15;
+    private static final int METHOD_TYPE = 16;
+    private static final int DYNAMIC = 17;
+    private static final int INVOKE_DYNAMIC = 18;
+    private static final int MODULE = 19;
+    private static final int PACKAGE = 20;
+
+    //~ Inner Classes ........................................................................................
+
+    private static class StringRef
+    {
+        private final int index;
+
+        StringRef(int index)
+        {
+            this.index = index;
+        }
+    }
+
+    private static class ClassRef
+    {
+        private final int index;
+
+        ClassRef(int index)
+        {
+            this.index = index;
+        }
+    }
+}
@@ -21,9 +21,11 @@ package apb.utils;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
 
 import apb.Environment;
 
@@ -72,6 +74,26 @@ public class CollectionUtils
         }
     }
 
+    /**
+     * Merge a Map of Sets into another one, adding the elements of the Sets with the same key
+     * (The elements keep the order they have in the source Sets)
+     * @param target The Map to merge into
+     * @param source The Map to merge from (It is not modified)
+     */
+    public static <K, V> void mergeSets(@NotNull Map<K, Set<V>> target, @NotNull Map<K, ? extends Set<V>> source)
+    {
+        for (Map.Entry<K, ? extends Set<V>> e : source.entrySet()) {
+            final Set<V> set = target.get(e.getKey());
+
+            if (set == null) {
+                target.put(e.getKey(), new LinkedHashSet<V>(e.getValue()));
+            }
+            else {
+                set.addAll(e.getValue());
+            }
+        }
+    }
+
     public static void copyProperties(Map<String, String> m, Properties p)
     {
         for (String id : p.stringPropertyNames()) {
@@ -0,0 +1,118 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import apb.BuildException;
+
+import org.jetbrains.annotations.NotNull;
+
+import static apb.Constants.UTF8;
+
+/**
+ * Utilities to compute the (SHA-1) digests used to fingerprint files and build information
+ */
+public class DigestUtils
+{
+    //~ Constructors .........................................................................................
+
+    private DigestUtils() {}
+
+    //~ Methods ..............................................................................................
+
+    @NotNull public static MessageDigest newDigest()
+    {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        }
+        catch (NoSuchAlgorithmException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * Add a String to a digest, followed by a separator
+     * (So the digest of "a" and "bc" is different from the one of "ab" and "c")
+     */
+    public static void update(@NotNull MessageDigest md, @NotNull String str)
+    {
+        try {
+            md.update(str.getBytes(UTF8));
+            md.update((byte) 0);
+        }
+        catch (IOException e) {
+            throw new BuildException(e);
+        }
+    }
+
+    /**
+     * The hash of the content of a file, as an hexadecimal String
+     */
+    @NotNull public static String hash(@NotNull File file)
+        throws IOException
+    {
+        final MessageDigest md = newDigest();
+        final InputStream   is = new FileInputStream(file);
+
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int    n;
+
+            while ((n = is.read(buffer)) > 0) {
+                md.update(buffer, 0, n);
+            }
+        }
+        finally {
+            is.close();
+        }
+
+        return toHex(md.digest());
+    }
+
+    /**
+     * The hash of an array of bytes, as an hexadecimal String
+     */
+    @NotNull public static String hash(@NotNull byte[] bytes)
+    {
+        return toHex(newDigest().digest(bytes));
+    }
+
+    @NotNull public static String toHex(@NotNull byte[] bytes)
+    {
+        StringBuilder result = new StringBuilder(bytes.length * 2);
+
+        for (byte b : bytes) {
+            result.append(HEX_DIGITS.charAt((b >> 4) & 0xF));
+            result.append(HEX_DIGITS.charAt(b & 0xF));
+        }
+
+        return result.toString();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String ALGORITHM = "SHA-1";
+    private static final String HEX_DIGITS = "0123456789abcdef";
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+}
@@ -20,12 +20,21 @@ package apb.utils;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import apb.BuildException;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 //
 // User: emilio
 // Date: Oct 1, 2008
@@ -36,15 +45,15 @@ public class DirectoryScanner
 {
     //~ Instance fields ......................................................................................
 
-    private final boolean caseSensitive = true;
-
-    private boolean       everythingIncluded;
-    private final boolean followSymlinks;
+    private volatile boolean everythingIncluded;
+    private final boolean    followSymlinks;
+    private boolean          parallel = true;
 
     private final File         baseDir;
-    private final List<String> excludes;
+    private final PathPatterns excludes;
     private List<String>       filesIncluded;
-    private final List<String> includes;
+    private final PathPatterns includes;
+    @Nullable private TreeSnapshot snapshot;
 
     //~ Constructors .........................................................................................
 
@@ -56,11 +65,20 @@ public class DirectoryScanner
 
     public DirectoryScanner(@NotNull File baseDir, @NotNull Collection<String> includes,
                             @NotNull Collection<String> excludes, boolean followSymlinks)
+    {
+        this(baseDir, new PathPatterns(includes), new PathPatterns(excludes), followSymlinks);
+    }
+
+    /**
+     * Create a scanner with already compiled patterns
+     * (The default excludes are always excluded too)
+     */
+    public DirectoryScanner(@NotNull File baseDir, @NotNull PathPatterns includes,
+                            @NotNull PathPatterns excludes, boolean followSymlinks)
     {
         this.baseDir = baseDir;
-        this.includes = StringUtils.normalizePaths(includes);
-        this.excludes = StringUtils.normalizePaths(excludes);
-        this.excludes.addAll(StringUtils.normalizePaths(apb.Constants.DEFAULT_EXCLUDES));
+        this.includes = includes;
+        this.excludes = excludes;
         this.followSymlinks = followSymlinks;
 
         if (baseDir.isFile()) {
@@ -75,12 +93,50 @@ public class DirectoryScanner
         return everythingIncluded;
     }
 
+    /**
+     * Whether big trees can be scanned using many threads (The default)
+     * The scan starts in the calling thread, and the directories still pending after scanning
+     * a number of them are scanned in parallel. The result is the same one of a sequential scan.
+     */
+    public DirectoryScanner parallel(boolean b)
+    {
+        parallel = b;
+        return this;
+    }
+
+    /**
+     * Use a snapshot of the tree to avoid listing again the directories that did not change.
+     * The snapshot is updated (and persisted) after each scan.
+     * @param s The snapshot of the tree starting at the base directory, or null to list every directory
+     */
+    public DirectoryScanner withSnapshot(@Nullable TreeSnapshot s)
+    {
+        snapshot = s;
+        return this;
+    }
+
     public List<String> scan()
     {
+        final Directory             root = new Directory(baseDir, "");
+        final LinkedList<Directory> pending = new LinkedList<Directory>();
+        pending.add(root);
+
+        int scanned = 0;
+
+        while (!pending.isEmpty() && (!parallel || scanned < PARALLEL_THRESHOLD)) {
+            pending.addAll(pending.removeLast().call());
+            scanned++;
+        }
+
+        if (!pending.isEmpty()) {
+            scanInParallel(pending, Math.max(Runtime.getRuntime().availableProcessors(), MIN_THREADS));
+        }
+
         filesIncluded = new ArrayList<String>();
+        root.addFiles(filesIncluded);
 
-        if (baseDir.exists()) {
-            scandir(baseDir, "");
+        if (snapshot != null) {
+            snapshot.save();
         }
 
         return filesIncluded;
@@ -93,91 +149,174 @@ public class DirectoryScanner
 
     boolean couldHoldIncluded(String name)
     {
-        if (includes.isEmpty()) {
-            return true;
-        }
+        return includes.isEmpty() || includes.matchesStart(name);
+    }
 
-        for (String include : includes) {
-            if (StringUtils.matchPatternStart(include, name, caseSensitive)) {
-                return true;
-            }
-        }
+    boolean isIncluded(String name)
+    {
+        return includes.isEmpty() || includes.matches(name);
+    }
 
-        return false;
+    boolean isExcluded(String name)
+    {
+        return excludes.matches(name) || DEFAULT_EXCLUDES.matches(name);
     }
 
-    boolean isIncluded(String name)
+    /**
+     * Scan the tree starting with the directories in 'pending' using a pool of threads
+     */
+    private static void scanInParallel(LinkedList<Directory> pending, int threads)
     {
-        if (includes.isEmpty()) {
-            return true;
-        }
+        final ExecutorService                   executor = Executors.newFixedThreadPool(threads);
+        final CompletionService<List<Directory>> completion =
+            new ExecutorCompletionService<List<Directory>>(executor);
+
+        try {
+            int running = 0;
 
-        for (String include : includes) {
-            if (StringUtils.matchPath(include, name, caseSensitive)) {
-                return true;
+            for (Directory dir : pending) {
+                completion.submit(dir);
+                running++;
             }
-        }
 
-        return false;
-    }
+            while (running > 0) {
+                for (Directory dir : completion.take().get()) {
+                    completion.submit(dir);
+                    running++;
+                }
 
-    boolean isExcluded(String name)
-    {
-        for (String include : excludes) {
-            if (StringUtils.matchPath(include, name, caseSensitive)) {
-                return true;
+                running--;
             }
         }
-
-        return false;
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            throw cause instanceof RuntimeException ? (RuntimeException) cause : new BuildException(cause);
+        }
+        finally {
+            executor.shutdownNow();
+        }
     }
 
-    private static List<String> filterSymbolicLinks(File dir, String relativePath, final List<String> files)
+    //~ Static fields/initializers ...........................................................................
+
+    private static final PathPatterns DEFAULT_EXCLUDES = new PathPatterns(apb.Constants.DEFAULT_EXCLUDES);
+
+    /**
+     * The number of directories scanned in the calling thread before scanning the rest in parallel
+     */
+    private static final int PARALLEL_THRESHOLD = 64;
+
+    /**
+     * The minimum number of threads for a parallel scan
+     * (Scanning is bound by the latency of the file system more than by the processors)
+     */
+    private static final int MIN_THREADS = 4;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * A directory to scan.
+     * Scanning it returns the subdirectories to scan, that are kept in its entries in the same position
+     * they were found, so the files are collected in the same order whatever the order the directories
+     * are scanned in.
+     */
+    private class Directory
+        implements Callable<List<Directory>>
     {
-        List<String> result = new ArrayList<String>();
+        @NotNull private final File   dir;
+        @NotNull private final String relativePath;
+
+        /**
+         * The included files (As String) and the subdirectories (As Directory) in the order they were found
+         */
+        @NotNull private final List<Object> entries;
+
+        Directory(@NotNull File dir, @NotNull String relativePath)
+        {
+            this.dir = dir;
+            this.relativePath = relativePath;
+            entries = new ArrayList<Object>();
+        }
 
-        for (String file : files) {
-            if (!FileUtils.isSymbolicLink(new File(dir, relativePath + file))) {
-                result.add(file);
+        /**
+         * Scan the directory.
+         * Each entry is checked with at most one access to the file system (Besides listing the directories):
+         * Included entries are checked with {@link File#isFile()}, and anything else is just listed,
+         * as listing something that is not a directory fails.
+         * With a snapshot, the entries of a directory that did not change are not checked at all.
+         * (The symbolic links are also checked when they must not be followed)
+         * @return The subdirectories to scan
+         */
+        public List<Directory> call()
+        {
+            final TreeSnapshot.Listing listing = snapshot == null ? null : snapshot.list(dir, relativePath);
+            final String[]             names = listing == null ? dir.list() : listing.getNames();
+
+            if (names == null) {
+                return Collections.emptyList();
             }
-        }
 
-        return result;
-    }
+            final String canonicalDir = followSymlinks ? null : FileUtils.canonicalPath(dir);
 
-    private static List<String> listFiles(File dir)
-    {
-        final String[] fs = dir.list();
-        return fs == null ? Collections.<String>emptyList() : Arrays.asList(fs);
-    }
+            if (!followSymlinks && canonicalDir == null) {
+                return Collections.emptyList();
+            }
 
-    private void scandir(File dir, String relativePath)
-    {
-        List<String> files = listFiles(dir);
+            final List<Directory> result = new ArrayList<Directory>();
 
-        if (!followSymlinks) {
-            files = filterSymbolicLinks(dir, relativePath, files);
-        }
+            for (int i = 0; i < names.length; i++) {
+                final String nm = names[i];
+                final File   file = new File(dir, nm);
+
+                if (canonicalDir != null && FileUtils.isSymbolicLink(canonicalDir, file)) {
+                    continue;
+                }
 
-        for (String nm : files) {
-            String fileName = relativePath + nm;
-            File   file = new File(baseDir, fileName);
+                final String fileName = relativePath + nm;
 
-            if (isIncluded(fileName) && !isExcluded(fileName)) {
-                if (file.isDirectory()) {
-                    scandir(file, fileName + File.separator);
+                if (isIncluded(fileName) && !isExcluded(fileName)) {
+                    if (listing == null ? file.isFile() : listing.isFile(i)) {
+                        entries.add(fileName);
+                    }
+                    else {
+                        result.add(subdirectory(file, fileName));
+                    }
                 }
-                else if (file.isFile()) {
-                    filesIncluded.add(fileName);
+                else {
+                    everythingIncluded = false;
+
+                    if ((listing == null || !listing.isFile(i)) && couldHoldIncluded(fileName)) {
+                        result.add(subdirectory(file, fileName));
+                    }
                 }
             }
-            else {
-                everythingIncluded = false;
 
-                if (file.isDirectory() && couldHoldIncluded(fileName)) {
-                    scandir(file, fileName + File.separator);
+            return result;
+        }
+
+        /**
+         * Add the files found in this directory and its subdirectories
+         */
+        void addFiles(@NotNull List<String> files)
+        {
+            for (Object entry : entries) {
+                if (entry instanceof Directory) {
+                    ((Directory) entry).addFiles(files);
+                }
+                else {
+                    files.add((String) entry);
                 }
             }
         }
+
+        private Directory subdirectory(File file, String fileName)
+        {
+            final Directory result = new Directory(file, fileName + File.separator);
+            entries.add(result);
+            return result;
+        }
     }
 }
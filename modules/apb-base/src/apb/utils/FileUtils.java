@@ -34,6 +34,8 @@ import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintStream;
 import java.io.PrintWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.channels.FileChannel;
@@ -58,6 +60,7 @@ import apb.Os;
 import apb.tasks.FileSet;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import static apb.Constants.*;
 
@@ -336,6 +339,10 @@ public class FileUtils
         return lastDot == -1 ? nm : nm.substring(0, lastDot);
     }
 
+    /**
+     * Copy a file applying filters to its lines.
+     * Unless appending, the target is removed first (See {@link #copyFile(File, File, boolean)})
+     */
     public static void copyFileFiltering(@NotNull File from, @NotNull File to, boolean append,
                                          @NotNull String encoding, @NotNull List<Filter> filters,
                                          List<String> linesToInsert, List<String> linesToAppend)
@@ -346,6 +353,11 @@ public class FileUtils
 
         try {
             reader = new BufferedReader(new InputStreamReader(new FileInputStream(from), encoding));
+
+            if (!append) {
+                to.delete();
+            }
+
             writer = new PrintWriter(new OutputStreamWriter(createOutputStream(to, append), encoding));
 
             for (String s : linesToInsert) {
@@ -372,6 +384,11 @@ public class FileUtils
         }
     }
 
+    /**
+     * Copy a file.
+     * Unless appending, the target is removed first instead of being overwritten,
+     * so if it is a (Hard) link to another file, that file is not modified.
+     */
     public static void copyFile(@NotNull File from, @NotNull File to, boolean append)
         throws IOException
     {
@@ -379,10 +396,14 @@ public class FileUtils
         FileOutputStream out = null;
 
         try {
-            out = createOutputStream(to, append);
-
             in = new FileInputStream(from);
 
+            if (!append) {
+                to.delete();
+            }
+
+            out = createOutputStream(to, append);
+
             FileChannel readChannel = in.getChannel();
             FileChannel writeChannel = out.getChannel();
 
@@ -402,6 +423,84 @@ public class FileUtils
         }
     }
 
+    /**
+     * Create a hard link to a file, replacing the target if it exists.
+     * Links are created with java.nio.file, when running in a java version that has it.
+     * @param from The file to link
+     * @param to The link to create (The intermediate directories are created if necessary)
+     * @return true if the link was created, false if it cannot be created
+     * (Not supported by the java version or the file system, or the files are in different file systems)
+     */
+    public static boolean createLink(@NotNull File from, @NotNull File to)
+    {
+        if (TO_PATH == null || CREATE_LINK == null) {
+            return false;
+        }
+
+        to.getParentFile().mkdirs();
+
+        if (to.exists() && !to.delete()) {
+            return false;
+        }
+
+        try {
+            CREATE_LINK.invoke(null, TO_PATH.invoke(to), TO_PATH.invoke(from));
+            return true;
+        }
+        catch (InvocationTargetException e) {
+            return false;
+        }
+        catch (IllegalAccessException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Clone files into a directory using copy-on-write ('cp --reflink=always'),
+     * so their content is not copied until the originals or the clones are modified.
+     * @param files The files to clone
+     * @param dir The target directory, the clones have the same names than the files
+     * (It is created if necessary)
+     * @return true if every file was cloned, false if the command is not available or
+     * the file system does not support it
+     */
+    public static boolean reflink(@NotNull Collection<File> files, @NotNull File dir)
+    {
+        final List<String> command = new ArrayList<String>();
+        command.addAll(REFLINK_COMMAND);
+
+        for (File file : files) {
+            command.add(file.getPath());
+        }
+
+        command.add(dir.getPath() + File.separator);
+        dir.mkdirs();
+
+        try {
+            final Process     process = new ProcessBuilder(command).redirectErrorStream(true).start();
+            final InputStream output = process.getInputStream();
+
+            try {
+                final byte[] buffer = new byte[1024];
+
+                while (output.read(buffer) > 0) {
+                    // Discard the output
+                }
+            }
+            finally {
+                close(output);
+            }
+
+            return process.waitFor() == 0;
+        }
+        catch (IOException e) {
+            return false;
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+    }
+
     /**
      * Create a FileOutputStream, creates the intermediate directories if necessary
      * @param file The file to open
@@ -479,6 +578,34 @@ public class FileUtils
         }
     }
 
+    /**
+     * Read the complete content of a file
+     */
+    @NotNull public static byte[] readBytes(@NotNull File file)
+        throws IOException
+    {
+        final FileInputStream is = new FileInputStream(file);
+
+        try {
+            final byte[] result = new byte[(int) file.length()];
+            int          offset = 0;
+            int          n;
+
+            while (offset < result.length && (n = is.read(result, offset, result.length - offset)) > 0) {
+                offset += n;
+            }
+
+            if (offset < result.length) {
+                throw new IOException("Unexpected end of file: " + file);
+            }
+
+            return result;
+        }
+        finally {
+            is.close();
+        }
+    }
+
     public static void validateDirectory(File dir)
     {
         String msg = validateDir(dir);
@@ -628,6 +755,22 @@ public class FileUtils
         return result;
     }
 
+    /**
+     * Return the total length of a set of files
+     * @param files The files to be analyzed
+     * @return The sum of the length of the files (in bytes)
+     */
+    public static long totalLength(Iterable<File> files)
+    {
+        long result = 0;
+
+        for (File file : files) {
+            result += file.length();
+        }
+
+        return result;
+    }
+
     /**
      * Returns true if any of the files is newer than <code>targetTime</code>
      * @param files to iterate
@@ -841,16 +984,35 @@ public class FileUtils
         return result;
     }
 
-    static boolean isSymbolicLink(File file)
+    /**
+     * Check if a file is a symbolic link
+     * @param canonicalDir The canonical path of the directory of the file
+     * (So links in the path of the directory are not taken into account)
+     * @param file The file to check
+     */
+    static boolean isSymbolicLink(@NotNull String canonicalDir, @NotNull File file)
     {
         try {
-            return !file.getAbsolutePath().equals(file.getCanonicalPath());
+            return !new File(canonicalDir, file.getName()).getPath().equals(file.getCanonicalPath());
         }
         catch (IOException e) {
             return true;
         }
     }
 
+    /**
+     * The canonical path of a file, or null if it cannot be obtained
+     */
+    @Nullable static String canonicalPath(@NotNull File file)
+    {
+        try {
+            return file.getCanonicalPath();
+        }
+        catch (IOException e) {
+            return null;
+        }
+    }
+
     private static Set<File> unique(Collection<File> files)
     {
         return new LinkedHashSet<File>(files);
@@ -916,6 +1078,30 @@ public class FileUtils
             });
     }
 
+    /**
+     * Get a method of a class that may not be available in the java version being used
+     * @return The method or null if it is not available
+     */
+    @Nullable private static Method optionalMethod(@NotNull String className, @NotNull String methodName,
+                                                   @NotNull String... parameterTypes)
+    {
+        try {
+            final Class<?>[] types = new Class<?>[parameterTypes.length];
+
+            for (int i = 0; i < types.length; i++) {
+                types[i] = Class.forName(parameterTypes[i]);
+            }
+
+            return Class.forName(className).getMethod(methodName, types);
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
     //~ Static fields/initializers ...........................................................................
 
     public static final Comparator<File> FILE_COMPARATOR =
@@ -932,6 +1118,15 @@ public class FileUtils
             }
         };
 
+    /**
+     * The methods used to create hard links (null if the java version does not have them)
+     */
+    @Nullable private static final Method TO_PATH = optionalMethod("java.io.File", "toPath");
+    @Nullable private static final Method CREATE_LINK =
+        optionalMethod("java.nio.file.Files", "createLink", "java.nio.file.Path", "java.nio.file.Path");
+
+    private static final List<String> REFLINK_COMMAND = Arrays.asList("cp", "-f", "--reflink=always", "--");
+
     public static final String JAVA_HOME = System.getenv("JAVA_HOME");
     public static final String java_home = System.getProperty("java.home");
 }
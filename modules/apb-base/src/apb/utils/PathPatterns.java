@@ -0,0 +1,319 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * A set of Ant style path patterns ('*' and '?' match characters inside a path element,
+ * and '**' matches any number of elements), compiled once to match many paths against them.
+ * It is equivalent to {@link StringUtils#matchPath} and {@link StringUtils#matchPatternStart}, but
+ * neither the patterns nor the paths are tokenized: each pattern is matched in a single pass over the path,
+ * keeping the elements of the pattern that can match at each point as the bits of a long.
+ * (As no state is kept between calls, a PathPatterns can be shared by many threads)
+ */
+public class PathPatterns
+{
+    //~ Instance fields ......................................................................................
+
+    private final boolean             caseSensitive;
+    @NotNull private final Pattern[] patterns;
+
+    //~ Constructors .........................................................................................
+
+    /**
+     * Compile a set of (Case sensitive) patterns
+     * @param patterns The patterns, they are normalized with {@link StringUtils#normalizePath}
+     */
+    public PathPatterns(@NotNull Collection<String> patterns)
+    {
+        this(patterns, true);
+    }
+
+    /**
+     * Compile a set of patterns
+     * @param patterns The patterns, they are normalized with {@link StringUtils#normalizePath}
+     * @param caseSensitive Whether the matching must be case sensitive
+     */
+    public PathPatterns(@NotNull Collection<String> patterns, boolean caseSensitive)
+    {
+        this.caseSensitive = caseSensitive;
+        this.patterns = new Pattern[patterns.size()];
+
+        int i = 0;
+
+        for (String pattern : patterns) {
+            this.patterns[i++] = new Pattern(StringUtils.normalizePath(pattern));
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    public boolean isEmpty()
+    {
+        return patterns.length == 0;
+    }
+
+    /**
+     * Check if a path matches any of the patterns
+     * @param path The path, with elements separated by {@link File#separatorChar}
+     */
+    public boolean matches(@NotNull String path)
+    {
+        for (Pattern pattern : patterns) {
+            if (pattern.matches(path, caseSensitive)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Check if a path can be the start of a path that matches any of the patterns.
+     * (So a directory must be scanned to look for matching files)
+     * @param path The path, with elements separated by {@link File#separatorChar}
+     */
+    public boolean matchesStart(@NotNull String path)
+    {
+        for (Pattern pattern : patterns) {
+            if (pattern.matchesStart(path, caseSensitive)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override public String toString()
+    {
+        StringBuilder result = new StringBuilder();
+
+        for (Pattern pattern : patterns) {
+            if (result.length() != 0) {
+                result.append(',');
+            }
+
+            result.append(pattern.source);
+        }
+
+        return result.toString();
+    }
+
+    /**
+     * Match an element of the path (From 'from' to 'to') against an element of a pattern
+     * Backtracks to the last '*' when a character does not match, so it does not allocate anything.
+     */
+    private static boolean matchElement(@NotNull String pattern, @NotNull String path, int from, int to,
+                                        boolean caseSensitive)
+    {
+        final int length = pattern.length();
+        int       p = 0;
+        int       s = from;
+        int       star = -1;
+        int       mark = from;
+
+        while (s < to) {
+            if (p < length) {
+                final char chr = pattern.charAt(p);
+
+                if (chr == '*') {
+                    star = p++;
+                    mark = s;
+                    continue;
+                }
+
+                if (StringUtils.matchChar(chr, path.charAt(s), caseSensitive)) {
+                    p++;
+                    s++;
+                    continue;
+                }
+            }
+
+            if (star == -1) {
+                return false;
+            }
+
+            p = star + 1;
+            s = ++mark;
+        }
+
+        while (p < length && pattern.charAt(p) == '*') {
+            p++;
+        }
+
+        return p == length;
+    }
+
+    /**
+     * The start of the next element of a path (Skipping separators, as empty elements are ignored)
+     */
+    private static int nextElement(@NotNull String path, int pos)
+    {
+        final int length = path.length();
+
+        while (pos < length && path.charAt(pos) == File.separatorChar) {
+            pos++;
+        }
+
+        return pos;
+    }
+
+    /**
+     * The end of the element of a path starting at 'pos'
+     */
+    private static int endOfElement(@NotNull String path, int pos)
+    {
+        final int end = path.indexOf(File.separatorChar, pos);
+        return end == -1 ? path.length() : end;
+    }
+
+    private static boolean isAbsolute(@NotNull String path)
+    {
+        return path.length() > 0 && path.charAt(0) == File.separatorChar;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String MATCH_ANYTHING = "**";
+
+    /**
+     * The maximum number of elements in a pattern to match it with the bits of a long.
+     * (Longer patterns are matched with {@link StringUtils#matchPath})
+     */
+    private static final int MAX_ELEMENTS = 62;
+
+    //~ Inner Classes ........................................................................................
+
+    private static class Pattern
+    {
+        /**
+         * The elements matching anything ('**') as bits
+         */
+        private final long anything;
+
+        private final boolean           absolute;
+        @NotNull private final String   source;
+        @NotNull private final String[] elements;
+
+        Pattern(@NotNull String source)
+        {
+            this.source = source;
+            absolute = isAbsolute(source);
+
+            final List<String> tokens = StringUtils.tokenize(source, File.separator);
+            elements = tokens.toArray(new String[tokens.size()]);
+
+            long bits = 0;
+
+            for (int i = 0; i < elements.length && i < MAX_ELEMENTS; i++) {
+                if (MATCH_ANYTHING.equals(elements[i])) {
+                    bits |= 1L << i;
+                }
+            }
+
+            anything = bits;
+        }
+
+        boolean matches(@NotNull String path, boolean caseSensitive)
+        {
+            if (absolute != isAbsolute(path)) {
+                return false;
+            }
+
+            if (elements.length > MAX_ELEMENTS) {
+                return StringUtils.matchPath(source, path, caseSensitive);
+            }
+
+            // Bit i is set when the first i elements of the pattern match the path read so far
+            long states = skipAnything(1L);
+            int  pos = nextElement(path, 0);
+
+            while (states != 0 && pos < path.length()) {
+                final int end = endOfElement(path, pos);
+                long      next = 0;
+
+                for (long s = states; s != 0; s &= s - 1) {
+                    final int i = Long.numberOfTrailingZeros(s);
+
+                    if (i == elements.length) {
+                        continue;
+                    }
+
+                    if ((anything & (1L << i)) != 0) {
+                        next |= 1L << i;
+                    }
+                    else if (matchElement(elements[i], path, pos, end, caseSensitive)) {
+                        next |= 1L << (i + 1);
+                    }
+                }
+
+                states = skipAnything(next);
+                pos = nextElement(path, end);
+            }
+
+            return (states & (1L << elements.length)) != 0;
+        }
+
+        boolean matchesStart(@NotNull String path, boolean caseSensitive)
+        {
+            if (absolute != isAbsolute(path)) {
+                return false;
+            }
+
+            int i = 0;
+
+            for (int pos = nextElement(path, 0); pos < path.length(); i++) {
+                if (i == elements.length) {
+                    return false;
+                }
+
+                if (MATCH_ANYTHING.equals(elements[i])) {
+                    return true;
+                }
+
+                final int end = endOfElement(path, pos);
+
+                if (!matchElement(elements[i], path, pos, end, caseSensitive)) {
+                    return false;
+                }
+
+                pos = nextElement(path, end);
+            }
+
+            return true;
+        }
+
+        /**
+         * Add the states reached skipping '**' elements (As they can match no elements at all)
+         */
+        private long skipAnything(long states)
+        {
+            for (int i = 0; i < elements.length; i++) {
+                if ((states & anything & (1L << i)) != 0) {
+                    states |= 1L << (i + 1);
+                }
+            }
+
+            return states;
+        }
+    }
+}
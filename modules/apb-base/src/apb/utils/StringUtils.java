@@ -410,7 +410,7 @@ public class StringUtils
         return true;
     }
 
-    private static boolean matchChar(char patternChar, char chr, boolean caseSensitive)
+    static boolean matchChar(char patternChar, char chr, boolean caseSensitive)
     {
         return patternChar == '?' ||
                (patternChar == chr ||
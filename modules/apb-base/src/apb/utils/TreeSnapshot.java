@@ -0,0 +1,315 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.utils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import apb.BuildException;
+import apb.Environment;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import static apb.utils.StringUtils.isEmpty;
+
+/**
+ * A snapshot of a directory tree, used by {@link DirectoryScanner} to avoid listing again the
+ * directories that did not change since the last scan.
+ * For each directory it keeps its modification time and its entries, marking the ones that are files.
+ * As the modification time of a directory changes when entries are added, removed or renamed,
+ * a directory with the same modification time is not listed again, and its entries are not checked.
+ * (Every directory scanned is still checked, as changes inside a subdirectory do not modify its parents)
+ * The snapshot of each tree is shared by all the scans in the same process,
+ * and persisted in a file under the module 'output-base'.
+ */
+public class TreeSnapshot
+{
+    //~ Instance fields ......................................................................................
+
+    private volatile boolean modified;
+
+    /**
+     * The listings of the directories, by path relative to the root (Ending in a separator)
+     */
+    @NotNull private final ConcurrentNavigableMap<String, Listing> directories;
+
+    /**
+     * The root of the tree
+     */
+    @NotNull private final String root;
+
+    /**
+     * The file where the snapshot is persisted
+     */
+    @NotNull private final File storeFile;
+
+    //~ Constructors .........................................................................................
+
+    private TreeSnapshot(@NotNull File root, @NotNull File storeFile)
+    {
+        this.root = root.getPath();
+        this.storeFile = storeFile;
+        directories = new ConcurrentSkipListMap<String, Listing>();
+
+        if (storeFile.exists()) {
+            load();
+        }
+    }
+
+    //~ Methods ..............................................................................................
+
+    /**
+     * Get the snapshot of a directory tree for the module of the specified Environment.
+     * @return The snapshot, or null if there is no current module
+     */
+    @Nullable public static TreeSnapshot forEnvironment(@NotNull Environment env, @NotNull File root)
+    {
+        final String outputBase = env.getProperty(OUTPUT_BASE_PROPERTY, "");
+        return isEmpty(outputBase) ? null
+                                   : forDirectory(root, new File(env.fileFromBase(outputBase), STORE_DIR));
+    }
+
+    /**
+     * Get the snapshot of a directory tree
+     * @param root The root of the tree
+     * @param storeDir The directory where the snapshot is persisted
+     */
+    @NotNull public static TreeSnapshot forDirectory(@NotNull File root, @NotNull File storeDir)
+    {
+        final File storeFile =
+            new File(storeDir, STORE_PREFIX + Integer.toHexString(root.getPath().hashCode()) + STORE_EXT);
+
+        synchronized (snapshots) {
+            TreeSnapshot result = snapshots.get(storeFile);
+
+            if (result == null || !result.root.equals(root.getPath())) {
+                result = new TreeSnapshot(root, storeFile);
+                snapshots.put(storeFile, result);
+            }
+
+            return result;
+        }
+    }
+
+    /**
+     * Persist the snapshot if it was modified
+     */
+    public synchronized void save()
+    {
+        if (modified) {
+            modified = false;
+
+            final File tmp = new File(storeFile.getPath() + ".tmp");
+
+            try {
+                DataOutputStream out =
+                    new DataOutputStream(new BufferedOutputStream(FileUtils.createOutputStream(tmp)));
+
+                try {
+                    out.writeInt(VERSION);
+                    out.writeUTF(root);
+
+                    final Map<String, Listing> listings = new HashMap<String, Listing>(directories);
+                    out.writeInt(listings.size());
+
+                    for (Map.Entry<String, Listing> entry : listings.entrySet()) {
+                        final Listing listing = entry.getValue();
+                        out.writeUTF(entry.getKey());
+                        out.writeLong(listing.lastModified);
+                        out.writeInt(listing.names.length);
+
+                        for (int i = 0; i < listing.names.length; i++) {
+                            out.writeUTF(listing.names[i]);
+                            out.writeBoolean(listing.files[i]);
+                        }
+                    }
+                }
+                finally {
+                    out.close();
+                }
+
+                if (!tmp.renameTo(storeFile) && (!storeFile.delete() || !tmp.renameTo(storeFile))) {
+                    throw new IOException("Cannot rename: " + tmp);
+                }
+            }
+            catch (IOException e) {
+                modified = true;
+                throw new BuildException("Cannot write snapshot: " + storeFile + ". Cause: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Get the listing of a directory of the tree.
+     * It is only listed again if its modification time changed.
+     * @param dir The directory
+     * @param relativePath The path of the directory relative to the root (Ending in a separator)
+     * @return The listing, or null if the directory cannot be listed
+     */
+    @Nullable Listing list(@NotNull File dir, @NotNull String relativePath)
+    {
+        final long    lastModified = dir.lastModified();
+        final Listing previous = directories.get(relativePath);
+
+        if (previous != null && previous.lastModified == lastModified) {
+            return previous;
+        }
+
+        // Get the time before listing it, so a concurrent modification is detected next time
+        final long     now = System.currentTimeMillis();
+        final String[] names = dir.list();
+        final Listing  listing = names == null ? null : new Listing(dir, lastModified, names);
+
+        if (previous != null) {
+            forgetRemoved(relativePath, previous, listing);
+        }
+
+        // A modification in the same tick than the listing would not be detected
+        if (listing != null && lastModified != 0 && lastModified + TIMESTAMP_RESOLUTION < now) {
+            directories.put(relativePath, listing);
+            modified = true;
+        }
+        else if (directories.remove(relativePath) != null) {
+            modified = true;
+        }
+
+        return listing;
+    }
+
+    /**
+     * Forget about the subdirectories that are not longer in a directory (And about everything inside them)
+     */
+    private void forgetRemoved(@NotNull String relativePath, @NotNull Listing previous, @Nullable Listing current)
+    {
+        final Set<String> names = new HashSet<String>();
+
+        if (current != null) {
+            names.addAll(Arrays.asList(current.names));
+        }
+
+        for (int i = 0; i < previous.names.length; i++) {
+            if (!previous.files[i] && !names.contains(previous.names[i])) {
+                final String prefix = relativePath + previous.names[i] + File.separator;
+                directories.subMap(prefix, prefix + Character.MAX_VALUE).clear();
+                modified = true;
+            }
+        }
+    }
+
+    private void load()
+    {
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(storeFile)));
+
+            try {
+                if (in.readInt() == VERSION && in.readUTF().equals(root)) {
+                    for (int n = in.readInt(); n > 0; n--) {
+                        final String    path = in.readUTF();
+                        final long      lastModified = in.readLong();
+                        final String[]  names = new String[in.readInt()];
+                        final boolean[] files = new boolean[names.length];
+
+                        for (int i = 0; i < names.length; i++) {
+                            names[i] = in.readUTF();
+                            files[i] = in.readBoolean();
+                        }
+
+                        directories.put(path, new Listing(lastModified, names, files));
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+        }
+        catch (IOException ignore) {
+            // A corrupted snapshot is just discarded
+            directories.clear();
+        }
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The snapshots loaded in this process, by the file they are persisted in
+     */
+    private static final Map<File, TreeSnapshot> snapshots = new HashMap<File, TreeSnapshot>();
+
+    private static final String OUTPUT_BASE_PROPERTY = "output-base";
+    private static final String STORE_DIR = "snapshots";
+    private static final String STORE_PREFIX = "tree-";
+    private static final String STORE_EXT = ".dat";
+
+    private static final int VERSION = 1;
+
+    /**
+     * The time (In milliseconds) a directory must have been unmodified to trust its modification time
+     * (Some file systems only keep it in seconds, or in intervals of two seconds)
+     */
+    private static final long TIMESTAMP_RESOLUTION = 2000;
+
+    //~ Inner Classes ........................................................................................
+
+    /**
+     * The entries of a directory, and whether each one of them is a file
+     */
+    static class Listing
+    {
+        private final long               lastModified;
+        @NotNull private final boolean[] files;
+        @NotNull private final String[]  names;
+
+        Listing(long lastModified, @NotNull String[] names, @NotNull boolean[] files)
+        {
+            this.lastModified = lastModified;
+            this.names = names;
+            this.files = files;
+        }
+
+        Listing(@NotNull File dir, long lastModified, @NotNull String[] names)
+        {
+            this(lastModified, names, new boolean[names.length]);
+
+            for (int i = 0; i < names.length; i++) {
+                files[i] = new File(dir, names[i]).isFile();
+            }
+        }
+
+        @NotNull String[] getNames()
+        {
+            return names;
+        }
+
+        boolean isFile(int i)
+        {
+            return files[i];
+        }
+    }
+}
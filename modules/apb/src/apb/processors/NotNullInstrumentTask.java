@@ -19,90 +19,122 @@
 package apb.processors;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import apb.BuildException;
 
 import apb.tasks.Task;
 
-import apb.utils.CollectionUtils;
+import apb.utils.FileUtils;
 
 import org.jetbrains.annotations.NotNull;
 
-import org.objectweb.asm.ClassReader;
-
-import static apb.utils.CollectionUtils.stringToList;
-
+/**
+ * Add the assertions for the @NotNull annotations to class files already written.
+ * Classes are normally instrumented in memory while they are compiled (See {@link NotNullInstrumenter}),
+ * this task is the fallback for large modules, where the class files are instrumented in parallel
+ * after the compilation.
+ */
 public class NotNullInstrumentTask
     extends Task
 {
-    //~ Methods ..............................................................................................
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final List<File>          classFiles;
+    @NotNull private final NotNullInstrumenter instrumenter;
+
+    //~ Constructors .........................................................................................
 
-    @NotNull public static String getClassesProperty()
+    public NotNullInstrumentTask(@NotNull List<File> classFiles)
     {
-        return CLASSES_PROPERTY + ":" + Thread.currentThread().getId();
+        this.classFiles = classFiles;
+        instrumenter = new NotNullInstrumenter(env);
     }
 
-    public static void setClassesToProcess(Iterable<String> fileNames)
+    //~ Methods ..............................................................................................
+
+    public void execute()
     {
-        if (fileNames != null) {
-            System.setProperty(getClassesProperty(), CollectionUtils.listToString(fileNames));
+        final int threads =
+            Math.min(Runtime.getRuntime().availableProcessors(), classFiles.size() / MIN_FILES_PER_THREAD);
+
+        if (threads <= 1) {
+            for (File classFile : classFiles) {
+                instrumentClass(classFile);
+            }
+        }
+        else {
+            instrumentInParallel(threads);
         }
     }
 
-    public void execute()
+    private void instrumentInParallel(int threads)
     {
-        final String classesProperty = getClassesProperty();
-        final String classes = System.getProperty(classesProperty);
-        System.setProperty(classesProperty, "");
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+
+        try {
+            final List<Future<Object>> results = new ArrayList<Future<Object>>();
+
+            for (final File classFile : classFiles) {
+                results.add(executor.submit(new Callable<Object>() {
+                            public Object call()
+                            {
+                                instrumentClass(classFile);
+                                return null;
+                            }
+                        }));
+            }
 
-        for (final String classPath : stringToList(classes)) {
-            instrumentClass(classPath);
+            for (Future<Object> result : results) {
+                result.get();
+            }
+        }
+        catch (InterruptedException e) {
+            throw new BuildException(e);
+        }
+        catch (ExecutionException e) {
+            throw new BuildException(e.getCause());
+        }
+        finally {
+            executor.shutdown();
         }
     }
 
-    private void instrumentClass(@NotNull final String classPath)
+    private void instrumentClass(@NotNull File classFile)
     {
-        final File classFile = new File(classPath);
+        try {
+            final byte[] bytes = FileUtils.readBytes(classFile);
+            final String className = classFile.getName();
+            final byte[] instrumented =
+                instrumenter.transform(className.substring(0, className.length() - CLASS_EXT.length()), bytes);
 
-        if (classFile.getName().endsWith(".class")) {
-            try {
-                final InputStream fis = new FileInputStream(classFile);
+            if (instrumented != null) {
+                final OutputStream os = FileUtils.createOutputStream(classFile);
 
                 try {
-                    final ClassReader reader = new ClassReader(fis);
-                    final ClassWriter writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
-
-                    final NotNullClassInstrumenter classInstrumenter = new NotNullClassInstrumenter(writer);
-                    reader.accept(classInstrumenter, 0);
-
-                    if (classInstrumenter.isModified()) {
-                        logVerbose("Adding @NotNull assertions to " + classPath + "\n");
-                        final OutputStream os = new FileOutputStream(classPath);
-
-                        try {
-                            os.write(writer.toByteArray());
-                        }
-                        finally {
-                            os.close();
-                        }
-                    }
+                    os.write(instrumented);
                 }
                 finally {
-                    fis.close();
+                    os.close();
                 }
             }
-            catch (IOException e) {
-                logVerbose("Failed to instrument @NotNull assertion for " + classPath + ": " +
-                           e.getMessage() + "\n");
-                e.printStackTrace();
-            }
+        }
+        catch (IOException e) {
+            logVerbose("Failed to instrument @NotNull assertion for %s: %s\n", classFile, e.getMessage());
         }
     }
 
     //~ Static fields/initializers ...........................................................................
 
-    public static final String CLASSES_PROPERTY = "notnull.classes.property";
+    private static final String CLASS_EXT = ".class";
+
+    private static final int MIN_FILES_PER_THREAD = 32;
 }
@@ -0,0 +1,97 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.processors;
+
+import apb.Environment;
+
+import apb.compiler.ClassOutputTransformer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import org.objectweb.asm.ClassReader;
+
+/**
+ * Add the assertions for the @NotNull annotations to a class file, in memory.
+ * Classes that do not reference the annotation in its constant pool are not parsed.
+ */
+public class NotNullInstrumenter
+    implements ClassOutputTransformer
+{
+    //~ Instance fields ......................................................................................
+
+    @NotNull private final Environment env;
+
+    //~ Constructors .........................................................................................
+
+    public NotNullInstrumenter(@NotNull Environment env)
+    {
+        this.env = env;
+    }
+
+    //~ Methods ..............................................................................................
+
+    @Nullable public byte[] transform(@NotNull String className, @NotNull byte[] bytes)
+    {
+        if (!contains(bytes, NOT_NULL_DESCRIPTOR)) {
+            return null;
+        }
+
+        final ClassReader              reader = new ClassReader(bytes);
+        final ClassWriter              writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        final NotNullClassInstrumenter classInstrumenter = new NotNullClassInstrumenter(writer);
+        reader.accept(classInstrumenter, 0);
+
+        if (!classInstrumenter.isModified()) {
+            return null;
+        }
+
+        env.logVerbose("Adding @NotNull assertions to %s\n", className);
+        return writer.toByteArray();
+    }
+
+    /**
+     * Check if the class file contains the (ASCII) string
+     */
+    private static boolean contains(@NotNull byte[] bytes, @NotNull byte[] str)
+    {
+        final int last = bytes.length - str.length;
+
+        for (int i = 0; i <= last; i++) {
+            int j = 0;
+
+            while (j < str.length && bytes[i + j] == str[j]) {
+                j++;
+            }
+
+            if (j == str.length) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    /**
+     * The descriptor of the annotation, as stored in the constant pool of the annotated classes
+     */
+    private static final byte[] NOT_NULL_DESCRIPTOR = "Lorg/jetbrains/annotations/NotNull;".getBytes();
+}
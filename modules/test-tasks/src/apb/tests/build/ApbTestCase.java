@@ -27,6 +27,7 @@ import java.util.Map;
 import java.util.Set;
 
 import apb.Apb;
+import apb.Constants;
 import apb.DefinitionException;
 import apb.Environment;
 import apb.ProjectBuilder;
@@ -80,6 +81,8 @@ public abstract class ApbTestCase
 
         Map<String, String> props = new HashMap<String, String>();
         props.put("tmpdir", path);
+        // Do not let outputs cached by previous runs change the output of the builds
+        props.put(Constants.BUILD_CACHE_PROPERTY, "false");
 
         if (tmpdir.exists()) {
             delete(tmpdir).execute();
@@ -96,7 +96,7 @@ public class CompletionTest
         assertEquals("--debug --define", result);
 
         result = oc.execute(0, asList("-"));
-        assertEquals("-c -D -d -f -h -n -q -s -t -v", result);
+        assertEquals("-c -D -d -f -h -j -n -q -s -t -v -w", result);
 
         result = oc.execute(1, asList("--debug"));
         assertEquals("all dependencies properties task_info track", result);
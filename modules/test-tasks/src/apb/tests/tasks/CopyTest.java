@@ -21,8 +21,12 @@ package apb.tests.tasks;
 import java.io.File;
 import java.io.IOException;
 
+import apb.metadata.CopyStrategy;
+
 import apb.tasks.FileSet;
 
+import apb.utils.FileUtils;
+
 import apb.tests.testutils.FileAssert;
 
 import static apb.tasks.CoreTasks.*;
@@ -117,6 +121,79 @@ public class CopyTest
         FileAssert.assertFileEquals(new File(dir1, "a.txt"), new File(dir2, "c.txt"));
     }
 
+    public void testContentFingerprints()
+        throws IOException
+    {
+        env.putProperty("output-base", "$basedir/output");
+
+        final File source = new File(dir1, "A.java");
+        final File target = new File(dir2, "A.java");
+        copy(dir1).to(dir2).execute();
+        FileAssert.assertFileEquals(source, target);
+
+        // Only the timestamp of the source changes (Must skip copy)
+        final long time = currentTime();
+        FileUtils.touch(target, time - 10000);
+        FileUtils.touch(source, time);
+        copy(dir1).to(dir2).execute();
+        assertEquals(time - 10000, target.lastModified());
+
+        // The content changes (Must copy)
+        FileAssert.createFile(dir1, "A.java", DATA1);
+        FileUtils.touch(source, time);
+        copy(dir1).to(dir2).execute();
+        FileAssert.assertFileEquals(source, target);
+    }
+
+    public void testStrategies()
+        throws IOException
+    {
+        // Enough files to copy them in parallel
+        for (int i = 0; i < 200; i++) {
+            final File dir = new File(dir1, "p" + i % 5);
+            mkdir(dir).execute();
+            FileAssert.createFile(dir, "F" + i + ".txt", new String[] { "File " + i });
+        }
+
+        copy(dir1).to(dir2).using(CopyStrategy.LINK).execute();
+        final File dir3 = new File(basedir, "dir3");
+        copy(dir1).to(dir3).using(CopyStrategy.REFLINK).execute();
+        final File dir4 = new File(basedir, "dir4");
+        copy(dir1).to(dir4).parallel(false).execute();
+
+        for (int i = 0; i < 200; i++) {
+            final String name = "p" + i % 5 + "/F" + i + ".txt";
+            FileAssert.assertFileEquals(new File(dir1, name), new File(dir2, name));
+            FileAssert.assertFileEquals(new File(dir1, name), new File(dir3, name));
+            FileAssert.assertFileEquals(new File(dir1, name), new File(dir4, name));
+        }
+
+        // A linked file shares the content with the source
+        FileAssert.createFile(dir1, "A.java", DATA1);
+        FileAssert.assertFileEquals(new File(dir1, "A.java"), new File(dir2, "A.java"));
+    }
+
+    public void testCopyOverLink()
+        throws IOException
+    {
+        env.putProperty("output-base", "$basedir/output");
+        copy(dir1).to(dir2).using(CopyStrategy.LINK).execute();
+
+        // Modify the source (And so the link), and copy it again without linking
+        FileAssert.createFile(dir1, "A.java", DATA1);
+        copy(dir1).to(dir2).using(CopyStrategy.COPY).execute();
+
+        // The source was not truncated by the copy
+        FileAssert.createFile(basedir, "expected.java", DATA1);
+        final File expected = new File(basedir, "expected.java");
+        FileAssert.assertFileEquals(expected, new File(dir1, "A.java"));
+        FileAssert.assertFileEquals(expected, new File(dir2, "A.java"));
+
+        // And the target is no longer linked to it
+        FileAssert.createFile(dir1, "A.java", DATA);
+        FileAssert.assertFileEquals(expected, new File(dir2, "A.java"));
+    }
+
     @Override protected void tearDown()
         throws Exception
     {
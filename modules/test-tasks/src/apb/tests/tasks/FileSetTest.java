@@ -25,6 +25,9 @@ import java.util.List;
 
 import apb.tasks.FileSet;
 
+import apb.utils.DirectoryScanner;
+import apb.utils.TreeSnapshot;
+
 import apb.tests.testutils.FileAssert;
 import static apb.tests.testutils.FileAssert.assertSame;
 
@@ -165,6 +168,70 @@ public class FileSetTest
         assertEquals(Collections.<String>emptyList(), l);
     }
 
+    public void testParallelScan()
+        throws IOException
+    {
+        dir1 = mkdir("dir1");
+
+        // Enough directories to scan them in parallel
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 10; j++) {
+                final File dir = mkdir("dir1/d" + i + "/e" + j);
+                addFiles(dir, "A" + j + ".java", "B.txt");
+            }
+        }
+
+        final List<String> excludes = asList("**/d3/**");
+        final List<String> sequential =
+            new DirectoryScanner(dir1, asList("**/*.java"), excludes).parallel(false).scan();
+        final List<String> parallel = new DirectoryScanner(dir1, asList("**/*.java"), excludes).scan();
+
+        assertEquals(190, sequential.size());
+        assertEquals(sequential, parallel);
+    }
+
+    public void testSnapshot()
+        throws IOException
+    {
+        dir1 = mkdir("dir1");
+        final File sub = mkdir("dir1/sub");
+        addFiles(dir1, "A.java");
+        addFiles(sub, "B.java", "C.java");
+
+        // Old enough for their timestamps to be trusted
+        final long old = System.currentTimeMillis() - 10000;
+        sub.setLastModified(old);
+        dir1.setLastModified(old);
+
+        final File         store = new File(basedir, "snapshots");
+        final TreeSnapshot snapshot = TreeSnapshot.forDirectory(dir1, store);
+        assertEquals(asList("A.java", "sub/B.java", "sub/C.java"), scan(snapshot));
+        assertTrue(store.list().length == 1);
+
+        // A directory with the same modification time is not listed again
+        new File(sub, "C.java").delete();
+        sub.setLastModified(old);
+        assertEquals(asList("A.java", "sub/B.java", "sub/C.java"), scan(snapshot));
+
+        // But it is when it changes
+        sub.setLastModified(old + 1000);
+        assertEquals(asList("A.java", "sub/B.java"), scan(snapshot));
+        addFiles(dir1, "D.java");
+        assertEquals(asList("A.java", "D.java", "sub/B.java"), scan(snapshot));
+    }
+
+    private List<String> scan(TreeSnapshot snapshot)
+    {
+        return sorted(new DirectoryScanner(dir1, asList("**/*.java"), Collections.<String>emptyList())
+                      .withSnapshot(snapshot).scan());
+    }
+
+    private static List<String> sorted(List<String> list)
+    {
+        Collections.sort(list);
+        return list;
+    }
+
     private void addFiles(File dir, String... files)
         throws IOException
     {
@@ -178,7 +245,7 @@ public class FileSetTest
         File result = new File(basedir, name);
 
         if (!result.exists()) {
-            result.mkdir();
+            result.mkdirs();
         }
 
         return result;
@@ -0,0 +1,386 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tests.tasks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import apb.BuildException;
+
+import apb.metadata.DuplicateEntryPolicy;
+
+import apb.tasks.JarTask;
+
+import apb.tests.testutils.FileAssert;
+
+import apb.utils.FileUtils;
+
+import static apb.tasks.CoreTasks.delete;
+import static apb.tasks.CoreTasks.jar;
+import static apb.tasks.CoreTasks.mkdir;
+
+//
+public class JarTest
+    extends TaskTestCase
+{
+    //~ Methods ..............................................................................................
+
+    public void testManyEntries()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+
+        for (int i = 0; i < FILES; i++) {
+            final File dir = new File(src, "p" + i % 10);
+            mkdir(dir).execute();
+            FileAssert.createFile(dir, "F" + i + ".txt", new String[] { "File " + i, "Content " + i * i });
+        }
+
+        final File jarFile = new File(basedir, "test.jar");
+        jar(jarFile).fromDir(src).execute();
+
+        // Check using the central directory
+        final JarFile jf = new JarFile(jarFile);
+
+        try {
+            assertNotNull(jf.getManifest());
+
+            for (int i = 0; i < FILES; i++) {
+                final String   name = "p" + i % 10 + "/F" + i + ".txt";
+                final JarEntry entry = jf.getJarEntry(name);
+                assertNotNull(name, entry);
+                assertEquals(content(new FileInputStream(new File(src, name))), content(jf.getInputStream(entry)));
+            }
+        }
+        finally {
+            jf.close();
+        }
+
+        // Check using the local headers
+        final JarInputStream is = new JarInputStream(new FileInputStream(jarFile));
+        final Set<String>    names = new HashSet<String>();
+
+        try {
+            JarEntry entry;
+
+            while ((entry = is.getNextJarEntry()) != null) {
+                if (!entry.isDirectory() && !entry.getName().startsWith("META-INF/")) {
+                    names.add(entry.getName());
+                    assertTrue(content(is).startsWith("File "));
+                }
+            }
+        }
+        finally {
+            is.close();
+        }
+
+        assertEquals(FILES, names.size());
+    }
+
+    public void testIncremental()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        mkdir(src).execute();
+
+        final long old = System.currentTimeMillis() - 10000;
+
+        for (int i = 0; i < 5; i++) {
+            FileAssert.createFile(src, "F" + i + ".txt", new String[] { "File " + i });
+            new File(src, "F" + i + ".txt").setLastModified(old);
+        }
+
+        final File jarFile = new File(basedir, "test.jar");
+        jar(jarFile).fromDir(src).incremental(true).execute();
+
+        // Modify one file, delete another one and add a new one
+        FileAssert.createFile(src, "F1.txt", new String[] { "File 1 modified" });
+        new File(src, "F1.txt").setLastModified(jarFile.lastModified() + 5000);
+        delete(new File(src, "F2.txt")).execute();
+        FileAssert.createFile(src, "F5.txt", new String[] { "File 5" });
+
+        jar(jarFile).fromDir(src).incremental(true).execute();
+
+        final JarFile jf = new JarFile(jarFile);
+
+        try {
+            for (String name : new String[] { "F0.txt", "F1.txt", "F3.txt", "F4.txt", "F5.txt" }) {
+                final JarEntry entry = jf.getJarEntry(name);
+                assertNotNull(name, entry);
+                assertEquals(content(new FileInputStream(new File(src, name))), content(jf.getInputStream(entry)));
+            }
+
+            assertNull(jf.getJarEntry("F2.txt"));
+        }
+        finally {
+            jf.close();
+        }
+    }
+
+    public void testDeletedFile()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        mkdir(src).execute();
+        FileAssert.createFile(src, "A.txt", new String[] { "A" });
+        FileAssert.createFile(src, "B.txt", new String[] { "B" });
+
+        final File jarFile = new File(basedir, "test.jar");
+        jar(jarFile).fromDir(src).execute();
+
+        delete(new File(src, "B.txt")).execute();
+        jar(jarFile).fromDir(src).execute();
+
+        final JarFile jf = new JarFile(jarFile);
+
+        try {
+            assertNotNull(jf.getJarEntry("A.txt"));
+            assertNull(jf.getJarEntry("B.txt"));
+        }
+        finally {
+            jf.close();
+        }
+    }
+
+    public void testReproducible()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+
+        for (int i = 0; i < 20; i++) {
+            final File dir = new File(src, "p" + i % 3);
+            mkdir(dir).execute();
+            FileAssert.createFile(dir, "F" + i + ".txt", new String[] { "File " + i });
+        }
+
+        final Map<String, Set<String>> services = new HashMap<String, Set<String>>();
+        services.put("a.Service", new HashSet<String>(Arrays.asList("a.Impl3", "a.Impl1", "a.Impl2")));
+        services.put("b.Service", new HashSet<String>(Arrays.asList("b.Impl")));
+
+        final File    first = new File(basedir, "first.jar");
+        final JarTask firstTask = jar(first).fromDir(src).withServices(services).reproducible(true);
+        firstTask.setManifestAttribute("Z-Attribute", "z");
+        firstTask.setManifestAttribute("A-Attribute", "a");
+        firstTask.execute();
+
+        // Touch the files and build it again with the attributes and services in another order
+        for (int i = 0; i < 20; i++) {
+            new File(src, "p" + i % 3 + "/F" + i + ".txt").setLastModified(System.currentTimeMillis() - 1000 * i);
+        }
+
+        final Map<String, Set<String>> otherServices = new HashMap<String, Set<String>>();
+        otherServices.put("b.Service", new HashSet<String>(Arrays.asList("b.Impl")));
+        otherServices.put("a.Service", new HashSet<String>(Arrays.asList("a.Impl2", "a.Impl1", "a.Impl3")));
+
+        final File    second = new File(basedir, "second.jar");
+        final JarTask secondTask = jar(second).fromDir(src).withServices(otherServices).reproducible(true);
+        secondTask.setManifestAttribute("A-Attribute", "a");
+        secondTask.setManifestAttribute("Z-Attribute", "z");
+        secondTask.execute();
+
+        assertTrue(Arrays.equals(FileUtils.readBytes(first), FileUtils.readBytes(second)));
+        assertNotNull(firstTask.getContentHash());
+        assertEquals(firstTask.getContentHash(), secondTask.getContentHash());
+
+        final JarFile jf = new JarFile(second);
+
+        try {
+            assertEquals("a", jf.getManifest().getMainAttributes().getValue("A-Attribute"));
+            assertEquals("a.Impl1\na.Impl2\na.Impl3\n",
+                         content(jf.getInputStream(jf.getJarEntry("META-INF/services/a.Service"))));
+        }
+        finally {
+            jf.close();
+        }
+    }
+
+    public void testParallel()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+
+        for (int i = 0; i < FILES; i++) {
+            final File dir = new File(src, "p" + i % 10);
+            mkdir(dir).execute();
+            FileAssert.createFile(dir, "F" + i + ".txt", new String[] { "File " + i, "Content " + i * i });
+        }
+
+        final File lib = new File(basedir, "lib.jar");
+        createArchive(lib);
+
+        // Enough entries to compress them in parallel, whatever the number of processors is
+        final File    sequential = new File(basedir, "sequential.jar");
+        final JarTask sequentialTask = jar(sequential).fromDir(src).reproducible(true).parallel(false);
+        sequentialTask.addJar(lib);
+        sequentialTask.execute();
+
+        final File    parallel = new File(basedir, "parallel.jar");
+        final JarTask parallelTask = jar(parallel).fromDir(src).reproducible(true).parallel(true);
+        parallelTask.addJar(lib);
+        parallelTask.execute();
+
+        assertTrue(Arrays.equals(FileUtils.readBytes(sequential), FileUtils.readBytes(parallel)));
+    }
+
+    public void testArchives()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        mkdir(new File(src, "META-INF/services")).execute();
+        FileAssert.createFile(src, "common.txt", new String[] { "From dir" });
+        FileAssert.createFile(src, "META-INF/services/x.Service", new String[] { "x.Impl1" });
+
+        final File lib = new File(basedir, "lib.jar");
+        createArchive(lib);
+
+        final File    jarFile = new File(basedir, "test.jar");
+        final JarTask task = jar(jarFile).fromDir(src);
+        task.addJar(lib);
+        task.execute();
+
+        final JarFile jf = new JarFile(jarFile);
+        final JarFile libJar = new JarFile(lib);
+
+        try {
+            assertEquals("Library A\n", content(jf.getInputStream(jf.getJarEntry("lib/A.txt"))));
+            assertEquals("From dir\n", content(jf.getInputStream(jf.getJarEntry("common.txt"))));
+            assertNull(jf.getJarEntry("META-INF/LIB.SF"));
+
+            // Copied without compressing it again
+            assertEquals(libJar.getJarEntry("lib/A.txt").getCompressedSize(),
+                         jf.getJarEntry("lib/A.txt").getCompressedSize());
+
+            final String providers =
+                content(jf.getInputStream(jf.getJarEntry("META-INF/services/x.Service")));
+            assertEquals(new HashSet<String>(Arrays.asList("x.Impl1", "x.Impl2")),
+                         new HashSet<String>(Arrays.asList(providers.split("\n"))));
+        }
+        finally {
+            jf.close();
+            libJar.close();
+        }
+
+        // Fail on duplicates
+        final JarTask failing =
+            jar(new File(basedir, "fail.jar")).fromDir(src).onDuplicates(DuplicateEntryPolicy.FAIL);
+        failing.addJar(lib);
+
+        boolean exceptionThrown;
+
+        try {
+            failing.execute();
+            exceptionThrown = false;
+        }
+        catch (BuildException e) {
+            exceptionThrown = true;
+        }
+
+        assertTrue(exceptionThrown);
+    }
+
+    public void testArchivePatterns()
+        throws IOException
+    {
+        env.putProperty("output-base", "$basedir/output");
+
+        final File src = new File(basedir, "src");
+        mkdir(src).execute();
+        FileAssert.createFile(src, "common.txt", new String[] { "From dir" });
+
+        final File lib = new File(basedir, "lib.jar");
+        createArchive(lib);
+
+        final File    jarFile = new File(basedir, "test.jar");
+        final JarTask task = jar(jarFile).fromDir(src);
+        task.addJar(lib);
+        task.execute();
+
+        // Excluding an entry of the archive changes no input file, but the jar must be built again
+        final JarTask excluding = jar(jarFile).fromDir(src).excluding("lib/**");
+        excluding.addJar(lib);
+        excluding.execute();
+
+        final JarFile jf = new JarFile(jarFile);
+
+        try {
+            assertNull(jf.getJarEntry("lib/A.txt"));
+            assertNotNull(jf.getJarEntry("common.txt"));
+        }
+        finally {
+            jf.close();
+        }
+    }
+
+    private static void createArchive(File file)
+        throws IOException
+    {
+        final JarOutputStream out = new JarOutputStream(new FileOutputStream(file));
+
+        try {
+            addEntry(out, "lib/", "");
+            addEntry(out, "lib/A.txt", "Library A\n");
+            addEntry(out, "common.txt", "From archive\n");
+            addEntry(out, "META-INF/services/x.Service", "# Providers\nx.Impl2 # The second one\n");
+            addEntry(out, "META-INF/LIB.SF", "Signature\n");
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void addEntry(JarOutputStream out, String name, String content)
+        throws IOException
+    {
+        out.putNextEntry(new ZipEntry(name));
+        out.write(content.getBytes());
+        out.closeEntry();
+    }
+
+    private static String content(InputStream is)
+        throws IOException
+    {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[]                buffer = new byte[1024];
+        int                         n;
+
+        while ((n = is.read(buffer)) > 0) {
+            out.write(buffer, 0, n);
+        }
+
+        return out.toString();
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final int FILES = 500;
+}
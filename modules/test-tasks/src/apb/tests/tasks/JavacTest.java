@@ -22,10 +22,17 @@ import java.io.File;
 import java.io.IOException;
 
 import apb.BuildException;
+import apb.Constants;
+
+import apb.tasks.ActionCache;
+
+import apb.utils.FileUtils;
 
 import apb.tests.testutils.FileAssert;
 
+import static apb.tasks.CoreTasks.jar;
 import static apb.tasks.CoreTasks.javac;
+import static apb.tasks.CoreTasks.mkdir;
 
 //
 public class JavacTest
@@ -57,6 +64,226 @@ public class JavacTest
         FileAssert.assertExists(new File(basedir, "Hello.class"));
     }
 
+    public void testBuildCache()
+        throws IOException
+    {
+        // Use an empty cache, not the one of the user
+        env.putProperty(Constants.BUILD_CACHE_DIR_PROPERTY, "$basedir/cache");
+
+        final File helloClass = new File(basedir, "Hello.class");
+        ActionCache.resetStatistics();
+
+        compileUsingCache();
+        FileAssert.assertExists(helloClass);
+        assertEquals(0, ActionCache.getHits());
+
+        // Restored from the cache instead of compiled
+        helloClass.delete();
+        compileUsingCache();
+        FileAssert.assertExists(helloClass);
+        assertTrue(ActionCache.getHits() > 0);
+    }
+
+    public void testIncremental()
+        throws IOException
+    {
+        env.putProperty("output-base", "$basedir/output");
+
+        final File src = new File(basedir, "src");
+        final File classes = new File(basedir, "classes");
+        mkdir(src).execute();
+        FileAssert.createFile(src, "A.java", new String[] { "public class A { static int f() { return 1; } }" });
+        FileAssert.createFile(src, "B.java", new String[] { "public class B { int g() { return A.f(); } }" });
+        FileAssert.createFile(src, "C.java", new String[] { "public class C { class Inner {} }" });
+        compileIncremental();
+
+        final File bClass = new File(classes, "B.class");
+        final File cClass = new File(classes, "C.class");
+        final long time = currentTime() - 10000;
+        FileUtils.touch(bClass, time);
+        FileUtils.touch(cClass, time);
+
+        // Modify A (B must be compiled again, but not C)
+        FileAssert.createFile(src, "A.java", new String[] { "public class A { static int f() { return 2; } }" });
+        compileIncremental();
+        assertTrue(bClass.lastModified() > time);
+        assertEquals(time, cClass.lastModified());
+
+        // Delete C (Its classes must be removed)
+        new File(src, "C.java").delete();
+        compileIncremental();
+        FileAssert.assertDoesNotExist(cClass);
+        FileAssert.assertDoesNotExist(new File(classes, "C$Inner.class"));
+        FileAssert.assertExists(bClass);
+    }
+
+    public void testAbi()
+        throws IOException
+    {
+        env.putProperty("output-base", "$basedir/output");
+
+        final File lib = new File(basedir, "lib");
+        final File src = new File(basedir, "src");
+        mkdir(lib).execute();
+        mkdir(src).execute();
+        FileAssert.createFile(lib, "L.java", new String[] { "public class L { public int f() { return 1; } }" });
+        FileAssert.createFile(src, "U.java", new String[] { "public class U { long g() { return new L().f(); } }" });
+        compileWithLibrary();
+
+        final File uClass = new File(basedir, "classes/U.class");
+        final long time = currentTime() - 10000;
+        FileUtils.touch(uClass, time);
+
+        // Only the body changes (Must not compile U)
+        FileAssert.createFile(lib, "L.java", new String[] { "public class L { public int f() { return 2; } }" });
+        compileWithLibrary();
+        assertEquals(time, uClass.lastModified());
+
+        // The api changes (Must compile U)
+        FileAssert.createFile(lib, "L.java", new String[] { "public class L { public long f() { return 2; } }" });
+        compileWithLibrary();
+        assertTrue(uClass.lastModified() > time);
+    }
+
+    public void testPackageIndex()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        mkdir(src).execute();
+        FileAssert.createFile(src, "T.java",
+                              new String[] {
+                                  "public class T extends junit.framework.TestCase {",
+                                  "    public void test() { assertTrue(junit.runner.Version.id() != null); }", "}"
+                              });
+
+        javac("$basedir/src").to("$basedir/classes")  //
+                             .withClassPath(dataPath("lib/junit-3.8.2.jar"))  //
+                             .execute();
+        FileAssert.assertExists(new File(basedir, "classes/T.class"));
+    }
+
+    public void testManifestClassPath()
+        throws IOException
+    {
+        final File lib = new File(basedir, "lib");
+        final File src = new File(basedir, "src");
+        final File doc = new File(basedir, "doc");
+        mkdir(lib).execute();
+        mkdir(src).execute();
+        mkdir(doc).execute();
+        FileAssert.createFile(lib, "L.java", new String[] { "public class L { public int f() { return 1; } }" });
+        FileAssert.createFile(src, "U.java", new String[] { "public class U { int g() { return new L().f(); } }" });
+        FileAssert.createFile(doc, "readme.txt", new String[] { "Only a Class-Path" });
+
+        // L is only reachable through the manifest of path.jar
+        javac("$basedir/lib").to("$basedir/lib-classes").execute();
+        jar("$basedir/jars/l.jar").fromDir(new File(basedir, "lib-classes")).execute();
+        jar("$basedir/jars/path.jar").fromDir(doc).withClassPath("$basedir/jars/l.jar").execute();
+
+        javac("$basedir/src").to("$basedir/classes")  //
+                             .withClassPath("$basedir/jars/path.jar")  //
+                             .execute();
+        FileAssert.assertExists(new File(basedir, "classes/U.class"));
+    }
+
+    public void testUnusedDependencies()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        mkdir(src).execute();
+        FileAssert.createFile(src, "T.java",
+                              new String[] {
+                                  "public class T extends junit.framework.TestCase {",
+                                  "    public void test() { assertTrue(true); }", "}"
+                              });
+
+        final File lib = new File(basedir, "lib");
+        mkdir(lib).execute();
+        FileAssert.createFile(lib, "L.java", new String[] { "public class L {}" });
+        javac("$basedir/lib").to("$basedir/lib-classes").execute();
+
+        javac("$basedir/src").to("$basedir/classes")  //
+                             .withClassPath(dataPath("lib/junit-3.8.2.jar"))  //
+                             .trackUnusedDependencies(true)  //
+                             .execute();
+
+        try {
+            javac("$basedir/src").to("$basedir/classes")  //
+                                 .withClassPath(dataPath("lib/junit-3.8.2.jar"), "$basedir/lib-classes")  //
+                                 .trackUnusedDependencies(true)  //
+                                 .execute();
+            fail("Unused dependency not detected");
+        }
+        catch (BuildException e) {
+            assertTrue(e.getMessage().contains("lib-classes"));
+            assertFalse(e.getMessage().contains("junit"));
+        }
+    }
+
+    public void testConstantDependency()
+        throws IOException
+    {
+        final File src = new File(basedir, "src");
+        final File lib = new File(basedir, "lib");
+        mkdir(src).execute();
+        mkdir(lib).execute();
+        final File other = new File(basedir, "other");
+        mkdir(other).execute();
+        FileAssert.createFile(lib, "K.java", new String[] { "public class K { public static final int N = 3; }" });
+        FileAssert.createFile(other, "O.java", new String[] { "public class O { public static final int M = 4; }" });
+        FileAssert.createFile(src, "T.java", new String[] { "public class T { int f() { return K.N; } }" });
+        javac("$basedir/lib").to("$basedir/lib-classes").execute();
+        javac("$basedir/other").to("$basedir/other-classes").execute();
+
+        // Another library with constants is not used
+        try {
+            javac("$basedir/src").to("$basedir/classes")  //
+                                 .withClassPath("$basedir/lib-classes", "$basedir/other-classes")  //
+                                 .trackUnusedDependencies(true)  //
+                                 .execute();
+            fail("Unused dependency not detected");
+        }
+        catch (BuildException e) {
+            assertTrue(e.getMessage().contains("other-classes"));
+            assertFalse(e.getMessage().contains("lib-classes"));
+        }
+
+        // The constant is inlined, so K is not referenced from T.class, but the library is used
+        // (Also when nothing is compiled the second time)
+        for (int i = 0; i < 2; i++) {
+            javac("$basedir/src").to("$basedir/classes")  //
+                                 .withClassPath("$basedir/lib-classes")  //
+                                 .trackUnusedDependencies(true)  //
+                                 .execute();
+        }
+
+        FileAssert.assertExists(new File(basedir, "classes/T.class"));
+    }
+
+    private void compileWithLibrary()
+    {
+        javac("$basedir/lib").to("$basedir/lib-classes")  //
+                             .recordAbi(true)  //
+                             .execute();
+        javac("$basedir/src").to("$basedir/classes")  //
+                             .withClassPath("$basedir/lib-classes")  //
+                             .execute();
+    }
+
+    private void compileIncremental()
+    {
+        javac("$basedir/src").to("$basedir/classes")  //
+                             .incremental(true)  //
+                             .execute();
+    }
+
+    private void compileUsingCache()
+    {
+        javac(dataPath("src/hello")).to("$basedir")  //
+                                    .useCache(true)  //
+                                    .execute();
+    }
+
     private void compile(final String lintOptions)
     {
         javac(dataPath("src/hello")).to("$basedir")  //
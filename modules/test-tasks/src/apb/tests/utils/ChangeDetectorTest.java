@@ -0,0 +1,152 @@
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tests.utils;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+
+import apb.tests.testutils.FileAssert;
+
+import apb.utils.ChangeDetector;
+
+import junit.framework.TestCase;
+
+import static java.util.Arrays.asList;
+
+//
+public class ChangeDetectorTest
+    extends TestCase
+{
+    //~ Instance fields ......................................................................................
+
+    private File basedir;
+    private File moduleA, moduleB;
+
+    //~ Methods ..............................................................................................
+
+    public void testChangedKeys()
+        throws IOException
+    {
+        final ChangeDetector changes = watchModules();
+
+        // A new file in the sources of the first module
+        FileAssert.createFile(new File(moduleA, "src"), "B.java", new String[] { "class B {}" });
+
+        assertTrue(changes.poll(true));
+        assertFalse(changes.poll(true));
+        assertEquals(asList("a"), changes.changedKeys());
+
+        // Reported once
+        assertFalse(changes.poll(true));
+        assertTrue(changes.changedKeys().isEmpty());
+
+        // A file modified in place is only detected when the files are checked
+        FileAssert.createFile(new File(moduleB, "src"), "A.java", new String[] { "class A { int n; }" });
+
+        assertFalse(changes.poll(false));
+        assertTrue(changes.poll(true));
+        assertEquals(asList("b"), changes.changedKeys());
+    }
+
+    public void testOutputNotWatched()
+        throws IOException
+    {
+        final ChangeDetector changes = watchModules();
+
+        // Write in the output directory of the first module, as a build does
+        final File output = new File(moduleA, "output");
+        new File(output, "classes").mkdirs();
+        FileAssert.createFile(new File(output, "classes"), "A.class", new String[] { "Compiled" });
+        FileAssert.createFile(output, "a.jar", new String[] { "Packaged" });
+
+        assertFalse(changes.poll(true));
+        assertTrue(changes.changedKeys().isEmpty());
+    }
+
+    public void testWatchedLater()
+        throws IOException
+    {
+        final ChangeDetector changes = watchModules();
+
+        // Watched from its current state
+        final File other = new File(basedir, "other");
+        other.mkdirs();
+        FileAssert.createFile(other, "O.java", new String[] { "class O {}" });
+        changes.watch("b", Collections.singletonList(other));
+
+        assertFalse(changes.poll(true));
+        assertTrue(changes.changedKeys().isEmpty());
+
+        FileAssert.createFile(other, "P.java", new String[] { "class P {}" });
+
+        assertTrue(changes.poll(true));
+        assertEquals(asList("b"), changes.changedKeys());
+    }
+
+    @Override protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+        basedir = new File("tmp").getAbsoluteFile();
+        remove(basedir);
+
+        moduleA = new File(basedir, "a");
+        moduleB = new File(basedir, "b");
+
+        for (File module : asList(moduleA, moduleB)) {
+            new File(module, "src").mkdirs();
+            new File(module, "output").mkdirs();
+            FileAssert.createFile(new File(module, "src"), "A.java", new String[] { "class A {}" });
+        }
+    }
+
+    @Override protected void tearDown()
+        throws Exception
+    {
+        super.tearDown();
+        remove(basedir);
+    }
+
+    /**
+     * Watch the module directories (With their output directories inside them) and take the initial state
+     */
+    private ChangeDetector watchModules()
+    {
+        final ChangeDetector result = new ChangeDetector();
+
+        result.exclude(new File(moduleA, "output"));
+        result.exclude(new File(moduleB, "output"));
+        result.watch("a", Collections.singletonList(moduleA));
+        result.watch("b", Collections.singletonList(moduleB));
+        assertFalse(result.poll(true));
+        return result;
+    }
+
+    private static void remove(File file)
+    {
+        final File[] files = file.listFiles();
+
+        if (files != null) {
+            for (File f : files) {
+                remove(f);
+            }
+        }
+
+        file.delete();
+    }
+}
@@ -21,7 +21,12 @@ package apb.tests.utils;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import apb.Apb;
 import apb.Environment;
@@ -74,6 +79,34 @@ public class CollectionsTest
         assertEquals(ABC_LIST, list);
     }
 
+    public void testMergeSets()
+    {
+        Map<String, Set<String>> target = new HashMap<String, Set<String>>();
+        target.put("a", new HashSet<String>(asList("1", "2")));
+
+        Map<String, Set<String>> source = new HashMap<String, Set<String>>();
+        source.put("a", new HashSet<String>(asList("2", "3")));
+        source.put("b", new HashSet<String>(asList("4")));
+
+        CollectionUtils.mergeSets(target, source);
+        assertEquals(new HashSet<String>(asList("1", "2", "3")), target.get("a"));
+        assertEquals(new HashSet<String>(asList("4")), target.get("b"));
+
+        // The source is not modified
+        target.get("b").add("5");
+        assertEquals(new HashSet<String>(asList("4")), source.get("b"));
+    }
+
+    public void testMergeSetsKeepsOrder()
+    {
+        Map<String, Set<String>> target = new HashMap<String, Set<String>>();
+        Map<String, Set<String>> source = new HashMap<String, Set<String>>();
+        source.put("a", new LinkedHashSet<String>(asList("z", "m", "a", "q", "b")));
+
+        CollectionUtils.mergeSets(target, source);
+        assertEquals(asList("z", "m", "a", "q", "b"), new ArrayList<String>(target.get("a")));
+    }
+
     public void testExpandAll()
         throws IOException
     {
@@ -158,6 +158,10 @@ public class OptionParserTest
             "    -n, --non-recursive        : Do not recurse over module dependencies.",
             "    -D, --define <name>=<value>: Define a property.",
             "    -t, --track-execution      : Track execution statistics.",
+            "    -j, --jobs <n>             : Number of modules to build in parallel.",
+            "        --daemon               : Run as a build daemon serving 'apbc' requests.",
+            "    -w, --watch                : Keep running, and build again when the sources change.",
+            "        --trace-file <file>    : Write a timeline of the build in Chrome trace format.",
             "    -d, --debug <info type>    : What to show when doing verbose output. [all|dependencies|properties|task_info|track]",
         };
     private static final String[] LONG_DESCR = { "A long", "description" };
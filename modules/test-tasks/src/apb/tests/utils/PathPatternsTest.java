@@ -0,0 +1,88 @@
+
+
+// Copyright 2008-2009 Emilio Lopez-Gabeiras
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+// http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License
+//
+
+
+package apb.tests.utils;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+
+import apb.utils.PathPatterns;
+import apb.utils.StringUtils;
+
+import junit.framework.TestCase;
+
+//
+public class PathPatternsTest
+    extends TestCase
+{
+    //~ Methods ..............................................................................................
+
+    public void testMatches()
+    {
+        PathPatterns patterns = new PathPatterns(Arrays.asList("**/*.java", "lib/"));
+        assertTrue(patterns.matches(path("a/x/y/A.java")));
+        assertTrue(patterns.matches(path("A.java")));
+        assertFalse(patterns.matches(path("a/x/y/A.JAVA")));
+        assertTrue(patterns.matches(path("lib/x/a.jar")));
+        assertTrue(patterns.matchesStart(path("lib/x")));
+        assertFalse(patterns.matches(path("x/a.jar")));
+
+        patterns = new PathPatterns(Arrays.asList("a/**/*.java"), false);
+        assertTrue(patterns.matches(path("a/x/y/A.JAVA")));
+        assertFalse(patterns.matchesStart(path("b/x")));
+
+        assertTrue(new PathPatterns(Collections.<String>emptyList()).isEmpty());
+    }
+
+    /**
+     * Check that the compiled patterns match the same paths than {@link StringUtils#matchPath}
+     */
+    public void testSameAsStringUtils()
+    {
+        for (String p : PATTERNS) {
+            final String       pattern = StringUtils.normalizePath(p);
+            final PathPatterns compiled = new PathPatterns(Collections.singletonList(p));
+
+            for (String s : PATHS) {
+                final String path = path(s);
+                assertEquals(pattern + " " + path, StringUtils.matchPath(pattern, path, true),
+                             compiled.matches(path));
+                assertEquals(pattern + " " + path, StringUtils.matchPatternStart(pattern, path, true),
+                             compiled.matchesStart(path));
+            }
+        }
+    }
+
+    private static String path(String s)
+    {
+        return s.replace('/', File.separatorChar);
+    }
+
+    //~ Static fields/initializers ...........................................................................
+
+    private static final String[] PATTERNS = {
+            "**", "**/**", "*", "**/*.java", "a/**", "a/**/b", "a/**/b/**/c", "**/b/**", "a/*/c", "a/?/c",
+            "*.java", "a/**/*.java", "/a/**", "a/", "**/CVS/**", "**/._*", "a/**/**/c", "**/a*b*c", "a/b/c"
+        };
+
+    private static final String[] PATHS = {
+            "", "a", "a/b", "a/b/c", "a/x/b", "a/x/y/b", "a/b/x/c", "a/x/c", "a/xx/c", "A.java", "a/B.java",
+            "a/x/y/C.java", "/a/b", "x/CVS/y", "x/._y", "abc", "a/xaybzc", "a//b", "b/a/b/c", "a/b/c/d"
+        };
+}
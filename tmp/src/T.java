@@ -0,0 +1,3 @@
+public class T extends junit.framework.TestCase {
+    public void test() { assertTrue(true); }
+}